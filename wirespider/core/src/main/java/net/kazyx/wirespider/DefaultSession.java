@@ -9,6 +9,7 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.buffer.BufferAllocator;
 import net.kazyx.wirespider.util.SelectionKeyUtil;
 
 import java.io.IOException;
@@ -16,6 +17,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 
 /**
@@ -25,21 +27,44 @@ class DefaultSession implements Session {
     private final SelectionKey mKey;
     private final SocketChannel mChannel;
 
-    private static final int READ_BUFFER_SIZE = 1024 * 4;
-    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ReceiveBufferSizePredictor mPredictor = new ReceiveBufferSizePredictor();
 
-    private static final int WRITE_BUFFER_SIZE = 1024 * 4;
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private static final int MAX_SCATTERING_BUFFERS = 16;
+    private final ByteBuffer[] mScatteringBuffers = new ByteBuffer[MAX_SCATTERING_BUFFERS];
+
+    private static final int MAX_GATHERING_BUFFERS = 64;
+    private final ByteBuffer[] mGatheringBuffers = new ByteBuffer[MAX_GATHERING_BUFFERS];
 
     private final Deque<ByteBuffer> mWriteQueue = new ArrayDeque<>();
 
+    /**
+     * Cumulative number of bytes enqueued and written. Guarded by {@link #mLock}.
+     */
+    private long mEnqueuedBytes = 0;
+    private long mWrittenBytes = 0;
+
+    private final SendCallbackQueue mCallbacks = new SendCallbackQueue();
+
+    private boolean mIsCorked = false;
+
+    /**
+     * Cumulative number of bytes to be written even while corked. Guarded by {@link #mLock}.
+     */
+    private long mReleasedBytes = 0;
+
+    private final int mFlushBudget;
+
     private final Object mLock = new Object();
 
     private Listener mListener;
 
-    DefaultSession(SelectionKey key) {
+    private final BufferAllocator mAllocator;
+
+    DefaultSession(SelectionKey key, BufferAllocator allocator, int flushBudget) {
         mKey = key;
         mChannel = (SocketChannel) key.channel();
+        mAllocator = allocator;
+        mFlushBudget = flushBudget;
     }
 
     @Override
@@ -49,52 +74,194 @@ class DefaultSession implements Session {
         }
 
         synchronized (mLock) {
+            mEnqueuedBytes += data.remaining();
+            if (canWriteThrough()) {
+                // Nothing is queued or being flushed, so the data can be written ahead of the selector thread.
+                mWrittenBytes += mChannel.write(data);
+                if (!data.hasRemaining()) {
+                    mAllocator.release(data);
+                    return;
+                }
+            }
             mWriteQueue.addLast(data);
-            if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
-                SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                mKey.selector().wakeup();
+            requestFlush();
+        }
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer[] buffers) throws IOException {
+        enqueueWrite(buffers, null);
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer[] buffers, SendCallback callback) throws IOException {
+        if (!mKey.isValid()) {
+            throw new IOException("SelectionKey is invalid");
+        }
+
+        long writtenBytes;
+        synchronized (mLock) {
+            long endMark = mEnqueuedBytes;
+            for (ByteBuffer data : buffers) {
+                endMark += data.remaining();
+            }
+            boolean writeThrough = canWriteThrough();
+            if (writeThrough) {
+                // Nothing is queued or being flushed, so the data can be written ahead of the selector thread.
+                mWrittenBytes += mChannel.write(buffers);
+            }
+            // Registered after the write, since the callback must not be notified when this method throws.
+            if (callback != null && !mCallbacks.add(endMark, callback)) {
+                throw new IOException("Session is closed");
+            }
+            mEnqueuedBytes = endMark;
+            for (ByteBuffer data : buffers) {
+                if (writeThrough && !data.hasRemaining()) {
+                    mAllocator.release(data);
+                } else {
+                    mWriteQueue.addLast(data);
+                }
+            }
+            if (!mWriteQueue.isEmpty()) {
+                requestFlush();
+            }
+            writtenBytes = mWrittenBytes;
+        }
+        if (callback != null) {
+            mCallbacks.complete(writtenBytes);
+        }
+    }
+
+    /**
+     * Guarded by {@link #mLock}.
+     */
+    private boolean canWriteThrough() {
+        // Buffers stay in the queue while the selector thread is writing them.
+        return mWriteQueue.isEmpty() && !mIsCorked;
+    }
+
+    @Override
+    public void setCorked(boolean corked) throws IOException {
+        synchronized (mLock) {
+            mIsCorked = corked;
+            if (!corked && !mWriteQueue.isEmpty()) {
+                requestFlush();
             }
         }
     }
 
+    @Override
+    public void releaseHeld() throws IOException {
+        synchronized (mLock) {
+            mReleasedBytes = mEnqueuedBytes;
+            if (!mWriteQueue.isEmpty()) {
+                requestFlush();
+            }
+        }
+    }
+
+    /**
+     * Guarded by {@link #mLock}.
+     */
+    private boolean isHoldingData() {
+        return mIsCorked && mReleasedBytes <= mWrittenBytes;
+    }
+
+    private void requestFlush() throws IOException {
+        if (isHoldingData()) {
+            return;
+        }
+        if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
+            SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            mKey.selector().wakeup();
+        }
+    }
+
     @Override
     public void onFlushReady() throws IOException {
+        long budget = mFlushBudget;
         synchronized (mLock) {
-            while (mWriteBuffer.remaining() != 0 && !mWriteQueue.isEmpty()) {
-                ByteBuffer data = mWriteQueue.getFirst();
+            if (isHoldingData()) {
+                // Resumed by uncork.
+                SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
+                return;
+            }
+            if (mIsCorked) {
+                // Write the released data only. Buffers are gathered up to the budget, which ends on a buffer boundary.
+                budget = Math.min(budget, mReleasedBytes - mWrittenBytes);
+            }
+        }
 
-                if (mWriteBuffer.remaining() < data.remaining()) {
-                    byte[] tmp = new byte[mWriteBuffer.remaining()];
-                    data.get(tmp);
-                    mWriteBuffer.put(tmp);
-                } else {
-                    mWriteBuffer.put(data);
-                    mWriteQueue.remove();
+        while (budget > 0) {
+            int count = 0;
+            long requested = 0;
+            synchronized (mLock) {
+                for (ByteBuffer data : mWriteQueue) {
+                    mGatheringBuffers[count++] = data;
+                    requested += data.remaining();
+                    if (count == MAX_GATHERING_BUFFERS || budget <= requested) {
+                        break;
+                    }
                 }
             }
-        }
+            if (count == 0) {
+                break;
+            }
 
-        mWriteBuffer.flip();
-        mChannel.write(mWriteBuffer);
-        mWriteBuffer.compact();
+            long written;
+            try {
+                // Queued buffers are written directly. Only this thread consumes the head of the queue.
+                written = mChannel.write(mGatheringBuffers, 0, count);
+            } finally {
+                Arrays.fill(mGatheringBuffers, 0, count, null);
+            }
 
+            synchronized (mLock) {
+                mWrittenBytes += written;
+                while (!mWriteQueue.isEmpty() && !mWriteQueue.getFirst().hasRemaining()) {
+                    mAllocator.release(mWriteQueue.remove());
+                }
+            }
+
+            if (written < requested) {
+                // Socket send buffer is full.
+                break;
+            }
+            budget -= written;
+        }
+
+        long writtenBytes;
         synchronized (mLock) {
-            if (mWriteBuffer.position() == 0 && mWriteQueue.isEmpty()) {
+            if (mWriteQueue.isEmpty() || isHoldingData()) {
                 SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
             }
+            writtenBytes = mWrittenBytes;
         }
+        mCallbacks.complete(writtenBytes);
     }
 
     @Override
     public void onReadReady() throws IOException {
         while (true) {
-            ByteBuffer buff = read();
-            if (buff == null) {
+            int pending = mListener == null ? 0 : mListener.pendingBytes();
+            int size = mPredictor.nextReceiveBufferSize();
+            long length = pending > size ? scatteringRead(pending) : read(size);
+            if (length == 0) {
                 break;
             }
-            if (mListener != null) {
-                mListener.onAppDataReceived(buff);
-            }
+            mPredictor.record((int) Math.min(Integer.MAX_VALUE, length));
+        }
+    }
+
+    @Override
+    public int receiveBufferSize() {
+        return mPredictor.nextReceiveBufferSize();
+    }
+
+    @Override
+    public long bufferedAmount() {
+        synchronized (mLock) {
+            return mEnqueuedBytes - mWrittenBytes;
         }
     }
 
@@ -104,27 +271,74 @@ class DefaultSession implements Session {
         mListener.onConnected();
     }
 
-    private ByteBuffer read() throws IOException {
+    private int read(int size) throws IOException {
+        ByteBuffer buff = mAllocator.allocate(size);
+        int length;
         try {
-            int length = mChannel.read(mReadBuffer);
-            if (length == -1) {
-                throw new IOException("EOF");
-            } else if (length == 0) {
-                return null;
-            } else {
-                mReadBuffer.flip();
-                ByteBuffer buff = ByteBuffer.allocate(length);
-                buff.put(mReadBuffer);
-                buff.flip();
-                return buff;
-            }
+            length = mChannel.read(buff);
+        } catch (IOException e) {
+            mAllocator.release(buff);
+            throw e;
+        }
+
+        if (length == -1) {
+            mAllocator.release(buff);
+            throw new IOException("EOF");
+        } else if (length == 0) {
+            mAllocator.release(buff);
+        } else {
+            buff.flip();
+            deliver(buff);
+        }
+        return length;
+    }
+
+    /**
+     * Read the large frame known to be pending into multiple buffers by a single system call.
+     */
+    private long scatteringRead(int pending) throws IOException {
+        int chunkSize = ReceiveBufferSizePredictor.MAX_SIZE;
+        int count = Math.min(MAX_SCATTERING_BUFFERS, (pending + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < count; i++) {
+            mScatteringBuffers[i] = mAllocator.allocate(Math.min(chunkSize, pending - i * chunkSize));
+        }
+
+        long length = -1;
+        try {
+            length = mChannel.read(mScatteringBuffers, 0, count);
         } finally {
-            mReadBuffer.clear();
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buff = mScatteringBuffers[i];
+                mScatteringBuffers[i] = null;
+                if (length == -1 || buff.position() == 0) {
+                    mAllocator.release(buff);
+                } else {
+                    buff.flip();
+                    deliver(buff);
+                }
+            }
+        }
+
+        if (length == -1) {
+            throw new IOException("EOF");
+        }
+        return length;
+    }
+
+    private void deliver(ByteBuffer buff) {
+        if (mListener != null) {
+            mListener.onAppDataReceived(buff);
+        } else {
+            mAllocator.release(buff);
         }
     }
 
     @Override
     public void close() throws IOException {
-        mChannel.close();
+        try {
+            mChannel.close();
+        } finally {
+            mCallbacks.failAll(new IOException("Session is closed"));
+        }
     }
 }
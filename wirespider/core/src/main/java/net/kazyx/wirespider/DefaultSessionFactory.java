@@ -16,7 +16,7 @@ import java.nio.channels.SelectionKey;
  */
 class DefaultSessionFactory implements SessionFactory {
     @Override
-    public DefaultSession createNew(SelectionKey key) {
-        return new DefaultSession(key);
+    public DefaultSession createNew(SelectionKey key, SessionRequest request) {
+        return new DefaultSession(key, request.bufferAllocator(), request.flushBudgetInBytes());
     }
 }
@@ -17,7 +17,9 @@ import java.util.List;
 
 public interface FrameRx {
     /**
-     * Called when WebSocket frame data is received.
+     * Called when WebSocket frame data is received.<br>
+     * Ownership of the {@code data} is transferred to this instance. It is released to the
+     * {@link net.kazyx.wirespider.buffer.BufferAllocator} of the session when consumed.
      *
      * @param data Received data.
      */
@@ -30,6 +32,11 @@ public interface FrameRx {
      */
     void setExtensions(List<Extension> extensions);
 
+    /**
+     * @return Number of bytes required to complete the frame currently being parsed, or {@code 0} if unknown.
+     */
+    int pendingBytes();
+
     interface Listener {
         /**
          * Called when received ping control frame.
@@ -11,6 +11,7 @@ package net.kazyx.wirespider;
 
 import net.kazyx.wirespider.extension.Extension;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public interface FrameTx {
@@ -22,6 +23,15 @@ public interface FrameTx {
      */
     void sendTextAsync(String data);
 
+    /**
+     * Send non-partial TEXT data frame <b>under the rule of lock state</b>.
+     *
+     * @param data Application data.
+     * @param callback Notified when the frame is written to the socket. {@code null} if not required.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendTextAsync(String data, SendCallback callback);
+
     /**
      * Send TEXT data frame <b>regardless of lock state</b>.
      *
@@ -39,6 +49,34 @@ public interface FrameTx {
      */
     void sendBinaryAsync(byte[] data);
 
+    /**
+     * Send non-partial BINARY data frame <b>under the rule of lock state</b>.
+     *
+     * @param data Application data.
+     * @param callback Notified when the frame is written to the socket. {@code null} if not required.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendBinaryAsync(byte[] data, SendCallback callback);
+
+    /**
+     * Send non-partial BINARY data frame <b>under the rule of lock state</b>.<br>
+     * Remaining bytes of the buffer are sent. Position of the buffer is not changed.
+     *
+     * @param data Application data. Contents must not be modified until the frame is written.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendBinaryAsync(ByteBuffer data);
+
+    /**
+     * Send non-partial BINARY data frame <b>under the rule of lock state</b>.<br>
+     * Remaining bytes of the buffer are sent. Position of the buffer is not changed.
+     *
+     * @param data Application data. Contents must not be modified until the frame is written.
+     * @param callback Notified when the frame is written to the socket. {@code null} if not required.
+     * @throws IllegalStateException If lock is held somewhere.
+     */
+    void sendBinaryAsync(ByteBuffer data, SendCallback callback);
+
     /**
      * Send BINARY data frame <b>regardless of lock state</b>.
      *
@@ -55,6 +93,14 @@ public interface FrameTx {
      */
     void sendPingAsync(String message);
 
+    /**
+     * Send PING frame for keep-alive or check of peer's activity.
+     *
+     * @param message PING message.
+     * @param callback Notified when the frame is written to the socket. {@code null} if not required.
+     */
+    void sendPingAsync(String message, SendCallback callback);
+
     /**
      * Send PONG frame as a response for PING message.
      *
@@ -70,6 +116,15 @@ public interface FrameTx {
      */
     void sendCloseAsync(CloseStatusCode code, String reason);
 
+    /**
+     * Send CLOSE frame before closing connection.
+     *
+     * @param code WebSocket status code
+     * @param reason Close reason. This might be {@code null}.
+     * @param callback Notified when the frame is written to the socket. {@code null} if not required.
+     */
+    void sendCloseAsync(CloseStatusCode code, String reason, SendCallback callback);
+
     /**
      * Set WebSocket extensions to be used on this session.
      *
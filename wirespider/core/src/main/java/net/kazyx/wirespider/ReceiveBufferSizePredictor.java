@@ -0,0 +1,82 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+/**
+ * Predicts the size of the next receive buffer from the amount of data actually read.<br>
+ * The size grows quickly while the reads fill up the buffer, and shrinks slowly while they do not.
+ */
+class ReceiveBufferSizePredictor {
+    static final int MIN_SIZE = 512;
+    static final int INITIAL_SIZE = 4096;
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int[] SIZE_TABLE;
+
+    static {
+        int count = 0;
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            count++;
+        }
+        SIZE_TABLE = new int[count];
+        for (int i = 0, size = MIN_SIZE; i < count; i++, size <<= 1) {
+            SIZE_TABLE[i] = size;
+        }
+    }
+
+    private static final int INDEX_INCREMENT = 2;
+    private static final int INDEX_DECREMENT = 1;
+
+    private int mIndex;
+    private volatile int mNextSize;
+    private boolean mDecreaseNow;
+
+    ReceiveBufferSizePredictor() {
+        mIndex = indexOf(INITIAL_SIZE);
+        mNextSize = SIZE_TABLE[mIndex];
+    }
+
+    /**
+     * @return Size of the buffer to be used for the next read.
+     */
+    int nextReceiveBufferSize() {
+        return mNextSize;
+    }
+
+    /**
+     * Update prediction by the result of the read.
+     *
+     * @param actualReadBytes Number of bytes read by the last read operation.
+     */
+    void record(int actualReadBytes) {
+        if (actualReadBytes <= SIZE_TABLE[Math.max(0, mIndex - INDEX_DECREMENT)]) {
+            if (mDecreaseNow) {
+                mIndex = Math.max(mIndex - INDEX_DECREMENT, 0);
+                mNextSize = SIZE_TABLE[mIndex];
+                mDecreaseNow = false;
+            } else {
+                mDecreaseNow = true;
+            }
+        } else if (actualReadBytes >= mNextSize) {
+            mIndex = Math.min(mIndex + INDEX_INCREMENT, SIZE_TABLE.length - 1);
+            mNextSize = SIZE_TABLE[mIndex];
+            mDecreaseNow = false;
+        }
+    }
+
+    private static int indexOf(int size) {
+        for (int i = 0; i < SIZE_TABLE.length; i++) {
+            if (size <= SIZE_TABLE[i]) {
+                return i;
+            }
+        }
+        return SIZE_TABLE.length - 1;
+    }
+}
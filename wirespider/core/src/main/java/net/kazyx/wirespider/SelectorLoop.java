@@ -9,14 +9,34 @@
 
 package net.kazyx.wirespider;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector threads to handle I/O events of the WebSocket connections.
+ */
 public interface SelectorLoop {
+    /**
+     * Stop the selector threads and release all of the channels registered to them.
+     */
     void destroy();
 
     /**
-     * Register new WebSocket to the Selector.
+     * Register new WebSocket to the Selector.<br>
+     * The channel is owned by the selected thread until it is closed.
      *
      * @param ws WebSocket to be registered.
      * @param ops Selector operations.
      */
     void register(WebSocket ws, int ops);
+
+    /**
+     * Run the task on the selector thread which the WebSocket is registered to, after the given delay.<br>
+     * The delay is rounded up to the resolution of the selector, which is a millisecond.
+     *
+     * @param ws WebSocket whose selector thread runs the task.
+     * @param task Task to run.
+     * @param delay Delay to run the task.
+     * @param unit Unit of the delay.
+     */
+    void schedule(WebSocket ws, Runnable task, long delay, TimeUnit unit);
 }
@@ -0,0 +1,31 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.io.IOException;
+
+/**
+ * Completion callback of a message sending.
+ */
+public interface SendCallback {
+    /**
+     * The last byte of the message is written to the socket.<br>
+     * This is called on the selector thread, or on the sending thread if the message is written immediately.
+     * It must not block.
+     */
+    void onSent();
+
+    /**
+     * The message is not written to the socket since the connection is closed.
+     *
+     * @param e Cause of the failure.
+     */
+    void onFailure(IOException e);
+}
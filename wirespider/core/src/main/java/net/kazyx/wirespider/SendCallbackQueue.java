@@ -0,0 +1,113 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * {@link SendCallback}s waiting for the data to be written to the socket.<br>
+ * Each callback is tied to the cumulative number of bytes to be written until its data is written completely.
+ * It is used by {@link Session} implementations.
+ */
+public final class SendCallbackQueue {
+    private static class Entry {
+        final long endMark;
+        final SendCallback callback;
+
+        Entry(long endMark, SendCallback callback) {
+            this.endMark = endMark;
+            this.callback = callback;
+        }
+    }
+
+    private final Deque<Entry> mEntries = new ArrayDeque<>();
+
+    private boolean mIsClosed = false;
+
+    /**
+     * @param endMark Cumulative number of bytes written when the data is written completely.
+     * Must not be smaller than the one of the callback added previously.
+     * @param callback Callback to be notified.
+     * @return {@code false} if this queue is already failed by {@link #failAll(IOException)}.
+     */
+    public boolean add(long endMark, SendCallback callback) {
+        synchronized (mEntries) {
+            if (mIsClosed) {
+                return false;
+            }
+            mEntries.addLast(new Entry(endMark, callback));
+            return true;
+        }
+    }
+
+    /**
+     * Notify completion to the callbacks whose data is written.
+     *
+     * @param writtenMark Cumulative number of bytes written to the socket.
+     */
+    public void complete(long writtenMark) {
+        while (true) {
+            Entry entry;
+            synchronized (mEntries) {
+                entry = mEntries.peekFirst();
+                if (entry == null || writtenMark < entry.endMark) {
+                    return;
+                }
+                mEntries.removeFirst();
+            }
+            entry.callback.onSent();
+        }
+    }
+
+    /**
+     * Move the callbacks whose data is consumed to another queue, to be tied to the bytes transformed from the data, e.g. encrypted.<br>
+     * The callbacks are failed if {@code target} is already failed.
+     *
+     * @param target Queue to which the callbacks are moved.
+     * @param consumedMark Cumulative number of bytes consumed.
+     * @param endMark Cumulative number of the transformed bytes to be written, when the consumed bytes are written completely.
+     */
+    public void transferTo(SendCallbackQueue target, long consumedMark, long endMark) {
+        while (true) {
+            Entry entry;
+            synchronized (mEntries) {
+                entry = mEntries.peekFirst();
+                if (entry == null || consumedMark < entry.endMark) {
+                    return;
+                }
+                mEntries.removeFirst();
+            }
+            if (!target.add(endMark, entry.callback)) {
+                entry.callback.onFailure(new IOException("Session is closed"));
+            }
+        }
+    }
+
+    /**
+     * Notify failure to all of the pending callbacks. Callbacks added after this are rejected.
+     *
+     * @param e Cause of the failure.
+     */
+    public void failAll(IOException e) {
+        while (true) {
+            Entry entry;
+            synchronized (mEntries) {
+                mIsClosed = true;
+                entry = mEntries.pollFirst();
+                if (entry == null) {
+                    return;
+                }
+            }
+            entry.callback.onFailure(e);
+        }
+    }
+}
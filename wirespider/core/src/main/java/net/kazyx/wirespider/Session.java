@@ -18,13 +18,50 @@ import java.nio.ByteBuffer;
  */
 public interface Session extends Closeable {
     /**
-     * Write data from the given {@link ByteBuffer}
+     * Write data from the given {@link ByteBuffer}<br>
+     * The buffer is owned by this session from now on, and released to the {@link net.kazyx.wirespider.buffer.BufferAllocator} after it is written.
      *
      * @param buffer The buffer from which bytes are to be retrieved
      * @throws IOException If some other I/O error occurs
      */
     void enqueueWrite(ByteBuffer buffer) throws IOException;
 
+    /**
+     * Write data from the given buffers in order, without being interleaved with other data.<br>
+     * The buffers are owned by this session from now on, and released to the {@link net.kazyx.wirespider.buffer.BufferAllocator} after they are written.
+     *
+     * @param buffers The buffers from which bytes are to be retrieved
+     * @throws IOException If some other I/O error occurs
+     */
+    void enqueueWrite(ByteBuffer[] buffers) throws IOException;
+
+    /**
+     * Write data from the given buffers in order, without being interleaved with other data.<br>
+     * The buffers are owned by this session from now on, and released to the {@link net.kazyx.wirespider.buffer.BufferAllocator} after they are written.
+     *
+     * @param buffers The buffers from which bytes are to be retrieved
+     * @param callback Notified when the last byte is written to the SocketChannel, or when the session is closed before that.
+     * Not notified if this method throws {@link IOException}. {@code null} if not required.
+     * @throws IOException If some other I/O error occurs
+     */
+    void enqueueWrite(ByteBuffer[] buffers, SendCallback callback) throws IOException;
+
+    /**
+     * Hold the enqueued data while corked, so that it is written to the SocketChannel together after uncorked.<br>
+     * Data being written when corked might still be written.
+     *
+     * @param corked {@code true} to cork, {@code false} to uncork and write the held data.
+     * @throws IOException If some other I/O error occurs
+     */
+    void setCorked(boolean corked) throws IOException;
+
+    /**
+     * Write the data held so far, while the data enqueued after this is still held until uncorked.
+     *
+     * @throws IOException If some other I/O error occurs
+     */
+    void releaseHeld() throws IOException;
+
     /**
      * Ready to write data into the SocketChannel.
      *
@@ -46,9 +83,19 @@ public interface Session extends Closeable {
      */
     void setListener(Listener listener);
 
+    /**
+     * @return Size of the buffer currently used to read data from the SocketChannel.
+     */
+    int receiveBufferSize();
+
+    /**
+     * @return Number of bytes enqueued but not yet written to the SocketChannel.
+     */
+    long bufferedAmount();
+
     interface Listener {
         /**
-         * @param data Received application data.
+         * @param data Received application data. Ownership of the buffer is passed to the listener.
          */
         void onAppDataReceived(ByteBuffer data);
 
@@ -56,5 +103,10 @@ public interface Session extends Closeable {
          * Ready to handle application data.
          */
         void onConnected();
+
+        /**
+         * @return Number of bytes required to complete the frame currently being received, or {@code 0} if unknown.
+         */
+        int pendingBytes();
     }
 }
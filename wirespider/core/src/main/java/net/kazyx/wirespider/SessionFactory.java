@@ -17,8 +17,9 @@ public interface SessionFactory {
      * Create a new TCP connection wrapper with the given {@link SelectionKey}.
      *
      * @param key Selection key of the connection.
+     * @param request Request which the connection is opened for.
      * @return Newly created {@link Session}.
      * @throws IOException If failed to create new session.
      */
-    Session createNew(SelectionKey key) throws IOException;
+    Session createNew(SelectionKey key, SessionRequest request) throws IOException;
 }
@@ -27,34 +27,86 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Group of selector threads.<br>
+ * Each channel is owned by the selector thread which it is registered to for its whole lifetime.
+ */
 class SessionManager implements SelectorLoop {
     private static final String TAG = SessionManager.class.getSimpleName();
 
-    private final Map<SocketChannel, Session> mSessionMap = new ConcurrentHashMap<>();
-
     private final SessionFactory mDefaultFactory = new DefaultSessionFactory();
     private final SessionFactory mSecureFactory = new SecureSessionFactory();
 
-    SessionManager(SelectorProvider provider) throws IOException {
-        mSelectorThread = new SelectorThread(provider.openSelector());
-        mSelectorThread.start();
+    private final SelectorThread[] mSelectorThreads;
+
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+
+    /**
+     * @param provider Provider of the selectors.
+     * @param numThreads Number of the selector threads.
+     * @throws IOException Failed to open selector.
+     * @throws IllegalArgumentException If {@code numThreads} is zero or negative value.
+     */
+    SessionManager(SelectorProvider provider, int numThreads) throws IOException {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of selector threads must be positive value");
+        }
+
+        mSelectorThreads = new SelectorThread[numThreads];
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                mSelectorThreads[i] = new SelectorThread(provider.openSelector(), "ws-selector-" + i);
+            }
+        } catch (IOException e) {
+            for (SelectorThread thread : mSelectorThreads) {
+                if (thread != null) {
+                    IOUtil.close(thread.mSelector);
+                }
+            }
+            throw e;
+        }
+
+        for (SelectorThread thread : mSelectorThreads) {
+            thread.start();
+        }
     }
 
     @Override
     public void destroy() {
-        mSelectorThread.interrupt();
+        for (SelectorThread thread : mSelectorThreads) {
+            thread.interrupt();
+        }
     }
 
     private class SelectorThread extends Thread {
         private final Selector mSelector;
 
-        SelectorThread(Selector selector) {
-            super("ws-selector");
+        private final Map<SocketChannel, Session> mSessionMap = new ConcurrentHashMap<>();
+
+        /**
+         * Number of the keys registered to the selector. Updated only by this thread.
+         */
+        private volatile int mKeyCount = 0;
+
+        /**
+         * Number of the channels waiting for registration.
+         */
+        private final AtomicInteger mPendingCount = new AtomicInteger();
+
+        SelectorThread(Selector selector, String name) {
+            super(name);
             mSelector = selector;
         }
 
+        int load() {
+            return mKeyCount + mPendingCount.get();
+        }
+
         @Override
         public void run() {
             // Log.d(TAG, "SelectorThread started");
@@ -76,7 +128,7 @@ class SessionManager implements SelectorLoop {
                                         String scheme = ws.remoteUri().getScheme().toLowerCase(Locale.US);
                                         SessionFactory factory = WebSocket.WSS_SCHEME.equals(scheme) ? mSecureFactory : mDefaultFactory;
                                         SelectionKeyUtil.interestOps(key, SelectionKey.OP_READ);
-                                        final Session session = factory.createNew(key);
+                                        final Session session = factory.createNew(key, ws.sessionRequest());
                                         session.setListener(new Session.Listener() {
                                             @Override
                                             public void onAppDataReceived(ByteBuffer data) {
@@ -87,6 +139,11 @@ class SessionManager implements SelectorLoop {
                                             public void onConnected() {
                                                 ws.socketChannelProxy().onConnected(session);
                                             }
+
+                                            @Override
+                                            public int pendingBytes() {
+                                                return ws.socketChannelProxy().pendingBytes();
+                                            }
                                         });
                                         mSessionMap.put(ch, session);
                                         continue;
@@ -106,6 +163,7 @@ class SessionManager implements SelectorLoop {
                                         }
                                         if (key.isWritable()) {
                                             session.onFlushReady();
+                                            ws.socketChannelProxy().onFlushed();
                                         }
                                     } catch (IOException | CancelledKeyException e) {
                                         IOUtil.close(session);
@@ -137,9 +195,21 @@ class SessionManager implements SelectorLoop {
 
         private final List<Runnable> mQueue = new ArrayList<>();
 
+        /**
+         * Tasks to be run at the deadline. Guarded by {@link #mQueue}.
+         */
+        private final PriorityQueue<ScheduledTask> mScheduledTasks = new PriorityQueue<>();
+
         private boolean select() {
             try {
-                mSelector.select();
+                long timeout = nextTimeoutMillis();
+                if (timeout < 0) {
+                    mSelector.select();
+                } else if (timeout == 0) {
+                    mSelector.selectNow();
+                } else {
+                    mSelector.select(timeout);
+                }
                 //Log.d(TAG, "selected: " + selected);
                 if (this.isInterrupted()) {
                     return false;
@@ -151,6 +221,8 @@ class SessionManager implements SelectorLoop {
                         itr.remove();
                     }
                 }
+                runScheduledTasks();
+                mKeyCount = mSelector.keys().size();
                 return true;
             } catch (IOException e) {
                 WsLog.printStackTrace(TAG, e);
@@ -158,11 +230,53 @@ class SessionManager implements SelectorLoop {
             }
         }
 
+        /**
+         * @return Timeout of the next select operation in milliseconds, {@code 0} if a task is already due, or {@code -1} if no task is scheduled.
+         */
+        private long nextTimeoutMillis() {
+            synchronized (mQueue) {
+                ScheduledTask next = mScheduledTasks.peek();
+                if (next == null) {
+                    return -1;
+                }
+                long delay = next.deadline - System.nanoTime();
+                if (delay <= 0) {
+                    return 0;
+                }
+                // Round up, since the resolution of the selector timeout is a millisecond.
+                return (delay + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+            }
+        }
+
+        private void runScheduledTasks() {
+            long now = System.nanoTime();
+            while (true) {
+                ScheduledTask task;
+                synchronized (mQueue) {
+                    task = mScheduledTasks.peek();
+                    if (task == null || now - task.deadline < 0) {
+                        return;
+                    }
+                    mScheduledTasks.poll();
+                }
+                task.task.run();
+            }
+        }
+
+        void schedule(Runnable task, long delayNanos) {
+            synchronized (mQueue) {
+                mScheduledTasks.add(new ScheduledTask(System.nanoTime() + delayNanos, task));
+            }
+            mSelector.wakeup();
+        }
+
         void registerNewChannel(final SocketChannel channel, final int ops, final WebSocket ws) {
+            mPendingCount.incrementAndGet();
             synchronized (mQueue) {
                 mQueue.add(new Runnable() {
                     @Override
                     public void run() {
+                        mPendingCount.decrementAndGet();
                         try {
                             channel.register(mSelector, ops, ws);
                         } catch (ClosedChannelException e) {
@@ -175,10 +289,54 @@ class SessionManager implements SelectorLoop {
         }
     }
 
-    private final SelectorThread mSelectorThread;
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        final Runnable task;
 
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask another) {
+            long diff = deadline - another.deadline;
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * Register new WebSocket to the least loaded selector thread.<br>
+     * Round-robin is used to break the tie.
+     *
+     * @param ws WebSocket to be registered.
+     * @param ops Selector operations.
+     */
     @Override
     public void register(WebSocket ws, int ops) {
-        mSelectorThread.registerNewChannel(ws.socketChannel(), ops, ws);
+        int start = (mNextIndex.getAndIncrement() & Integer.MAX_VALUE) % mSelectorThreads.length;
+        SelectorThread target = mSelectorThreads[start];
+        int minLoad = target.load();
+        for (int i = 1; i < mSelectorThreads.length && minLoad != 0; i++) {
+            SelectorThread candidate = mSelectorThreads[(start + i) % mSelectorThreads.length];
+            int load = candidate.load();
+            if (load < minLoad) {
+                target = candidate;
+                minLoad = load;
+            }
+        }
+        target.registerNewChannel(ws.socketChannel(), ops, ws);
+    }
+
+    @Override
+    public void schedule(WebSocket ws, Runnable task, long delay, TimeUnit unit) {
+        for (SelectorThread thread : mSelectorThreads) {
+            if (ws.socketChannel().keyFor(thread.mSelector) != null) {
+                thread.schedule(task, unit.toNanos(delay));
+                return;
+            }
+        }
+        // Not registered to any selector. Nothing is waiting for the task on the selector threads.
+        task.run();
     }
 }
@@ -9,6 +9,8 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.buffer.BufferAllocator;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
 import net.kazyx.wirespider.delegate.HandshakeResponseHandler;
 import net.kazyx.wirespider.delegate.SocketBinder;
 import net.kazyx.wirespider.extension.ExtensionRequest;
@@ -18,9 +20,11 @@ import net.kazyx.wirespider.util.ArgumentCheck;
 import java.net.URI;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public final class SessionRequest {
+    private static final int MAX_TLS_RECORD_SIZE = 16384;
 
     private SessionRequest(Builder builder) {
         this.mUri = builder.uri;
@@ -37,6 +41,17 @@ public final class SessionRequest {
         mHsHandler = builder.hsHandler;
         mConnectionTimeout = builder.connTimeout;
         mConnTimeoutUnit = builder.connTimeoutUnit;
+        mAllocator = builder.allocator;
+        mFlushBudget = builder.flushBudget;
+        mLowWatermark = builder.lowWatermark;
+        mHighWatermark = builder.highWatermark;
+        mOverflowPolicy = builder.overflowPolicy;
+        mWriteLinger = builder.writeLinger;
+        mWriteLingerUnit = builder.writeLingerUnit;
+        mTaskExecutor = builder.taskExecutor;
+        mTlsRecordSize = builder.tlsRecordSize;
+        mFilterExecutor = builder.filterExecutor;
+        mFilterOffloadThreshold = builder.filterOffloadThreshold;
     }
 
     private URI mUri;
@@ -99,6 +114,72 @@ public final class SessionRequest {
         return mConnTimeoutUnit;
     }
 
+    private BufferAllocator mAllocator;
+
+    public BufferAllocator bufferAllocator() {
+        return mAllocator;
+    }
+
+    private int mFlushBudget;
+
+    public int flushBudgetInBytes() {
+        return mFlushBudget;
+    }
+
+    private int mLowWatermark;
+
+    public int writeBufferLowWatermark() {
+        return mLowWatermark;
+    }
+
+    private int mHighWatermark;
+
+    public int writeBufferHighWatermark() {
+        return mHighWatermark;
+    }
+
+    private WriteOverflowPolicy mOverflowPolicy;
+
+    public WriteOverflowPolicy writeOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    private long mWriteLinger;
+
+    public long writeLinger() {
+        return mWriteLinger;
+    }
+
+    private TimeUnit mWriteLingerUnit;
+
+    public TimeUnit writeLingerUnit() {
+        return mWriteLingerUnit;
+    }
+
+    private Executor mTaskExecutor;
+
+    public Executor delegatedTaskExecutor() {
+        return mTaskExecutor;
+    }
+
+    private int mTlsRecordSize;
+
+    public int tlsRecordSize() {
+        return mTlsRecordSize;
+    }
+
+    private Executor mFilterExecutor;
+
+    public Executor filterExecutor() {
+        return mFilterExecutor;
+    }
+
+    private int mFilterOffloadThreshold;
+
+    public int filterOffloadThreshold() {
+        return mFilterOffloadThreshold;
+    }
+
     public static class Builder {
         private final URI uri;
         private final WebSocketHandler handler;
@@ -208,6 +289,160 @@ public final class SessionRequest {
             return this;
         }
 
+        private BufferAllocator allocator = PooledBufferAllocator.shared();
+
+        /**
+         * Set {@link BufferAllocator} to be used for socket reads and outgoing frames.<br>
+         * {@link PooledBufferAllocator#shared()} is used by default.
+         *
+         * @param allocator Buffer allocator.
+         * @return This builder.
+         */
+        public Builder setBufferAllocator(BufferAllocator allocator) {
+            ArgumentCheck.rejectNull(allocator);
+            this.allocator = allocator;
+            return this;
+        }
+
+        private int flushBudget = 256 * 1024;
+
+        /**
+         * Set maximum size of data to be written to the socket on each write-ready event.<br>
+         * Queued frames are flushed by a gathering write up to this size. 256 KB by default.
+         *
+         * @param size Budget in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code size} is zero or negative value.
+         */
+        public Builder setFlushBudgetInBytes(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("Flush budget must be positive value");
+            }
+            this.flushBudget = size;
+            return this;
+        }
+
+        private int lowWatermark = 256 * 1024;
+        private int highWatermark = 1024 * 1024;
+
+        /**
+         * Set watermarks of the data buffered to be written to the socket.<br>
+         * The connection becomes unwritable when the buffered amount exceeds {@code high},
+         * and becomes writable again when it drops to {@code low}. 256 KB and 1 MB by default.
+         *
+         * @param low Low watermark in bytes.
+         * @param high High watermark in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code low} is negative, {@code high} is not positive, or {@code low} is larger than {@code high}.
+         * @see WebSocketHandler#onWritabilityChanged(boolean)
+         */
+        public Builder setWriteBufferWatermarks(int low, int high) {
+            if (low < 0 || high < 1 || high < low) {
+                throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high and 0 < high");
+            }
+            this.lowWatermark = low;
+            this.highWatermark = high;
+            return this;
+        }
+
+        private WriteOverflowPolicy overflowPolicy = WriteOverflowPolicy.BUFFER;
+
+        /**
+         * Set behavior of sending data messages while the connection is unwritable.<br>
+         * {@link WriteOverflowPolicy#BUFFER} by default.
+         *
+         * @param policy Overflow policy.
+         * @return This builder.
+         */
+        public Builder setWriteOverflowPolicy(WriteOverflowPolicy policy) {
+            ArgumentCheck.rejectNull(policy);
+            this.overflowPolicy = policy;
+            return this;
+        }
+
+        private long writeLinger = 0;
+        private TimeUnit writeLingerUnit = TimeUnit.MILLISECONDS;
+
+        /**
+         * Set maximum delay of writing frames to coalesce them into fewer socket writes.<br>
+         * Frames sent within the delay after the first one are written together. Disabled by default.<br>
+         * The delay is rounded up to the resolution of the selector, which is a millisecond.
+         *
+         * @param linger Maximum delay, or {@code 0} to write frames immediately.
+         * @param unit Unit of the delay.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code linger} is negative value, or {@code unit} is {@code null}.
+         * @see WebSocket#cork()
+         */
+        public Builder setWriteLinger(long linger, TimeUnit unit) {
+            if (linger < 0) {
+                throw new IllegalArgumentException("Linger must not be negative value");
+            }
+            ArgumentCheck.rejectNull(unit);
+            this.writeLinger = linger;
+            this.writeLingerUnit = unit;
+            return this;
+        }
+
+        private Executor taskExecutor;
+
+        /**
+         * Set {@link Executor} to run TLS handshake tasks, such as certificate validation and key exchange.<br>
+         * The connection does not proceed while its tasks are running, but the other connections on the same selector thread do.<br>
+         * If nothing is set, the tasks are run on the selector thread.
+         *
+         * @param executor Executor to run the tasks.
+         * @return This builder.
+         */
+        public Builder setDelegatedTaskExecutor(Executor executor) {
+            ArgumentCheck.rejectNull(executor);
+            this.taskExecutor = executor;
+            return this;
+        }
+
+        private int tlsRecordSize = MAX_TLS_RECORD_SIZE;
+
+        /**
+         * Set maximum size of application data in a TLS record. 16384 bytes, which is the maximum of TLS, by default.<br>
+         * Frames smaller than a record are coalesced into one record until they are written to the socket.
+         * Smaller records let the peer decrypt the beginning of a message earlier, at the cost of the TLS overhead per record.
+         *
+         * @param size Maximum size in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code size} is not positive value or larger than 16384.
+         */
+        public Builder setTlsRecordSize(int size) {
+            if (size <= 0 || size > MAX_TLS_RECORD_SIZE) {
+                throw new IllegalArgumentException("Record size must be 1 to " + MAX_TLS_RECORD_SIZE);
+            }
+            this.tlsRecordSize = size;
+            return this;
+        }
+
+        private Executor filterExecutor;
+        private int filterOffloadThreshold = Integer.MAX_VALUE;
+
+        /**
+         * Set {@link Executor} to run the extension filters, such as compression and decompression, of large messages.<br>
+         * Messages of a connection are still sent and received in order: while a message is filtered on the executor,
+         * the following messages and callbacks of the connection wait for it on the same executor.<br>
+         * If nothing is set, outgoing messages are filtered on the sending thread, and incoming ones on the selector thread.
+         *
+         * @param executor Executor to run the filters.
+         * @param thresholdInBytes Minimum payload size of the messages to be filtered on the executor.
+         * @return This builder.
+         * @throws IllegalArgumentException If {@code thresholdInBytes} is negative.
+         */
+        public Builder setFilterOffload(Executor executor, int thresholdInBytes) {
+            ArgumentCheck.rejectNull(executor);
+            if (thresholdInBytes < 0) {
+                throw new IllegalArgumentException("Threshold must not be negative");
+            }
+            this.filterExecutor = executor;
+            this.filterOffloadThreshold = thresholdInBytes;
+            return this;
+        }
+
         /**
          * Create a {@link SessionRequest} with current configurations.
          *
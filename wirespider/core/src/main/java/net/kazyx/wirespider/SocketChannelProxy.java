@@ -9,6 +9,8 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.buffer.BufferAllocator;
+import net.kazyx.wirespider.exception.WriteBufferFullException;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.WsLog;
 
@@ -21,14 +23,45 @@ class SocketChannelProxy implements SocketChannelWriter {
     private Session mSession;
     private final Listener mListener;
 
-    private boolean mIsClosed = false;
+    private volatile boolean mIsClosed = false;
 
-    SocketChannelProxy(Listener listener) {
+    private final BufferAllocator mAllocator;
+
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+    private final WriteOverflowPolicy mOverflowPolicy;
+
+    private final Object mWritabilityLock = new Object();
+    private final Object mWritabilityCallbackLock = new Object();
+    private boolean mIsWritable = true;
+    private boolean mIsWritableNotified = true;
+
+    private Thread mSelectorThread;
+
+    private final long mLingerNanos;
+
+    private final Object mCorkLock = new Object();
+    private boolean mIsCorked = false;
+    private boolean mIsLingering = false;
+    private boolean mIsSessionCorked = false;
+
+    /**
+     * Incremented for each linger window, so that the timer of an ended window does not end the current one.
+     */
+    private int mLingerGeneration = 0;
+
+    SocketChannelProxy(SessionRequest request, Listener listener) {
         mListener = listener;
+        mAllocator = request.bufferAllocator();
+        mLowWatermark = request.writeBufferLowWatermark();
+        mHighWatermark = request.writeBufferHighWatermark();
+        mOverflowPolicy = request.writeOverflowPolicy();
+        mLingerNanos = request.writeLingerUnit().toNanos(request.writeLinger());
     }
 
     void onConnected(Session session) {
         mSession = session;
+        mSelectorThread = Thread.currentThread();
         mListener.onSocketConnected();
     }
 
@@ -52,29 +85,265 @@ class SocketChannelProxy implements SocketChannelWriter {
         mListener.onDataReceived(data);
     }
 
+    int pendingBytes() {
+        return mListener.pendingBytes();
+    }
+
+    int receiveBufferSize() {
+        Session session = mSession;
+        return session == null ? 0 : session.receiveBufferSize();
+    }
+
+    long bufferedAmount() {
+        Session session = mSession;
+        return session == null ? 0 : session.bufferedAmount();
+    }
+
+    boolean isWritable() {
+        synchronized (mWritabilityLock) {
+            return mIsWritable;
+        }
+    }
+
+    /**
+     * Called on the selector thread after the buffered data is written to the socket.
+     */
+    void onFlushed() {
+        synchronized (mWritabilityLock) {
+            if (mIsWritable || mLowWatermark < bufferedAmount()) {
+                return;
+            }
+            mIsWritable = true;
+            mWritabilityLock.notifyAll();
+        }
+        notifyWritability();
+    }
+
+    /**
+     * Hold the data to be written until {@link #uncork()} is called.
+     */
+    void cork() {
+        synchronized (mCorkLock) {
+            mIsCorked = true;
+        }
+        applyCork();
+    }
+
+    /**
+     * Write the data held by {@link #cork()} or the linger.
+     */
+    void uncork() {
+        synchronized (mCorkLock) {
+            mIsCorked = false;
+            mIsLingering = false;
+            mLingerGeneration++;
+        }
+        applyCork();
+    }
+
+    /**
+     * Hold the data to be written for the linger time, if it is not held yet.
+     */
+    private void startLinger() {
+        if (mLingerNanos == 0) {
+            return;
+        }
+        final int generation;
+        synchronized (mCorkLock) {
+            if (mIsCorked || mIsLingering) {
+                return;
+            }
+            mIsLingering = true;
+            generation = ++mLingerGeneration;
+        }
+        applyCork();
+        mListener.schedule(new Runnable() {
+            @Override
+            public void run() {
+                endLinger(generation);
+            }
+        }, mLingerNanos);
+    }
+
+    private void endLinger(int generation) {
+        synchronized (mCorkLock) {
+            if (generation != mLingerGeneration || !mIsLingering) {
+                return;
+            }
+            mIsLingering = false;
+        }
+        applyCork();
+    }
+
+    private void releaseHeld() {
+        Session session = mSession;
+        if (session == null) {
+            return;
+        }
+        try {
+            synchronized (mCorkLock) {
+                if (mIsSessionCorked) {
+                    session.releaseHeld();
+                }
+            }
+        } catch (IOException e) {
+            IOUtil.close(session);
+            onClosed();
+        }
+    }
+
+    private void applyCork() {
+        Session session = mSession;
+        if (session == null) {
+            return;
+        }
+        try {
+            synchronized (mCorkLock) {
+                boolean corked = mIsCorked || mIsLingering;
+                if (corked == mIsSessionCorked) {
+                    return;
+                }
+                mIsSessionCorked = corked;
+                session.setCorked(corked);
+            }
+        } catch (IOException e) {
+            IOUtil.close(session);
+            onClosed();
+        }
+    }
+
     @Override
     public void writeAsync(ByteBuffer data) {
         writeAsync(data, false);
     }
 
     @Override
-    public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+    public void writeAsync(ByteBuffer data, boolean bypassFlowControl) {
         // Log.d(TAG, "writeAsync");
         if (mIsClosed || mSession == null) {
             WsLog.d(TAG, "Quit writeAsync due to closed state");
+            mAllocator.release(data);
             return;
         }
+        if (!bypassFlowControl && !awaitWritable()) {
+            mAllocator.release(data);
+            throw new WriteBufferFullException("Buffered amount exceeds the high watermark");
+        }
+        if (!bypassFlowControl) {
+            startLinger();
+        }
         try {
             mSession.enqueueWrite(data);
         } catch (IOException e) {
             IOUtil.close(mSession);
             onClosed();
+            return;
+        }
+        onEnqueued();
+    }
+
+    @Override
+    public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl) {
+        writeAsync(data, bypassFlowControl, null);
+    }
+
+    @Override
+    public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback) {
+        if (mIsClosed || mSession == null) {
+            WsLog.d(TAG, "Quit writeAsync due to closed state");
+            for (ByteBuffer buff : data) {
+                mAllocator.release(buff);
+            }
+            if (callback != null) {
+                callback.onFailure(new IOException("Connection is closed"));
+            }
+            return;
+        }
+        if (!bypassFlowControl && !awaitWritable()) {
+            for (ByteBuffer buff : data) {
+                mAllocator.release(buff);
+            }
+            throw new WriteBufferFullException("Buffered amount exceeds the high watermark");
+        }
+        if (!bypassFlowControl) {
+            startLinger();
+        }
+        try {
+            mSession.enqueueWrite(data, callback);
+        } catch (IOException e) {
+            IOUtil.close(mSession);
+            onClosed();
+            if (callback != null) {
+                callback.onFailure(e);
+            }
+            return;
+        }
+        onEnqueued();
+    }
+
+    /**
+     * Apply {@link WriteOverflowPolicy} to the data to be written.<br>
+     * Data written on the selector thread is never held back, since the buffer can drain only on that thread.
+     *
+     * @return {@code false} if the data must be rejected.
+     */
+    private boolean awaitWritable() {
+        if (mOverflowPolicy == WriteOverflowPolicy.BUFFER || Thread.currentThread() == mSelectorThread) {
+            return true;
+        }
+        synchronized (mWritabilityLock) {
+            if (mOverflowPolicy == WriteOverflowPolicy.FAIL) {
+                return mIsWritable;
+            }
+            while (!mIsWritable && !mIsClosed) {
+                try {
+                    mWritabilityLock.wait();
+                } catch (InterruptedException e) {
+                    // Data is buffered rather than lost.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void onEnqueued() {
+        if (bufferedAmount() <= mHighWatermark) {
+            return;
+        }
+        // Held data must be written to drain the buffer. Cork and linger still hold the following data.
+        releaseHeld();
+        synchronized (mWritabilityLock) {
+            if (!mIsWritable || bufferedAmount() <= mHighWatermark) {
+                return;
+            }
+            mIsWritable = false;
+        }
+        notifyWritability();
+    }
+
+    private void notifyWritability() {
+        // Notify the latest state only, so that the callbacks never go out of order.
+        synchronized (mWritabilityCallbackLock) {
+            boolean writable;
+            synchronized (mWritabilityLock) {
+                writable = mIsWritable;
+                if (writable == mIsWritableNotified) {
+                    return;
+                }
+                mIsWritableNotified = writable;
+            }
+            mListener.onWritabilityChanged(writable);
         }
     }
 
     void close() {
         mIsClosed = true;
         IOUtil.close(mSession);
+        synchronized (mWritabilityLock) {
+            mWritabilityLock.notifyAll();
+        }
     }
 
     interface Listener {
@@ -94,5 +363,25 @@ class SocketChannelProxy implements SocketChannelWriter {
          * @param data Received data.
          */
         void onDataReceived(ByteBuffer data);
+
+        /**
+         * @return Number of bytes required to complete the frame currently being received, or {@code 0} if unknown.
+         */
+        int pendingBytes();
+
+        /**
+         * Called when the buffered amount crosses the watermarks.
+         *
+         * @param writable {@code true} if the buffered amount drained to the low watermark.
+         */
+        void onWritabilityChanged(boolean writable);
+
+        /**
+         * Run the task on the selector thread after the delay.
+         *
+         * @param task Task to run.
+         * @param delayNanos Delay in nanoseconds.
+         */
+        void schedule(Runnable task, long delayNanos);
     }
 }
@@ -24,7 +24,28 @@ public interface SocketChannelWriter {
      * Write data into the SocketChannel.
      *
      * @param data Data to write.
-     * @param calledOnSelectorThread {@code true} to invoke this on the selector's thread.
+     * @param bypassFlowControl {@code true} to write without {@link WriteOverflowPolicy} and linger,
+     * as for control frames and the handshake.
      */
-    void writeAsync(ByteBuffer data, boolean calledOnSelectorThread);
+    void writeAsync(ByteBuffer data, boolean bypassFlowControl);
+
+    /**
+     * Write multiple buffers into the SocketChannel in order, without being interleaved with other data.
+     *
+     * @param data Data to write.
+     * @param bypassFlowControl {@code true} to write without {@link WriteOverflowPolicy} and linger,
+     * as for control frames and the handshake.
+     */
+    void writeAsync(ByteBuffer[] data, boolean bypassFlowControl);
+
+    /**
+     * Write multiple buffers into the SocketChannel in order, without being interleaved with other data.
+     *
+     * @param data Data to write.
+     * @param bypassFlowControl {@code true} to write without {@link WriteOverflowPolicy} and linger,
+     * as for control frames and the handshake.
+     * @param callback Notified when the last byte is written to the SocketChannel, or when the connection is closed before that.
+     * {@code null} if not required.
+     */
+    void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback);
 }
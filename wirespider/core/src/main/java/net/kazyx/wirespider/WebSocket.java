@@ -9,8 +9,10 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.buffer.BufferAllocator;
 import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.exception.PayloadUnderflowException;
+import net.kazyx.wirespider.exception.WriteBufferFullException;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.util.ArgumentCheck;
 import net.kazyx.wirespider.util.IOUtil;
@@ -22,6 +24,7 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generic WebSocket connection.
@@ -61,6 +64,22 @@ public abstract class WebSocket implements Closeable {
         return mMaxResponsePayloadSize;
     }
 
+    private final SessionRequest mRequest;
+
+    final SessionRequest sessionRequest() {
+        return mRequest;
+    }
+
+    private final BufferAllocator mAllocator;
+
+    /**
+     * @return Allocator of the transient buffers of this connection.
+     * @see SessionRequest.Builder#setBufferAllocator(BufferAllocator)
+     */
+    protected final BufferAllocator bufferAllocator() {
+        return mAllocator;
+    }
+
     private final WebSocketHandler mCallbackHandler;
 
     private final Object mCloseCallbackLock = new Object();
@@ -92,12 +111,14 @@ public abstract class WebSocket implements Closeable {
 
     WebSocket(SessionRequest req, SelectorLoop loop, SocketChannel ch) {
         mURI = req.uri();
+        mRequest = req;
+        mAllocator = req.bufferAllocator();
         mCallbackHandler = req.handler();
         mMaxResponsePayloadSize = req.maxResponsePayloadSizeInBytes();
         mLoop = loop;
         mSocketChannel = ch;
 
-        mSocketChannelProxy = new SocketChannelProxy(mChannelProxyListener);
+        mSocketChannelProxy = new SocketChannelProxy(req, mChannelProxyListener);
 
         mFrameTx = newFrameTx();
         mFrameRx = newFrameRx(mRxListener);
@@ -117,6 +138,31 @@ public abstract class WebSocket implements Closeable {
 
     abstract void onHandshakeCompleted();
 
+    /**
+     * @return Size of the buffer currently used to read data from the socket, or {@code 0} if not connected.
+     * The size is adjusted to the observed traffic of this connection.
+     */
+    public int receiveBufferSize() {
+        return mSocketChannelProxy.receiveBufferSize();
+    }
+
+    /**
+     * @return Number of bytes of the messages queued to be written to the socket, or {@code 0} if not connected.
+     * For secure connections, it is the plaintext not encrypted yet plus the encrypted bytes not written yet.
+     */
+    public long bufferedAmount() {
+        return mSocketChannelProxy.bufferedAmount();
+    }
+
+    /**
+     * @return {@code false} while the buffered amount is above the high watermark.
+     * @see SessionRequest.Builder#setWriteBufferWatermarks(int, int)
+     * @see WebSocketHandler#onWritabilityChanged(boolean)
+     */
+    public boolean isWritable() {
+        return mSocketChannelProxy.isWritable();
+    }
+
     /**
      * @return Active WebSocket extensions on this session.
      */
@@ -136,30 +182,112 @@ public abstract class WebSocket implements Closeable {
      *
      * @param message Text message to send.
      * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
      */
     public void sendTextMessageAsync(String message) {
+        sendTextMessageAsync(message, null);
+    }
+
+    /**
+     * Send text message asynchronously.
+     *
+     * @param message Text message to send.
+     * @param callback Notified when the message is written to the socket, or when the connection is closed before that.
+     * {@code null} if not required.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
+     */
+    public void sendTextMessageAsync(String message, SendCallback callback) {
         ArgumentCheck.rejectNull(message);
         if (!isConnected()) {
+            notifyNotConnected(callback);
             return;
         }
 
-        mFrameTx.sendTextAsync(message);
+        mFrameTx.sendTextAsync(message, callback);
     }
 
     /**
-     * Send binary message asynchronously.<br>
-     * Note that byte array argument might be changed to the masked data in case of client side.
+     * Send binary message asynchronously.
      *
      * @param message Binary message to send.
      * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
      */
     public void sendBinaryMessageAsync(byte[] message) {
+        sendBinaryMessageAsync(message, null);
+    }
+
+    /**
+     * Send binary message asynchronously.
+     *
+     * @param message Binary message to send.
+     * @param callback Notified when the message is written to the socket, or when the connection is closed before that.
+     * {@code null} if not required.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
+     */
+    public void sendBinaryMessageAsync(byte[] message, SendCallback callback) {
+        ArgumentCheck.rejectNull(message);
+        if (!isConnected()) {
+            notifyNotConnected(callback);
+            return;
+        }
+
+        mFrameTx.sendBinaryAsync(message, callback);
+    }
+
+    /**
+     * Send binary message asynchronously.<br>
+     * Remaining bytes of the buffer are sent, and the position of the buffer is not changed.
+     * Heap or direct buffers are written to the socket with as few copies as possible,
+     * so the contents of the buffer must not be modified until the message is sent.
+     *
+     * @param message Binary message to send.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
+     */
+    public void sendBinaryMessageAsync(ByteBuffer message) {
+        sendBinaryMessageAsync(message, null);
+    }
+
+    /**
+     * Send binary message asynchronously.<br>
+     * Remaining bytes of the buffer are sent, and the position of the buffer is not changed.
+     * The contents of the buffer must not be modified until {@link SendCallback#onSent()} is called.
+     *
+     * @param message Binary message to send.
+     * @param callback Notified when the message is written to the socket, or when the connection is closed before that.
+     * {@code null} if not required.
+     * @throws IllegalStateException {@link PartialMessageWriter} derived from this {@link WebSocket} is holding lock.
+     * @throws WriteBufferFullException The connection is unwritable and {@link WriteOverflowPolicy#FAIL} is applied.
+     */
+    public void sendBinaryMessageAsync(ByteBuffer message, SendCallback callback) {
         ArgumentCheck.rejectNull(message);
         if (!isConnected()) {
+            notifyNotConnected(callback);
             return;
         }
 
-        mFrameTx.sendBinaryAsync(message);
+        mFrameTx.sendBinaryAsync(message, callback);
+    }
+
+    /**
+     * Hold the messages sent after this until {@link #uncork()} is called,
+     * so that a burst of messages is written to the socket by as few writes as possible.<br>
+     * Held messages are written without waiting for {@link #uncork()} when the buffered amount exceeds the high watermark.
+     *
+     * @see SessionRequest.Builder#setWriteLinger(long, TimeUnit)
+     */
+    public void cork() {
+        mSocketChannelProxy.cork();
+    }
+
+    /**
+     * Write the messages held by {@link #cork()} or the write linger.
+     */
+    public void uncork() {
+        mSocketChannelProxy.uncork();
     }
 
     /**
@@ -186,12 +314,24 @@ public abstract class WebSocket implements Closeable {
      * @param message Ping message to send.
      */
     public void sendPingAsync(String message) {
+        sendPingAsync(message, null);
+    }
+
+    /**
+     * Send ping frame asynchronously.
+     *
+     * @param message Ping message to send.
+     * @param callback Notified when the frame is written to the socket, or when the connection is closed before that.
+     * {@code null} if not required.
+     */
+    public void sendPingAsync(String message, SendCallback callback) {
         ArgumentCheck.rejectNull(message);
         if (!isConnected()) {
+            notifyNotConnected(callback);
             return;
         }
 
-        mFrameTx.sendPingAsync(message);
+        mFrameTx.sendPingAsync(message, callback);
     }
 
     /**
@@ -212,16 +352,42 @@ public abstract class WebSocket implements Closeable {
      * @param reason Close reason phrase to send.
      */
     public void closeAsync(final CloseStatusCode code, final String reason) {
+        closeAsync(code, reason, null);
+    }
+
+    /**
+     * Close WebSocket connection gracefully.<br>
+     * If it is already closed, nothing happens except for the failure notification to the {@code callback}.
+     *
+     * @param code Close status code to send.
+     * @param reason Close reason phrase to send.
+     * @param callback Notified when the close frame is written to the socket, or when the connection is closed before that.
+     * {@code null} if not required.
+     */
+    public void closeAsync(final CloseStatusCode code, final String reason, SendCallback callback) {
         ArgumentCheck.rejectNullArgs(code, reason);
         if (!isConnected()) {
+            notifyNotConnected(callback);
             return;
         }
 
-        sendCloseFrame(code, reason, true);
+        sendCloseFrame(code, reason, true, callback);
     }
 
-    private void sendCloseFrame(CloseStatusCode code, String reason, final boolean waitForResponse) {
-        mFrameTx.sendCloseAsync(code, reason);
+    private static void notifyNotConnected(SendCallback callback) {
+        if (callback != null) {
+            callback.onFailure(new IOException("WebSocket is not connected"));
+        }
+    }
+
+    private void sendCloseFrame(CloseStatusCode code, String reason, boolean waitForResponse) {
+        sendCloseFrame(code, reason, waitForResponse, null);
+    }
+
+    private void sendCloseFrame(CloseStatusCode code, String reason, final boolean waitForResponse, SendCallback callback) {
+        mFrameTx.sendCloseAsync(code, reason, callback);
+        // Close frame must not be held until the connection is closed.
+        mSocketChannelProxy.uncork();
 
         new Thread(new Runnable() {
             @Override
@@ -265,11 +431,20 @@ public abstract class WebSocket implements Closeable {
             if (isConnected()) {
                 WsLog.d(TAG, "Invoke onClosed", code);
                 mIsConnected = false;
+                closeExtensions();
                 mCallbackHandler.onClosed(code, reason);
             }
         }
     }
 
+    private void closeExtensions() {
+        for (Extension extension : mHandshake.extensions()) {
+            if (extension instanceof Closeable) {
+                IOUtil.close((Closeable) extension);
+            }
+        }
+    }
+
     private SocketChannelProxy.Listener mChannelProxyListener = new SocketChannelProxy.Listener() {
         @Override
         public void onSocketConnected() {
@@ -304,6 +479,7 @@ public abstract class WebSocket implements Closeable {
 
                     if (data.remaining() != 0) {
                         mFrameRx.onDataReceived(data);
+                        return;
                     }
                 } catch (PayloadUnderflowException e) {
                     // wait for the next data.
@@ -311,10 +487,30 @@ public abstract class WebSocket implements Closeable {
                     WsLog.d(TAG, "HandshakeFailureException: " + e.getMessage());
                     onHandshakeFailed(e);
                 }
+                // Handshake keeps its own copy of the data.
+                mAllocator.release(data);
             } else {
                 mFrameRx.onDataReceived(data);
             }
         }
+
+        @Override
+        public int pendingBytes() {
+            return mIsHandshakeCompleted ? mFrameRx.pendingBytes() : 0;
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            if (!isConnected()) {
+                return;
+            }
+            mCallbackHandler.onWritabilityChanged(writable);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            mLoop.schedule(WebSocket.this, task, delayNanos, TimeUnit.NANOSECONDS);
+        }
     };
 
     private FrameRx.Listener mRxListener = new FrameRx.Listener() {
@@ -366,7 +562,7 @@ public abstract class WebSocket implements Closeable {
             if (!isConnected()) {
                 return;
             }
-            mCallbackHandler.onBinaryMessage(message.array());
+            mCallbackHandler.onBinaryMessage(message);
         }
 
         @Override
@@ -12,6 +12,7 @@ package net.kazyx.wirespider;
 import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.rfc6455.Rfc6455;
 import net.kazyx.wirespider.secure.SecureSessionFactory;
+import net.kazyx.wirespider.secure.TlsSessionStats;
 import net.kazyx.wirespider.util.ArgumentCheck;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.WsLog;
@@ -24,6 +25,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory of the WebSocket client connections.
@@ -33,19 +35,67 @@ public class WebSocketFactory {
 
     private final SelectorProvider mProvider;
     private final SelectorLoop mSelectorLoop;
+    private final boolean mOwnsSelectorLoop;
     private final ExecutorService mExecutor = Executors.newCachedThreadPool();
 
+    /**
+     * Create factory with a single selector thread.
+     *
+     * @throws IOException Failed to open selector.
+     */
     public WebSocketFactory() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create factory with its own group of selector threads.<br>
+     * Connections are spread across the selector threads.
+     *
+     * @param selectorThreads Number of the selector threads.
+     * @throws IOException Failed to open selector.
+     * @throws IllegalArgumentException If {@code selectorThreads} is zero or negative value.
+     */
+    public WebSocketFactory(int selectorThreads) throws IOException {
         mProvider = SelectorProvider.provider();
-        mSelectorLoop = new SessionManager(mProvider);
+        mSelectorLoop = new SessionManager(mProvider, selectorThreads);
+        mOwnsSelectorLoop = true;
+    }
+
+    /**
+     * Create factory sharing the given selector loop with other factories.<br>
+     * The selector loop is not destroyed by {@link #destroy()} of this factory.
+     *
+     * @param sharedLoop Selector loop created by {@link #newSelectorLoop(int)}.
+     */
+    public WebSocketFactory(SelectorLoop sharedLoop) {
+        ArgumentCheck.rejectNull(sharedLoop);
+        mProvider = SelectorProvider.provider();
+        mSelectorLoop = sharedLoop;
+        mOwnsSelectorLoop = false;
+    }
+
+    /**
+     * Create a group of selector threads which can be shared between {@link WebSocketFactory} instances.<br>
+     * Call {@link SelectorLoop#destroy()} after all of the factories sharing it are destroyed.
+     *
+     * @param selectorThreads Number of the selector threads.
+     * @return Newly created selector loop.
+     * @throws IOException Failed to open selector.
+     * @throws IllegalArgumentException If {@code selectorThreads} is zero or negative value.
+     */
+    public static SelectorLoop newSelectorLoop(int selectorThreads) throws IOException {
+        return new SessionManager(SelectorProvider.provider(), selectorThreads);
     }
 
     /**
      * Destroy this {@link WebSocketFactory}.<br>
-     * Note that any connections created by this instance will be released.
+     * Note that any connections created by this instance will be released,
+     * unless the selector loop is shared with other factories.
      */
     public synchronized void destroy() {
-        mSelectorLoop.destroy();
+        if (mOwnsSelectorLoop) {
+            mSelectorLoop.destroy();
+        }
         mExecutor.shutdown();
     }
 
@@ -136,4 +186,30 @@ public class WebSocketFactory {
     public static void setSslContext(SSLContext context) {
         SecureSessionFactory.setSslContext(context);
     }
+
+    /**
+     * Configure the client session cache of the {@link SSLContext} for secure WebSocket connection.<br>
+     * Sessions are cached per remote host and port, so that reconnection to the same server resumes the session by abbreviated handshake.<br>
+     * If nothing is set, configurations of the {@link SSLContext} are used as they are.
+     *
+     * @param size Maximum number of cached sessions, or {@code 0} for no limit.
+     * @param timeout Lifetime of cached sessions, or {@code 0} for no limit. Rounded up to seconds.
+     * @param unit Unit of the lifetime.
+     * @throws IllegalArgumentException If {@code size} or {@code timeout} is negative value, or {@code unit} is {@code null}.
+     */
+    public static void setSslSessionCache(int size, long timeout, TimeUnit unit) {
+        if (size < 0 || timeout < 0) {
+            throw new IllegalArgumentException("Size and timeout must not be negative value");
+        }
+        ArgumentCheck.rejectNull(unit);
+        long seconds = (unit.toMillis(timeout) + 999) / 1000;
+        SecureSessionFactory.setSessionCache(size, (int) Math.min(seconds, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return Statistics of TLS handshakes of secure WebSocket connections in this process.
+     */
+    public static TlsSessionStats sslSessionStats() {
+        return SecureSessionFactory.stats();
+    }
 }
@@ -9,6 +9,10 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.util.BinaryUtil;
+
+import java.nio.ByteBuffer;
+
 /**
  * WebSocket event handler.
  */
@@ -27,6 +31,22 @@ public abstract class WebSocketHandler {
      */
     public abstract void onBinaryMessage(byte[] message);
 
+    /**
+     * Received binary message.<br>
+     * Override this method to handle the message without copying it into a byte array.
+     * By default, the message is converted into a byte array and passed to {@link #onBinaryMessage(byte[])}.
+     *
+     * @param message Received binary message. This might be a read-only buffer. It is not modified by WireSpider any more.
+     */
+    public void onBinaryMessage(ByteBuffer message) {
+        if (message.hasArray() && message.arrayOffset() == 0 && message.position() == 0
+                && message.remaining() == message.array().length) {
+            onBinaryMessage(message.array());
+        } else {
+            onBinaryMessage(BinaryUtil.toBytesRemaining(message));
+        }
+    }
+
     /**
      * Received Pong frame.<br>
      * If you uses {@link WebSocket#sendPingAsync(String)}, override this method to handle Pong frames.
@@ -37,6 +57,19 @@ public abstract class WebSocketHandler {
         // Nothing to do by default.
     }
 
+    /**
+     * Writability of the connection changed.<br>
+     * It becomes unwritable when the data buffered to be written exceeds the high watermark,
+     * and writable again when it drains to the low watermark.
+     * Producers should stop sending messages while it is unwritable.
+     *
+     * @param writable {@code true} if the connection is writable.
+     * @see SessionRequest.Builder#setWriteBufferWatermarks(int, int)
+     */
+    public void onWritabilityChanged(boolean writable) {
+        // Nothing to do by default.
+    }
+
     /**
      * WebSocket closed.
      *
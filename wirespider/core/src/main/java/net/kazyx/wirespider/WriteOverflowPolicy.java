@@ -0,0 +1,30 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+/**
+ * Behavior of sending data messages while the write buffer is above the high watermark.
+ *
+ * @see SessionRequest.Builder#setWriteBufferWatermarks(int, int)
+ */
+public enum WriteOverflowPolicy {
+    /**
+     * Keep buffering messages without limit. Use {@link WebSocketHandler#onWritabilityChanged(boolean)} to throttle the producer.
+     */
+    BUFFER,
+    /**
+     * Block the sending thread until the write buffer drains below the low watermark.
+     */
+    BLOCK,
+    /**
+     * Reject the message by {@link net.kazyx.wirespider.exception.WriteBufferFullException}.
+     */
+    FAIL
+}
@@ -0,0 +1,35 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocator of the transient buffers used to read and write the socket.
+ */
+public interface BufferAllocator {
+    /**
+     * Allocate a buffer.<br>
+     * Position of the returned buffer is {@code 0} and its limit is {@code size}.
+     * Its capacity might be larger than {@code size}.
+     *
+     * @param size Required size in bytes.
+     * @return Allocated buffer.
+     */
+    ByteBuffer allocate(int size);
+
+    /**
+     * Give back a buffer which is no longer used.<br>
+     * The buffer must not be accessed by the caller after this method.
+     *
+     * @param buffer Buffer to be released. Buffers which are not allocated by this allocator are ignored.
+     */
+    void release(ByteBuffer buffer);
+}
@@ -0,0 +1,141 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * {@link BufferAllocator} which recycles buffers in power-of-two size classes from 256 bytes to 64 KB.<br>
+ * Requests larger than the maximum size class are served by new buffers which are not pooled.
+ * <p>
+ * This class is thread safe and can be shared by any number of connections.
+ * </p>
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+    private static final int MIN_CLASS_SHIFT = 8; // 256 bytes
+    private static final int MAX_CLASS_SHIFT = 16; // 64 KB
+
+    /**
+     * Maximum size of the buffers pooled by this allocator.
+     */
+    public static final int MAX_POOLED_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 128;
+
+    private static final PooledBufferAllocator sShared = new PooledBufferAllocator(false);
+
+    /**
+     * @return Heap buffer pool shared in this process. Used by {@link net.kazyx.wirespider.SessionRequest} by default.
+     */
+    public static PooledBufferAllocator shared() {
+        return sShared;
+    }
+
+    private final boolean mIsDirect;
+    private final int mMaxBuffersPerClass;
+    private final ArrayDeque<ByteBuffer>[] mPools;
+
+    /**
+     * Equivalent to {@code PooledBufferAllocator(direct, 128)}.
+     *
+     * @param direct {@code true} to pool direct buffers, {@code false} to pool heap buffers.
+     */
+    public PooledBufferAllocator(boolean direct) {
+        this(direct, DEFAULT_MAX_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param direct {@code true} to pool direct buffers, {@code false} to pool heap buffers.
+     * @param maxBuffersPerClass Maximum number of the idle buffers retained for each size class.
+     * @throws IllegalArgumentException If {@code maxBuffersPerClass} is negative value.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PooledBufferAllocator(boolean direct, int maxBuffersPerClass) {
+        if (maxBuffersPerClass < 0) {
+            throw new IllegalArgumentException("Max buffers per class must not be negative value");
+        }
+        mIsDirect = direct;
+        mMaxBuffersPerClass = maxBuffersPerClass;
+        mPools = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < mPools.length; i++) {
+            mPools[i] = new ArrayDeque<>();
+        }
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        if (size > MAX_POOLED_SIZE) {
+            return newBuffer(size);
+        }
+
+        int index = classIndex(size);
+        ByteBuffer buffer;
+        ArrayDeque<ByteBuffer> pool = mPools[index];
+        synchronized (pool) {
+            buffer = pool.pollLast();
+        }
+        if (buffer == null) {
+            buffer = newBuffer(1 << (index + MIN_CLASS_SHIFT));
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isReadOnly() || buffer.isDirect() != mIsDirect) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity > MAX_POOLED_SIZE || capacity < (1 << MIN_CLASS_SHIFT) || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        if (!mIsDirect && buffer.arrayOffset() != 0) {
+            return; // Slice of another buffer.
+        }
+
+        buffer.clear();
+        ArrayDeque<ByteBuffer> pool = mPools[classIndex(capacity)];
+        synchronized (pool) {
+            if (pool.size() < mMaxBuffersPerClass) {
+                pool.addLast(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return Number of the idle buffers currently retained by this allocator.
+     */
+    public int pooledCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> pool : mPools) {
+            synchronized (pool) {
+                count += pool.size();
+            }
+        }
+        return count;
+    }
+
+    private ByteBuffer newBuffer(int capacity) {
+        return mIsDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int classIndex(int size) {
+        if (size <= (1 << MIN_CLASS_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
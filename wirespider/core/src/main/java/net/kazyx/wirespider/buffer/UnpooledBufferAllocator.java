@@ -0,0 +1,36 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BufferAllocator} which allocates a new buffer for every request.
+ */
+public class UnpooledBufferAllocator implements BufferAllocator {
+    private final boolean mIsDirect;
+
+    /**
+     * @param direct {@code true} to allocate direct buffers, {@code false} to allocate heap buffers.
+     */
+    public UnpooledBufferAllocator(boolean direct) {
+        mIsDirect = direct;
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+        return mIsDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        // Nothing to do. Left for GC.
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.exception;
+
+/**
+ * Thrown when a message is sent while the write buffer is above the high watermark,
+ * and {@link net.kazyx.wirespider.WriteOverflowPolicy#FAIL} is applied.
+ */
+public class WriteBufferFullException extends IllegalStateException {
+    public WriteBufferFullException(String message) {
+        super(message);
+    }
+}
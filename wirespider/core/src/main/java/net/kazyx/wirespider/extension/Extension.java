@@ -10,7 +10,8 @@
 package net.kazyx.wirespider.extension;
 
 /**
- * WebSocket extension.
+ * WebSocket extension.<br>
+ * Extension implementing {@link java.io.Closeable} is closed when the connection is closed.
  */
 public interface Extension {
     /**
@@ -0,0 +1,34 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension;
+
+import net.kazyx.wirespider.exception.PayloadOverflowException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PayloadFilter} which restores the received message frame by frame,
+ * instead of the message assembled from all of the fragments.
+ */
+public interface StreamingPayloadFilter extends PayloadFilter {
+    /**
+     * Called for each frame of the message when the registered reserved bits of its first frame are {@code true}.<br>
+     * The state for the message must be discarded when any exception is thrown.
+     *
+     * @param fragment Payload of the frame. This is not referred after this method.
+     * @param isFinal {@code true} if this is the last frame of the message.
+     * @param maxSize Maximum size of the restored message in bytes.
+     * @return Restored message if {@code isFinal} is {@code true}, otherwise {@code null}.
+     * @throws PayloadOverflowException Restored message exceeds {@code maxSize}.
+     * @throws IOException Any filtering error detected.
+     */
+    ByteBuffer onReceivingFragment(ByteBuffer fragment, boolean isFinal, int maxSize) throws PayloadOverflowException, IOException;
+}
@@ -21,16 +21,17 @@ import java.nio.channels.SocketChannel;
 
 public class Rfc6455 implements WebSocketSpec {
     @Override
-    public ClientWebSocket newClientWebSocket(SessionRequest req, SelectorLoop loop, SocketChannel ch) {
+    public ClientWebSocket newClientWebSocket(final SessionRequest req, SelectorLoop loop, SocketChannel ch) {
         return new ClientWebSocket(req, loop, ch) {
             @Override
             protected FrameTx newFrameTx() {
-                return new Rfc6455Tx(socketChannelProxy(), true);
+                return new Rfc6455Tx(socketChannelProxy(), true, bufferAllocator(), req.filterExecutor(), req.filterOffloadThreshold());
             }
 
             @Override
             protected FrameRx newFrameRx(FrameRx.Listener listener) {
-                return new Rfc6455Rx(listener, maxResponsePayloadSizeInBytes(), true);
+                return new Rfc6455Rx(listener, maxResponsePayloadSizeInBytes(), true, bufferAllocator(),
+                        req.filterExecutor(), req.filterOffloadThreshold());
             }
 
             @Override
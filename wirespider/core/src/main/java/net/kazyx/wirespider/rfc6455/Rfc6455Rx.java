@@ -13,20 +13,24 @@ import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.FrameRx;
 import net.kazyx.wirespider.FrameType;
 import net.kazyx.wirespider.OpCode;
+import net.kazyx.wirespider.buffer.BufferAllocator;
 import net.kazyx.wirespider.exception.PayloadOverflowException;
-import net.kazyx.wirespider.exception.PayloadUnderflowException;
 import net.kazyx.wirespider.exception.ProtocolViolationException;
 import net.kazyx.wirespider.extension.Extension;
+import net.kazyx.wirespider.extension.PayloadFilter;
+import net.kazyx.wirespider.extension.StreamingPayloadFilter;
 import net.kazyx.wirespider.util.BinaryUtil;
 import net.kazyx.wirespider.util.WsLog;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Rfc6455Rx implements FrameRx {
     private static final String TAG = Rfc6455Rx.class.getSimpleName();
@@ -35,11 +39,49 @@ class Rfc6455Rx implements FrameRx {
     private final int mMaxPayloadSize;
     private List<Extension> mExtensions = Collections.emptyList();
     private final boolean mIsClient;
+    private final BufferAllocator mAllocator;
+
+    /**
+     * Runs the filters of large messages and the callbacks following them in order,
+     * or {@code null} to run them on the selector thread.
+     */
+    private final SerialExecutor mFilterExecutor;
+
+    private final int mOffloadThreshold;
+
+    /**
+     * Number of frames submitted to {@link #mFilterExecutor} and not yet handled.
+     * While this is positive, the following frames are also submitted to keep their order.
+     */
+    private final AtomicInteger mOffloadedFrames = new AtomicInteger();
+
+    /**
+     * Set when an offloaded frame is failed, then the following data is discarded.
+     */
+    private volatile boolean mOffloadFailed = false;
+
+    /**
+     * {@code true} if the current frame is handled by {@link #mFilterExecutor}.
+     */
+    private boolean mOffloading = false;
+
+    Rfc6455Rx(FrameRx.Listener listener, int maxPayload, boolean isClient, BufferAllocator allocator) {
+        this(listener, maxPayload, isClient, allocator, null, Integer.MAX_VALUE);
+    }
 
-    Rfc6455Rx(FrameRx.Listener listener, int maxPayload, boolean isClient) {
+    /**
+     * @param filterExecutor Executor to run the filters of the messages not smaller than {@code offloadThreshold},
+     * or {@code null} to run them on the selector thread.
+     * @param offloadThreshold Minimum payload size in bytes to run the filters on {@code filterExecutor}.
+     */
+    Rfc6455Rx(FrameRx.Listener listener, int maxPayload, boolean isClient, BufferAllocator allocator,
+              Executor filterExecutor, int offloadThreshold) {
         mListener = listener;
         mMaxPayloadSize = maxPayload;
         mIsClient = isClient;
+        mAllocator = allocator;
+        mFilterExecutor = filterExecutor == null ? null : new SerialExecutor(filterExecutor);
+        mOffloadThreshold = offloadThreshold;
     }
 
     @Override
@@ -47,199 +89,400 @@ class Rfc6455Rx implements FrameRx {
         mExtensions = extensions;
     }
 
-    private boolean isFinal;
-    private byte opcode;
-    private byte first;
-
-    private final Runnable mReadOpCodeOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                first = readBytes(1).array()[0];
-                isFinal = BinaryUtil.isFlagMatched(first, (byte) 0x80);
+    @Override
+    public int pendingBytes() {
+        if (mState == State.PAYLOAD) {
+            return Math.max(0, payloadLength - mBufferSize);
+        }
+        return 0;
+    }
 
-                int maskedRsvBits = first & 0x70;
-                for (Extension ext : mExtensions) {
-                    maskedRsvBits = maskedRsvBits & ~ext.reservedBits();
-                }
-                if (maskedRsvBits != 0) {
-                    throw new ProtocolViolationException("Reserved bits invalid");
-                }
+    private enum State {
+        OPCODE,
+        SECOND_BYTE,
+        EXTENDED_PAYLOAD_LENGTH,
+        MASKING_KEY,
+        PAYLOAD,
+        FAILED,
+    }
 
-                opcode = (byte) (first & 0x0f);
-                mSecondByteOperation.run();
-            } catch (PayloadUnderflowException e) {
-                // No need to flush this log. Always happens at frame end.
-                // Log.d(TAG, "BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            } catch (ProtocolViolationException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
-                mListener.onProtocolViolation();
-            }
-        }
-    };
+    private State mState = State.OPCODE;
 
+    private boolean isFinal;
+    private byte opcode;
+    private byte first;
     private boolean isMasked;
     private int payloadLength;
+    private int extendedLengthSize;
+    private final byte[] mask = new byte[4];
+
+    /**
+     * Decode frames as long as the received data is enough.<br>
+     * Each state consumes the data only if the whole field is available, so the decoding is simply resumed by the next data.
+     */
+    private void decode() {
+        while (true) {
+            if (mOffloadFailed) {
+                mState = State.FAILED;
+            }
+            switch (mState) {
+                case OPCODE: {
+                    if (mBufferSize < 1) {
+                        return;
+                    }
+                    first = readByte();
+                    isFinal = BinaryUtil.isFlagMatched(first, (byte) 0x80);
 
-    private final Runnable mSecondByteOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                byte second = readBytes(1).array()[0];
-                isMasked = BinaryUtil.isFlagMatched(second, (byte) 0x80);
+                    int maskedRsvBits = first & 0x70;
+                    for (Extension ext : mExtensions) {
+                        maskedRsvBits = maskedRsvBits & ~ext.reservedBits();
+                    }
+                    if (maskedRsvBits != 0) {
+                        onProtocolViolation("Reserved bits invalid");
+                        return;
+                    }
 
-                if (mIsClient == isMasked) {
-                    throw new ProtocolViolationException("Masked payload from server or unmasked payload from client");
+                    opcode = (byte) (first & 0x0f);
+                    if (opcode == OpCode.TEXT || opcode == OpCode.BINARY) {
+                        // Reserved bits of the first frame apply to the whole message.
+                        mMessageFlags = first;
+                        mStreamingFilter = streamingFilter(first);
+                    }
+                    mState = State.SECOND_BYTE;
+                    break;
                 }
+                case SECOND_BYTE: {
+                    if (mBufferSize < 1) {
+                        return;
+                    }
+                    byte second = readByte();
+                    isMasked = BinaryUtil.isFlagMatched(second, (byte) 0x80);
+
+                    if (mIsClient == isMasked) {
+                        onProtocolViolation("Masked payload from server or unmasked payload from client");
+                        return;
+                    }
 
-                payloadLength = second & 0x7f;
-                if (payloadLength > mMaxPayloadSize) {
-                    throw new PayloadOverflowException("Payload size exceeds " + mMaxPayloadSize);
+                    payloadLength = second & 0x7f;
+                    if (payloadLength > mMaxPayloadSize) {
+                        onPayloadOverflow("Payload size exceeds " + mMaxPayloadSize);
+                        return;
+                    }
+                    switch (payloadLength) {
+                        case 126:
+                            extendedLengthSize = 2;
+                            mState = State.EXTENDED_PAYLOAD_LENGTH;
+                            break;
+                        case 127:
+                            extendedLengthSize = 8;
+                            mState = State.EXTENDED_PAYLOAD_LENGTH;
+                            break;
+                        default:
+                            mState = isMasked ? State.MASKING_KEY : State.PAYLOAD;
+                            break;
+                    }
+                    break;
                 }
-                switch (payloadLength) {
-                    case 126:
-                    case 127:
-                        mExtendedPayloadOperation.run();
-                        break;
-                    default:
-                        if (isMasked) {
-                            mMaskKeyOperation.run();
-                        } else {
-                            mPayloadOperation.run();
-                        }
-                        break;
+                case EXTENDED_PAYLOAD_LENGTH: {
+                    if (mBufferSize < extendedLengthSize) {
+                        return;
+                    }
+                    long length = readUnsigned(extendedLengthSize);
+                    if (length < 0 || Integer.MAX_VALUE < length) {
+                        // TODO support large payload over 2GB
+                        onPayloadOverflow("Exceeds int32 range: " + length);
+                        return;
+                    }
+                    payloadLength = (int) length;
+                    if (payloadLength > mMaxPayloadSize) {
+                        onPayloadOverflow("Payload size exceeds " + mMaxPayloadSize);
+                        return;
+                    }
+                    mState = isMasked ? State.MASKING_KEY : State.PAYLOAD;
+                    break;
                 }
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "SecondByte BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
+                case MASKING_KEY: {
+                    if (mBufferSize < mask.length) {
+                        return;
+                    }
+                    for (int i = 0; i < mask.length; i++) {
+                        mask[i] = readByte();
+                    }
+                    mState = State.PAYLOAD;
+                    break;
                 }
-            } catch (PayloadOverflowException e) {
-                WsLog.d(TAG, "Payload size overflow", e.getMessage());
-                mListener.onPayloadOverflow();
-            } catch (ProtocolViolationException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
+                case PAYLOAD: {
+                    if (mBufferSize < payloadLength) {
+                        return;
+                    }
+                    mOffloading = shouldOffload();
+                    ByteBuffer payload = readPayload(payloadLength);
+
+                    if (mOffloading) {
+                        offloadFrame(opcode, payload, isFinal, mMessageFlags, mStreamingFilter);
+                        onPayloadHandled(true);
+                        mState = State.OPCODE;
+                        break;
+                    }
+                    try {
+                        handleFrame(opcode, payload, isFinal, mMessageFlags, mStreamingFilter);
+                    } catch (ProtocolViolationException | IllegalArgumentException e) {
+                        onProtocolViolation(e.getMessage());
+                        return;
+                    } catch (PayloadOverflowException e) {
+                        onPayloadOverflow(e.getMessage());
+                        return;
+                    } catch (IOException e) {
+                        mState = State.FAILED;
+                        onInvalidPayload(e);
+                        return;
+                    } finally {
+                        onPayloadHandled(isPayloadRetained());
+                    }
+                    mState = State.OPCODE;
+                    break;
+                }
+                case FAILED:
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void onProtocolViolation(String message) {
+        WsLog.d(TAG, "Protocol violation", message);
+        mState = State.FAILED;
+        if (mOffloadedFrames.get() == 0) {
+            mListener.onProtocolViolation();
+            return;
+        }
+        // Notify after the messages being filtered.
+        mFilterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
                 mListener.onProtocolViolation();
             }
+        });
+    }
+
+    private void onPayloadOverflow(String message) {
+        WsLog.d(TAG, "Payload size overflow", message);
+        mState = State.FAILED;
+        if (mOffloadedFrames.get() == 0) {
+            mListener.onPayloadOverflow();
+            return;
         }
-    };
-
-    private final Runnable mExtendedPayloadOperation = new Runnable() {
-        @Override
-        public void run() {
-            int size = payloadLength == 126 ? 2 : 8;
-            try {
-                // TODO support large payload over 2GB
-                payloadLength = BinaryUtil.toUnsignedInteger(readBytes(size));
-                if (payloadLength > mMaxPayloadSize) {
-                    throw new PayloadOverflowException("Payload size exceeds " + mMaxPayloadSize);
-                }
-                if (isMasked) {
-                    mMaskKeyOperation.run();
-                } else {
-                    mPayloadOperation.run();
-                }
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "ExtendedPayloadLength BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            } catch (PayloadOverflowException | IllegalArgumentException e) {
-                WsLog.d(TAG, "Payload size overflow", e.getMessage());
+        // Notify after the messages being filtered.
+        mFilterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
                 mListener.onPayloadOverflow();
             }
+        });
+    }
+
+    private void onInvalidPayload(IOException e) {
+        WsLog.printStackTrace(TAG, e);
+        mListener.onInvalidPayloadError(e);
+    }
+
+    /**
+     * @return {@code true} if the current frame requires a large message to be filtered, or any frame submitted before is not yet handled.
+     */
+    private boolean shouldOffload() {
+        if (mFilterExecutor == null) {
+            return false;
         }
-    };
-
-    private byte[] mask;
-
-    private final Runnable mMaskKeyOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mask = readBytes(4).array();
-                mPayloadOperation.run();
-            } catch (PayloadUnderflowException e) {
-                WsLog.v(TAG, "MaskKey BufferUnsatisfied");
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
-                }
-            }
+        if (mOffloadedFrames.get() != 0) {
+            return true;
         }
-    };
-
-    private final Runnable mPayloadOperation = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                ByteBuffer payload = readBytes(payloadLength);
-                if (isMasked) {
-                    BinaryUtil.maskAll(payload, mask);
-                }
+        if ((opcode & 0x08) != 0 || (mMessageFlags & 0x70) == 0) {
+            // Control frame or message without extensions.
+            return false;
+        }
+        if (mStreamingFilter != null) {
+            return mOffloadThreshold <= payloadLength;
+        }
+        // Fragments are filtered when the message is assembled by the last one.
+        return isFinal && mOffloadThreshold <= mContinuationLength + (long) payloadLength;
+    }
 
-                handleFrame(opcode, payload, isFinal);
-                mReadOpCodeOperation.run();
-            } catch (PayloadUnderflowException e) {
-                if (mSuspendedOperation != this) {
-                    // Flush log only for the first time
-                    WsLog.v(TAG, "Payload BufferUnsatisfied");
-                }
-                synchronized (mOperationSequenceLock) {
-                    mSuspendedOperation = this;
+    /**
+     * Handle the frame on {@link #mFilterExecutor}.<br>
+     * State of the message being handled is shared with the selector thread,
+     * which touches it only after all of the submitted frames are handled.
+     */
+    private void offloadFrame(final byte opcode, final ByteBuffer payload, final boolean isFinal,
+                              final byte messageFlags, final StreamingPayloadFilter streamingFilter) {
+        mOffloadedFrames.incrementAndGet();
+        mFilterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mOffloadFailed) {
+                        return;
+                    }
+                    handleFrame(opcode, payload, isFinal, messageFlags, streamingFilter);
+                } catch (ProtocolViolationException | IllegalArgumentException e) {
+                    mOffloadFailed = true;
+                    WsLog.d(TAG, "Protocol violation", e.getMessage());
+                    mListener.onProtocolViolation();
+                } catch (PayloadOverflowException e) {
+                    mOffloadFailed = true;
+                    WsLog.d(TAG, "Payload size overflow", e.getMessage());
+                    mListener.onPayloadOverflow();
+                } catch (IOException e) {
+                    mOffloadFailed = true;
+                    onInvalidPayload(e);
+                } finally {
+                    mOffloadedFrames.decrementAndGet();
                 }
-            } catch (ProtocolViolationException | IllegalArgumentException e) {
-                WsLog.d(TAG, "Protocol violation", e.getMessage());
-                mListener.onProtocolViolation();
-            } catch (IOException e) {
-                WsLog.printStackTrace(TAG, e);
-                mListener.onInvalidPayloadError(e);
             }
-        }
-    };
+        });
+    }
 
     private FrameType mContinuationType = null;
-    private final ByteArrayOutputStream mContinuationBuffer = new ByteArrayOutputStream();
+    private final List<ByteBuffer> mContinuationFragments = new ArrayList<>();
+    private int mContinuationLength = 0;
+
+    /**
+     * First byte of the first frame of the message being received.
+     */
+    private byte mMessageFlags;
+
+    /**
+     * Filter which restores the message being received frame by frame, or {@code null}.
+     */
+    private StreamingPayloadFilter mStreamingFilter;
+
+    /**
+     * @return Filter of the first extension applied to the message if it supports streaming, otherwise {@code null}.
+     */
+    private StreamingPayloadFilter streamingFilter(byte flags) {
+        for (Extension ext : mExtensions) {
+            if (BinaryUtil.isFlagMatched(flags, ext.reservedBits())) {
+                PayloadFilter filter = ext.filter();
+                return filter instanceof StreamingPayloadFilter ? (StreamingPayloadFilter) filter : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code true} if the payload of the current frame might be referred after handled.
+     */
+    private boolean isPayloadRetained() {
+        if (mOffloading) {
+            // Payload is handled later by the filter executor.
+            return true;
+        }
+        if ((opcode & 0x08) != 0) {
+            return false;
+        }
+        // Fragments passed to the streaming filter are restored into another buffer.
+        return mStreamingFilter == null && (!isFinal || opcode == OpCode.BINARY);
+    }
+
+    private void appendFragment(ByteBuffer fragment) throws PayloadOverflowException {
+        if (mContinuationLength + (long) fragment.remaining() > mMaxPayloadSize) {
+            throw new PayloadOverflowException("Fragmented payload size exceeds " + mMaxPayloadSize);
+        }
+        mContinuationFragments.add(fragment);
+        mContinuationLength += fragment.remaining();
+    }
+
+    /**
+     * Pass the fragment to the streaming filter, and handle the restored message if it is the last fragment.
+     */
+    private void streamFragment(ByteBuffer fragment, FrameType type, boolean isFinal, byte messageFlags,
+                                StreamingPayloadFilter streamingFilter) throws PayloadOverflowException, IOException {
+        ByteBuffer message = streamingFilter.onReceivingFragment(fragment, isFinal, mMaxPayloadSize);
+        if (!isFinal) {
+            return;
+        }
+        if (type == FrameType.BINARY) {
+            handleBinaryFrame(message, messageFlags, streamingFilter);
+        } else {
+            handleTextFrame(message, messageFlags, streamingFilter);
+        }
+    }
+
+    /**
+     * Assemble the fragmented message into a buffer which is sized once from the total length.
+     */
+    private ByteBuffer assembleFragments() {
+        ByteBuffer message = ByteBuffer.allocate(mContinuationLength);
+        for (ByteBuffer fragment : mContinuationFragments) {
+            message.put(fragment);
+        }
+        message.flip();
+        mContinuationFragments.clear();
+        mContinuationLength = 0;
+        return message;
+    }
 
-    private void handleFrame(byte opcode, ByteBuffer payload, boolean isFinal) throws ProtocolViolationException, IOException {
+    /**
+     * @param messageFlags First byte of the first frame of the message.
+     * @param streamingFilter Filter which restores the message frame by frame, or {@code null}.
+     */
+    private void handleFrame(byte opcode, ByteBuffer payload, boolean isFinal, byte messageFlags, StreamingPayloadFilter streamingFilter)
+            throws ProtocolViolationException, PayloadOverflowException, IOException {
         // WsLog.v(TAG, "handleFrame", opcode);
         switch (opcode) {
             case OpCode.CONTINUATION: {
                 if (mContinuationType == null) {
                     throw new ProtocolViolationException("Sudden continuation opcode");
                 }
-                int length = payload.remaining();
-                mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                if (streamingFilter != null) {
+                    FrameType type = mContinuationType;
+                    if (isFinal) {
+                        mContinuationType = null;
+                    }
+                    streamFragment(payload, type, isFinal, messageFlags, streamingFilter);
+                    break;
+                }
+                appendFragment(payload);
                 if (isFinal) {
-                    ByteBuffer binary = ByteBuffer.wrap(mContinuationBuffer.toByteArray());
-                    mContinuationBuffer.reset();
+                    ByteBuffer binary = assembleFragments();
                     if (mContinuationType == FrameType.BINARY) {
-                        handleBinaryFrame(binary);
+                        handleBinaryFrame(binary, messageFlags, null);
                     } else {
-                        handleTextFrame(binary);
+                        handleTextFrame(binary, messageFlags, null);
                     }
                     mContinuationType = null;
                 }
                 break;
             }
             case OpCode.TEXT: {
-                if (isFinal) {
-                    handleTextFrame(payload);
+                if (mContinuationType != null) {
+                    throw new ProtocolViolationException("Text frame in the middle of fragmented message");
+                }
+                if (streamingFilter != null) {
+                    if (!isFinal) {
+                        mContinuationType = FrameType.TEXT;
+                    }
+                    streamFragment(payload, FrameType.TEXT, isFinal, messageFlags, streamingFilter);
+                } else if (isFinal) {
+                    handleTextFrame(payload, messageFlags, null);
                 } else {
-                    int length = payload.remaining();
-                    mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                    appendFragment(payload);
                     mContinuationType = FrameType.TEXT;
                 }
                 break;
             }
             case OpCode.BINARY: {
-                if (isFinal) {
-                    handleBinaryFrame(payload);
+                if (mContinuationType != null) {
+                    throw new ProtocolViolationException("Binary frame in the middle of fragmented message");
+                }
+                if (streamingFilter != null) {
+                    if (!isFinal) {
+                        mContinuationType = FrameType.BINARY;
+                    }
+                    streamFragment(payload, FrameType.BINARY, isFinal, messageFlags, streamingFilter);
+                } else if (isFinal) {
+                    handleBinaryFrame(payload, messageFlags, null);
                 } else {
-                    int length = payload.remaining();
-                    mContinuationBuffer.write(BinaryUtil.toBytesRemaining(payload), 0, length);
+                    appendFragment(payload);
                     mContinuationType = FrameType.BINARY;
                 }
                 break;
@@ -272,78 +515,183 @@ class Rfc6455Rx implements FrameRx {
         }
     }
 
-    private void handleBinaryFrame(ByteBuffer buffer) throws IOException {
+    private void handleBinaryFrame(ByteBuffer buffer, byte messageFlags, StreamingPayloadFilter streamingFilter) throws IOException {
         for (Extension ext : mExtensions) {
-            if (BinaryUtil.isFlagMatched(first, ext.reservedBits())) {
-                buffer = ext.filter().onReceivingBinary(buffer);
+            PayloadFilter filter = ext.filter();
+            if (filter != streamingFilter && BinaryUtil.isFlagMatched(messageFlags, ext.reservedBits())) {
+                buffer = filter.onReceivingBinary(buffer);
             }
         }
         mListener.onBinaryMessage(buffer);
     }
 
-    private void handleTextFrame(ByteBuffer buffer) throws IOException {
+    private void handleTextFrame(ByteBuffer buffer, byte messageFlags, StreamingPayloadFilter streamingFilter) throws IOException {
         for (Extension ext : mExtensions) {
-            if (BinaryUtil.isFlagMatched(first, ext.reservedBits())) {
-                buffer = ext.filter().onReceivingText(buffer);
+            PayloadFilter filter = ext.filter();
+            if (filter != streamingFilter && BinaryUtil.isFlagMatched(messageFlags, ext.reservedBits())) {
+                buffer = filter.onReceivingText(buffer);
             }
         }
         String text = BinaryUtil.toTextAll(buffer);
         mListener.onTextMessage(text);
     }
 
+    /**
+     * Decode the received data. This must be called on the selector thread.
+     */
     @Override
     public void onDataReceived(ByteBuffer data) {
         // Log.d(TAG, "onDataReceived");
+        if (mState == State.FAILED || mOffloadFailed) {
+            mAllocator.release(data);
+            return;
+        }
         mReceivedBuffer.addLast(data);
         mBufferSize += data.remaining();
-
-        synchronized (mOperationSequenceLock) {
-            if (mWaitingSize <= mBufferSize) {
-                mSuspendedOperation.run();
-            }
-        }
+        decode();
     }
 
-    private final Object mOperationSequenceLock = new Object();
-
-    private Runnable mSuspendedOperation = mReadOpCodeOperation;
-
-    private int mWaitingSize = 0;
-
     private int mBufferSize = 0;
 
     private final Deque<ByteBuffer> mReceivedBuffer = new ArrayDeque<>();
 
-    private ByteBuffer readBytes(int length) throws PayloadUnderflowException {
-        if (mBufferSize < length) {
-            mWaitingSize = length;
-            throw new PayloadUnderflowException();
+    private ByteBuffer headChunk() {
+        ByteBuffer head = mReceivedBuffer.getFirst();
+        while (!head.hasRemaining()) {
+            removeHeadChunk();
+            head = mReceivedBuffer.getFirst();
         }
+        return head;
+    }
 
-        ByteBuffer ret = ByteBuffer.allocate(length);
+    /**
+     * Read a byte in place. Caller must check that enough data is received.
+     */
+    private byte readByte() {
+        ByteBuffer head = headChunk();
+        byte b = head.get();
+        mBufferSize--;
+        if (!head.hasRemaining()) {
+            removeHeadChunk();
+        }
+        return b;
+    }
 
-        while (!mReceivedBuffer.isEmpty()) {
-            ByteBuffer buff = mReceivedBuffer.getFirst();
-            int copied = Math.min(ret.remaining(), buff.remaining());
-            if (ret.remaining() < buff.remaining()) {
-                byte[] tmp = new byte[copied];
-                buff.get(tmp);
-                ret.put(tmp);
-            } else {
-                ret.put(buff);
-            }
+    /**
+     * Read header field in place. Caller must check that enough data is received.
+     */
+    private long readUnsigned(int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) + (readByte() & 0xFF);
+        }
+        return value;
+    }
 
-            if (buff.remaining() == 0) {
-                mReceivedBuffer.remove();
-            }
+    /**
+     * Received chunk which the payload being handled is sliced from.
+     */
+    private ByteBuffer mBorrowedChunk;
+
+    /**
+     * {@code true} while the slice of the {@link #mBorrowedChunk} is being handled.
+     */
+    private boolean mBorrowing = false;
+
+    /**
+     * {@code true} if the slice of the {@link #mBorrowedChunk} might be referred after handled.
+     * Such chunk is left to GC instead of being released to the allocator.
+     */
+    private boolean mBorrowedChunkRetained = false;
+
+    /**
+     * Payloads smaller than this ratio of the received chunk are copied if they are passed to the application,
+     * so that a small message does not hold a large chunk.
+     */
+    private static final int MIN_RETAINED_SLICE_RATIO = 2;
+
+    /**
+     * Read payload. Caller must check that enough data is received.
+     */
+    private ByteBuffer readPayload(int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
 
-            if (ret.remaining() == 0) {
-                break;
+        ByteBuffer head = headChunk();
+        boolean mayBeRetained = isPayloadRetained();
+        if (!isMasked && length <= head.remaining()
+                && (!mayBeRetained || head.capacity() <= length * MIN_RETAINED_SLICE_RATIO)) {
+            // Payload is placed in a single chunk. Use it without copying.
+            int limit = head.limit();
+            head.limit(head.position() + length);
+            ByteBuffer slice = head.slice();
+            head.limit(limit);
+            head.position(head.position() + length);
+            mBufferSize -= length;
+
+            if (head != mBorrowedChunk) {
+                mBorrowedChunk = head;
+                mBorrowedChunkRetained = false;
+            }
+            mBorrowing = true;
+            if (!head.hasRemaining()) {
+                removeHeadChunk();
             }
+            return mayBeRetained ? slice.asReadOnlyBuffer() : slice;
         }
 
+        // Payload is placed across the multiple chunks, or needs to be unmasked.
+        ByteBuffer ret = ByteBuffer.allocate(length);
+        while (ret.hasRemaining()) {
+            head = headChunk();
+            boolean consumed = head.remaining() <= ret.remaining();
+            int limit = head.limit();
+            if (!consumed) {
+                head.limit(head.position() + ret.remaining());
+            }
+            if (isMasked) {
+                // Unmask in the same pass as the copy.
+                BinaryUtil.mask(head, ret, mask, ret.position());
+            } else {
+                ret.put(head);
+            }
+            head.limit(limit);
+            if (consumed) {
+                removeHeadChunk();
+            }
+        }
         mBufferSize -= length;
         ret.flip();
         return ret;
     }
+
+    private void removeHeadChunk() {
+        ByteBuffer chunk = mReceivedBuffer.remove();
+        if (chunk != mBorrowedChunk) {
+            mAllocator.release(chunk);
+        } else if (!mBorrowing) {
+            releaseBorrowedChunk();
+        }
+        // Otherwise, borrowed chunk is released after the payload is handled.
+    }
+
+    private void onPayloadHandled(boolean retained) {
+        if (!mBorrowing) {
+            return;
+        }
+        mBorrowing = false;
+        mBorrowedChunkRetained |= retained;
+        if (mReceivedBuffer.peekFirst() != mBorrowedChunk) {
+            releaseBorrowedChunk();
+        }
+    }
+
+    private void releaseBorrowedChunk() {
+        if (!mBorrowedChunkRetained) {
+            mAllocator.release(mBorrowedChunk);
+        }
+        mBorrowedChunk = null;
+        mBorrowedChunkRetained = false;
+    }
 }
@@ -12,7 +12,11 @@ package net.kazyx.wirespider.rfc6455;
 import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.FrameTx;
 import net.kazyx.wirespider.OpCode;
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.SocketChannelWriter;
+import net.kazyx.wirespider.buffer.BufferAllocator;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.exception.WriteBufferFullException;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.util.BinaryUtil;
 import net.kazyx.wirespider.util.WsLog;
@@ -21,26 +25,68 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.ReentrantLock;
 
 class Rfc6455Tx implements FrameTx {
     private static final String TAG = Rfc6455Tx.class.getSimpleName();
 
-    private static final int MAX_CLIENT_HEADER_LENGTH = 14; // Max server header length is 10
+    /**
+     * Frames larger than this are split into multiple buffers.
+     */
+    private static final int MAX_FRAME_CHUNK_SIZE = PooledBufferAllocator.MAX_POOLED_SIZE;
+
+    /**
+     * Shared payloads smaller than this are copied into the header buffer rather than being written separately.
+     */
+    private static final int MIN_GATHERING_PAYLOAD_SIZE = 1024;
 
     private List<Extension> mExtensions = Collections.emptyList();
     private final boolean mIsClient;
     private final SocketChannelWriter mWriter;
+    private final BufferAllocator mAllocator;
 
     private final Object mCloseFlagLock = new Object();
     private boolean mIsCloseSent = false;
 
     private ReentrantLock mDataLock = new ReentrantLock();
 
-    Rfc6455Tx(SocketChannelWriter writer, boolean isClient) {
+    /**
+     * Held from filtering to enqueueing a data frame,
+     * since stateful filters such as compression with context takeover require the frames to be written in the filtered order.<br>
+     * Offloaded frames are filtered without this lock, and held only to be enqueued.
+     */
+    private final Object mFilterLock = new Object();
+
+    /**
+     * Runs the filters of large messages in order, or {@code null} to filter them on the sending thread.
+     */
+    private final SerialExecutor mFilterExecutor;
+
+    private final int mOffloadThreshold;
+
+    /**
+     * Number of data frames submitted to {@link #mFilterExecutor} and not yet enqueued to the writer.
+     * While this is positive, the following data frames and close frame are also submitted to keep their order.
+     */
+    private int mOffloadedFrames = 0;
+
+    Rfc6455Tx(SocketChannelWriter writer, boolean isClient, BufferAllocator allocator) {
+        this(writer, isClient, allocator, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param filterExecutor Executor to run the filters of the messages not smaller than {@code offloadThreshold},
+     * or {@code null} to run them on the sending thread.
+     * @param offloadThreshold Minimum payload size in bytes to run the filters on {@code filterExecutor}.
+     */
+    Rfc6455Tx(SocketChannelWriter writer, boolean isClient, BufferAllocator allocator, Executor filterExecutor, int offloadThreshold) {
         mIsClient = isClient;
         mWriter = writer;
+        mAllocator = allocator;
+        mFilterExecutor = filterExecutor == null ? null : new SerialExecutor(filterExecutor);
+        mOffloadThreshold = offloadThreshold;
     }
 
     /**
@@ -48,32 +94,117 @@ class Rfc6455Tx implements FrameTx {
      */
     @Override
     public void sendTextAsync(String data) {
+        sendTextAsync(data, null);
+    }
+
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendTextAsync(String data, SendCallback callback) {
         // WsLog.v(TAG, "sendTextAsync");
         if (mDataLock.isLocked()) {
             throw new IllegalStateException("PartialMessageWriter is holding a lock");
         }
-        sendTextFrame(data, OpCode.TEXT, true);
+        sendTextFrame(data, OpCode.TEXT, true, callback);
     }
 
     @Override
     public void sendTextAsyncPrivileged(String data, boolean continuation, boolean isFinal) {
-        sendTextFrame(data, continuation ? OpCode.CONTINUATION : OpCode.TEXT, isFinal);
+        sendTextFrame(data, continuation ? OpCode.CONTINUATION : OpCode.TEXT, isFinal, null);
     }
 
-    private void sendTextFrame(String data, byte opcode, boolean isFinal) {
+    private void sendTextFrame(String data, byte opcode, boolean isFinal, SendCallback callback) {
         ByteBuffer buff = ByteBuffer.wrap(BinaryUtil.fromText(data));
+        if (mExtensions.isEmpty()) {
+            sendFrameAsync(opcode, buff, (byte) 0, isFinal, false, callback);
+            return;
+        }
+
+        synchronized (mFilterLock) {
+            if (shouldOffload(buff)) {
+                offload(buff, opcode, true, isFinal, false, callback);
+            } else {
+                filterAndSend(buff, opcode, true, isFinal, false, callback);
+            }
+        }
+    }
+
+    /**
+     * Caller must hold {@link #mFilterLock}.
+     *
+     * @return {@code true} if the frame is large, or any frame submitted before is not yet enqueued.
+     */
+    private boolean shouldOffload(ByteBuffer buff) {
+        return mFilterExecutor != null && (mOffloadedFrames != 0 || mOffloadThreshold <= buff.remaining());
+    }
+
+    /**
+     * Submit the frame to the filter executor. Caller must hold {@link #mFilterLock}.
+     */
+    private void offload(final ByteBuffer buff, final byte opcode, final boolean isText, final boolean isFinal,
+                         final boolean sharedPayload, final SendCallback callback) {
+        mOffloadedFrames++;
+        mFilterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Filters are run outside of the lock. Frames of this connection are never filtered concurrently,
+                    // since the other frames are submitted to the same serial executor while this is pending.
+                    FilteredPayload filtered = filter(buff, isText);
+                    synchronized (mFilterLock) {
+                        sendFrameAsync(opcode, filtered.payload, filtered.extensionBits, isFinal,
+                                sharedPayload && filtered.payload == buff, callback);
+                    }
+                } catch (WriteBufferFullException e) {
+                    // Sending thread has already returned, then the rejection is reported by the callback.
+                    WsLog.d(TAG, "Offloaded frame rejected", e.getMessage());
+                    if (callback != null) {
+                        callback.onFailure(new IOException(e));
+                    }
+                } finally {
+                    onOffloadedFrameDone();
+                }
+            }
+        });
+    }
+
+    private void onOffloadedFrameDone() {
+        synchronized (mFilterLock) {
+            mOffloadedFrames--;
+        }
+    }
+
+    /**
+     * Caller must hold {@link #mFilterLock}.
+     */
+    private void filterAndSend(ByteBuffer buff, byte opcode, boolean isText, boolean isFinal, boolean sharedPayload, SendCallback callback) {
+        FilteredPayload filtered = filter(buff, isText);
+        sendFrameAsync(opcode, filtered.payload, filtered.extensionBits, isFinal, sharedPayload && filtered.payload == buff, callback);
+    }
+
+    private static final class FilteredPayload {
+        final ByteBuffer payload;
+        final byte extensionBits;
+
+        FilteredPayload(ByteBuffer payload, byte extensionBits) {
+            this.payload = payload;
+            this.extensionBits = extensionBits;
+        }
+    }
+
+    private FilteredPayload filter(ByteBuffer buff, boolean isText) {
         byte extensionBits = 0;
         for (Extension ext : mExtensions) {
             try {
-                buff = ext.filter().onSendingText(buff);
+                buff = isText ? ext.filter().onSendingText(buff) : ext.filter().onSendingBinary(buff);
                 extensionBits = (byte) (extensionBits | ext.reservedBits());
             } catch (IOException e) {
                 // Filtering error. Send original data.
                 WsLog.v(TAG, e.getMessage());
             }
         }
-
-        sendFrameAsync(opcode, buff, extensionBits, isFinal);
+        return new FilteredPayload(buff, extensionBits);
     }
 
     /**
@@ -81,48 +212,86 @@ class Rfc6455Tx implements FrameTx {
      */
     @Override
     public void sendBinaryAsync(byte[] data) {
+        sendBinaryAsync(data, null);
+    }
+
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendBinaryAsync(byte[] data, SendCallback callback) {
         // WsLog.v(TAG, "sendBinaryAsync");
         if (mDataLock.isLocked()) {
             throw new IllegalStateException("PartialMessageWriter is holding a lock");
         }
-        sendBinaryFrame(data, OpCode.BINARY, true);
+        sendBinaryFrame(ByteBuffer.wrap(data), OpCode.BINARY, true, false, callback);
     }
 
     @Override
     public void sendBinaryAsyncPrivileged(byte[] data, boolean continuation, boolean isFinal) {
-        sendBinaryFrame(data, continuation ? OpCode.CONTINUATION : OpCode.BINARY, isFinal);
+        sendBinaryFrame(ByteBuffer.wrap(data), continuation ? OpCode.CONTINUATION : OpCode.BINARY, isFinal, false, null);
     }
 
-    private void sendBinaryFrame(byte[] data, byte opcode, boolean isFinal) {
-        ByteBuffer buff = ByteBuffer.wrap(data);
-        byte extensionBits = 0;
-        for (Extension ext : mExtensions) {
-            try {
-                buff = ext.filter().onSendingBinary(buff);
-                extensionBits = (byte) (extensionBits | ext.reservedBits());
-            } catch (IOException e) {
-                // Filtering error. Send original data.
-                WsLog.v(TAG, e.getMessage());
-            }
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendBinaryAsync(ByteBuffer data) {
+        sendBinaryAsync(data, null);
+    }
+
+    /**
+     * @throws IllegalStateException {@inheritDoc}
+     */
+    @Override
+    public void sendBinaryAsync(ByteBuffer data, SendCallback callback) {
+        if (mDataLock.isLocked()) {
+            throw new IllegalStateException("PartialMessageWriter is holding a lock");
+        }
+        sendBinaryFrame(data.duplicate(), OpCode.BINARY, true, true, callback);
+    }
+
+    private void sendBinaryFrame(ByteBuffer buff, byte opcode, boolean isFinal, boolean sharedPayload, SendCallback callback) {
+        if (mExtensions.isEmpty()) {
+            sendFrameAsync(opcode, buff, (byte) 0, isFinal, sharedPayload, callback);
+            return;
         }
 
-        sendFrameAsync(opcode, buff, extensionBits, isFinal);
+        synchronized (mFilterLock) {
+            if (shouldOffload(buff)) {
+                // Array of the application might be modified after this method returns, unlike the shared buffer.
+                ByteBuffer payload = sharedPayload ? buff : ByteBuffer.wrap(BinaryUtil.toBytesRemaining(buff));
+                offload(payload, opcode, false, isFinal, sharedPayload, callback);
+            } else {
+                filterAndSend(buff, opcode, false, isFinal, sharedPayload, callback);
+            }
+        }
     }
 
     @Override
     public void sendPingAsync(String message) {
+        sendPingAsync(message, null);
+    }
+
+    @Override
+    public void sendPingAsync(String message, SendCallback callback) {
         // WsLog.v(TAG, "sendPingAsync");
-        sendFrameAsync(OpCode.PING, ByteBuffer.wrap(BinaryUtil.fromText(message)), (byte) 0, true);
+        sendFrameAsync(OpCode.PING, ByteBuffer.wrap(BinaryUtil.fromText(message)), (byte) 0, true, false, callback);
     }
 
     @Override
     public void sendPongAsync(String pingMessage) {
         // WsLog.v(TAG, "sendPongAsync", pingMessage);
-        sendFrameAsync(OpCode.PONG, ByteBuffer.wrap(BinaryUtil.fromText(pingMessage)), (byte) 0, true);
+        sendFrameAsync(OpCode.PONG, ByteBuffer.wrap(BinaryUtil.fromText(pingMessage)), (byte) 0, true, false, null);
     }
 
     @Override
     public void sendCloseAsync(CloseStatusCode code, String reason) {
+        sendCloseAsync(code, reason, null);
+    }
+
+    @Override
+    public void sendCloseAsync(CloseStatusCode code, String reason, SendCallback callback) {
         // WsLog.v(TAG, "sendCloseAsync");
         byte[] messageBytes = BinaryUtil.fromText(reason);
         ByteBuffer payload = ByteBuffer.allocate(2 + messageBytes.length);
@@ -131,7 +300,35 @@ class Rfc6455Tx implements FrameTx {
         payload.put(messageBytes);
         payload.flip();
 
-        sendFrameAsync(OpCode.CONNECTION_CLOSE, payload, (byte) 0, true);
+        if (mFilterExecutor != null) {
+            synchronized (mFilterLock) {
+                if (mOffloadedFrames != 0) {
+                    // Close frame must follow the data frames being filtered.
+                    offloadClose(payload, callback);
+                    return;
+                }
+            }
+        }
+        sendFrameAsync(OpCode.CONNECTION_CLOSE, payload, (byte) 0, true, false, callback);
+    }
+
+    /**
+     * Caller must hold {@link #mFilterLock}.
+     */
+    private void offloadClose(final ByteBuffer payload, final SendCallback callback) {
+        mOffloadedFrames++;
+        mFilterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mFilterLock) {
+                        sendFrameAsync(OpCode.CONNECTION_CLOSE, payload, (byte) 0, true, false, callback);
+                    }
+                } finally {
+                    onOffloadedFrameDone();
+                }
+            }
+        });
     }
 
     @Override
@@ -158,9 +355,16 @@ class Rfc6455Tx implements FrameTx {
         mDataLock.unlock();
     }
 
-    private void sendFrameAsync(byte opcode, ByteBuffer payload, byte extensionFlags, boolean isFinal) {
+    /**
+     * @param sharedPayload {@code true} if the payload can be written without copying.
+     * @param callback Notified when the frame is written. {@code null} if not required.
+     */
+    private void sendFrameAsync(byte opcode, ByteBuffer payload, byte extensionFlags, boolean isFinal, boolean sharedPayload, SendCallback callback) {
         synchronized (mCloseFlagLock) {
             if (mIsCloseSent) {
+                if (callback != null) {
+                    callback.onFailure(new IOException("Close frame is already sent"));
+                }
                 return;
             }
             if (opcode == OpCode.CONNECTION_CLOSE) {
@@ -168,61 +372,96 @@ class Rfc6455Tx implements FrameTx {
             }
         }
 
-        long payloadLength = payload.remaining(); // Maximum length of array is Integer.MAX_VALUE
-        int headerLength = (payloadLength <= 125) ? 2 : (payloadLength <= 65535 ? 4 : 10);
-        byte[] header = new byte[headerLength];
+        // Control frames are never held back by the write backpressure.
+        boolean isControlFrame = (opcode & 0x08) != 0;
 
-        byte firstBase = isFinal ? (byte) (0x80) : 0;
-        header[0] = (byte) (firstBase | opcode | extensionFlags);
+        int payloadLength = payload.remaining();
+        int headerLength = (payloadLength <= 125) ? 2 : (payloadLength <= 65535 ? 4 : 10);
 
-        if (headerLength == 2) {
-            if (mIsClient) {
-                header[1] = (byte) (0x80 | payloadLength);
-            } else {
-                header[1] = (byte) (payloadLength);
-            }
-        } else if (headerLength == 4) {
-            if (mIsClient) {
-                header[1] = (byte) 0xfe;
-            } else {
-                header[1] = 0x7e;
-            }
-            header[2] = (byte) (payloadLength >>> 8);
-            header[3] = (byte) (payloadLength);
-        } else {
-            if (mIsClient) {
-                header[1] = (byte) 0xff;
-            } else {
-                header[1] = (byte) 0x7f;
-            }
-            header[2] = (byte) (payloadLength >>> 56);
-            header[3] = (byte) (payloadLength >>> 48);
-            header[4] = (byte) (payloadLength >>> 40);
-            header[5] = (byte) (payloadLength >>> 32);
-            header[6] = (byte) (payloadLength >>> 24);
-            header[7] = (byte) (payloadLength >>> 16);
-            header[8] = (byte) (payloadLength >>> 8);
-            header[9] = (byte) (payloadLength);
+        // Ownership of the frame buffers is transferred to the writer, which releases them after written.
+        if (!mIsClient && sharedPayload && MIN_GATHERING_PAYLOAD_SIZE <= payloadLength) {
+            // Payload can be written as it is. Write it with the header as a gathered pair.
+            ByteBuffer header = mAllocator.allocate(headerLength);
+            putHeader(header, opcode, extensionFlags, isFinal, payloadLength, headerLength);
+            header.flip();
+            mWriter.writeAsync(new ByteBuffer[]{header, payload.asReadOnlyBuffer()}, isControlFrame, callback);
+            return;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(MAX_CLIENT_HEADER_LENGTH + payload.remaining());
-        buffer.put(header);
-
+        byte[] maskingKey = null;
         if (mIsClient) {
             int mask = ThreadLocalRandom.current().nextInt();
-            byte[] maskingKey = {
+            maskingKey = new byte[]{
                     (byte) mask,
                     (byte) (mask >>> 8),
                     (byte) (mask >>> 16),
                     (byte) (mask >>> 24)
             };
-            buffer.put(maskingKey);
-            BinaryUtil.maskAll(payload, maskingKey);
         }
 
-        buffer.put(payload);
-        buffer.flip();
+        int frameLength = headerLength + (mIsClient ? 4 : 0) + payloadLength;
+        if (frameLength <= MAX_FRAME_CHUNK_SIZE) {
+            ByteBuffer buffer = mAllocator.allocate(frameLength);
+            putHeader(buffer, opcode, extensionFlags, isFinal, payloadLength, headerLength);
+            if (maskingKey != null) {
+                buffer.put(maskingKey);
+            }
+            putPayload(payload, buffer, maskingKey, 0);
+            buffer.flip();
+            if (callback == null) {
+                mWriter.writeAsync(buffer, isControlFrame);
+            } else {
+                mWriter.writeAsync(new ByteBuffer[]{buffer}, isControlFrame, callback);
+            }
+            return;
+        }
+
+        // Split large frame into the chunks which can be recycled by the allocator.
+        ByteBuffer[] chunks = new ByteBuffer[(frameLength + MAX_FRAME_CHUNK_SIZE - 1) / MAX_FRAME_CHUNK_SIZE];
+        int remaining = frameLength;
+        int offset = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuffer chunk = mAllocator.allocate(Math.min(remaining, MAX_FRAME_CHUNK_SIZE));
+            remaining -= chunk.remaining();
+            if (i == 0) {
+                putHeader(chunk, opcode, extensionFlags, isFinal, payloadLength, headerLength);
+                if (maskingKey != null) {
+                    chunk.put(maskingKey);
+                }
+            }
+            int length = chunk.remaining();
+            ByteBuffer piece = payload.duplicate();
+            piece.limit(piece.position() + length);
+            putPayload(piece, chunk, maskingKey, offset);
+            payload.position(payload.position() + length);
+            offset += length;
+            chunk.flip();
+            chunks[i] = chunk;
+        }
+        mWriter.writeAsync(chunks, isControlFrame, callback);
+    }
+
+    private void putHeader(ByteBuffer buffer, byte opcode, byte extensionFlags, boolean isFinal, long payloadLength, int headerLength) {
+        byte firstBase = isFinal ? (byte) (0x80) : 0;
+        buffer.put((byte) (firstBase | opcode | extensionFlags));
+
+        byte maskBit = mIsClient ? (byte) 0x80 : 0;
+        if (headerLength == 2) {
+            buffer.put((byte) (maskBit | payloadLength));
+        } else if (headerLength == 4) {
+            buffer.put((byte) (maskBit | 0x7e));
+            buffer.putShort((short) payloadLength);
+        } else {
+            buffer.put((byte) (maskBit | 0x7f));
+            buffer.putLong(payloadLength);
+        }
+    }
 
-        mWriter.writeAsync(buffer);
+    private static void putPayload(ByteBuffer payload, ByteBuffer dst, byte[] maskingKey, int offset) {
+        if (maskingKey == null) {
+            dst.put(payload);
+        } else {
+            BinaryUtil.mask(payload, dst, maskingKey, offset);
+        }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.rfc6455;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the tasks one by one in the submitted order on the underlying {@link Executor},
+ * so that the tasks of a connection keep their order even on a shared thread pool.
+ */
+final class SerialExecutor implements Executor {
+    private final Executor mExecutor;
+
+    private final Deque<Runnable> mTasks = new ArrayDeque<>();
+
+    /**
+     * {@code true} while a task is scheduled or running.
+     */
+    private boolean mIsActive = false;
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (mTasks) {
+            mTasks.add(task);
+            if (mIsActive) {
+                return;
+            }
+            mIsActive = true;
+        }
+        schedule();
+    }
+
+    private void scheduleNext() {
+        synchronized (mTasks) {
+            if (mTasks.isEmpty()) {
+                mIsActive = false;
+                return;
+            }
+        }
+        // One task per turn, so that a busy connection does not occupy a thread of the shared pool.
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(mRunNext);
+        } catch (RejectedExecutionException e) {
+            // Executor is shut down. No other task is running, so the rest are run in order on this thread.
+            runInline();
+        }
+    }
+
+    private void runInline() {
+        while (true) {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mIsActive = false;
+                    return;
+                }
+            }
+            boolean completed = false;
+            try {
+                task.run();
+                completed = true;
+            } finally {
+                if (!completed) {
+                    // Run the rest before the exception propagates, as the tasks run on the executor.
+                    scheduleNext();
+                }
+            }
+        }
+    }
+}
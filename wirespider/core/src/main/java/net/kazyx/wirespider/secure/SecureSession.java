@@ -9,25 +9,30 @@
 
 package net.kazyx.wirespider.secure;
 
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.Session;
+import net.kazyx.wirespider.SessionRequest;
+import net.kazyx.wirespider.WebSocket;
 import net.kazyx.wirespider.util.IOUtil;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
 class SecureSession implements Session {
-    private static final int WRITE_BUFFER_SIZE = 1024 * 4;
-
     private final SecureSocketChannel mChannel;
 
-    SecureSession(SSLContext sslContext, SelectionKey key) throws IOException {
-        SSLEngine sslEngine = sslContext.createSSLEngine();
+    SecureSession(SSLContext sslContext, SelectionKey key, SessionRequest request, TlsSessionStats stats) throws IOException {
+        // Peer host and port are the key of the client session cache.
+        URI uri = request.uri();
+        int port = uri.getPort() == -1 ? WebSocket.DEFAULT_WSS_PORT : uri.getPort();
+        SSLEngine sslEngine = sslContext.createSSLEngine(uri.getHost(), port);
         sslEngine.setUseClientMode(true);
 
-        mChannel = new SecureSocketChannel(key, sslEngine, WRITE_BUFFER_SIZE);
+        mChannel = new SecureSocketChannel(key, sslEngine, request.tlsRecordSize(), request.bufferAllocator(), request.delegatedTaskExecutor(), stats);
         mChannel.init();
     }
 
@@ -38,7 +43,27 @@ class SecureSession implements Session {
 
     @Override
     public void enqueueWrite(ByteBuffer buffer) throws IOException {
-        mChannel.wrapAndEnqueue(buffer);
+        enqueueWrite(new ByteBuffer[]{buffer}, null);
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer[] buffers) throws IOException {
+        enqueueWrite(buffers, null);
+    }
+
+    @Override
+    public void enqueueWrite(ByteBuffer[] buffers, SendCallback callback) throws IOException {
+        mChannel.wrapAndEnqueue(buffers, callback);
+    }
+
+    @Override
+    public void setCorked(boolean corked) throws IOException {
+        mChannel.setCorked(corked);
+    }
+
+    @Override
+    public void releaseHeld() throws IOException {
+        mChannel.releaseHeld();
     }
 
     @Override
@@ -55,4 +80,14 @@ class SecureSession implements Session {
     public void setListener(Listener listener) {
         mChannel.setDataListener(listener);
     }
+
+    @Override
+    public int receiveBufferSize() {
+        return mChannel.receiveBufferSize();
+    }
+
+    @Override
+    public long bufferedAmount() {
+        return mChannel.bufferedAmount();
+    }
 }
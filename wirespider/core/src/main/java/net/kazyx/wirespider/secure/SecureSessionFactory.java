@@ -10,9 +10,11 @@
 package net.kazyx.wirespider.secure;
 
 import net.kazyx.wirespider.SessionFactory;
+import net.kazyx.wirespider.SessionRequest;
 import net.kazyx.wirespider.util.WsLog;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.security.NoSuchAlgorithmException;
@@ -22,25 +24,54 @@ public class SecureSessionFactory implements SessionFactory {
 
     private static SSLContext sSslContext;
 
+    private static final TlsSessionStats sStats = new TlsSessionStats();
+
+    private static int sCacheSize = -1;
+    private static int sCacheTimeoutSeconds = -1;
+
+    /**
+     * {@link SSLContext} to which the current session cache configurations are applied.
+     */
+    private static SSLContext sCacheConfiguredContext;
+
     @Override
-    public SecureSession createNew(SelectionKey key) throws IOException {
+    public SecureSession createNew(SelectionKey key, SessionRequest request) throws IOException {
         try {
-            return new SecureSession(getSslContext(), key);
+            return new SecureSession(getSslContext(), key, request, sStats);
         } catch (NoSuchAlgorithmException e) {
             throw new IOException(e);
         }
     }
 
-    public static void setSslContext(SSLContext context) {
+    public static synchronized void setSslContext(SSLContext context) {
         WsLog.d(TAG, "Non default SSLContext is set");
         sSslContext = context;
     }
 
-    private static SSLContext getSslContext() throws NoSuchAlgorithmException {
-        if (sSslContext == null) {
-            return SSLContext.getDefault();
-        } else {
-            return sSslContext;
+    /**
+     * @param size Maximum number of cached sessions, or {@code 0} for no limit.
+     * @param timeoutSeconds Lifetime of cached sessions in seconds, or {@code 0} for no limit.
+     */
+    public static synchronized void setSessionCache(int size, int timeoutSeconds) {
+        sCacheSize = size;
+        sCacheTimeoutSeconds = timeoutSeconds;
+        sCacheConfiguredContext = null;
+    }
+
+    public static TlsSessionStats stats() {
+        return sStats;
+    }
+
+    private static synchronized SSLContext getSslContext() throws NoSuchAlgorithmException {
+        SSLContext context = sSslContext == null ? SSLContext.getDefault() : sSslContext;
+        if (sCacheSize >= 0 && context != sCacheConfiguredContext) {
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(sCacheSize);
+                sessions.setSessionTimeout(sCacheTimeoutSeconds);
+            }
+            sCacheConfiguredContext = context;
         }
+        return context;
     }
 }
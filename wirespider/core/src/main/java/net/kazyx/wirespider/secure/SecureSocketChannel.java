@@ -9,7 +9,10 @@
 
 package net.kazyx.wirespider.secure;
 
+import net.kazyx.wirespider.SendCallback;
+import net.kazyx.wirespider.SendCallbackQueue;
 import net.kazyx.wirespider.Session;
+import net.kazyx.wirespider.buffer.BufferAllocator;
 import net.kazyx.wirespider.util.IOUtil;
 import net.kazyx.wirespider.util.SelectionKeyUtil;
 import net.kazyx.wirespider.util.WsLog;
@@ -21,8 +24,13 @@ import javax.net.ssl.SSLSession;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 class SecureSocketChannel implements Closeable {
     private static final String TAG = SecureSocketChannel.class.getSimpleName();
@@ -33,15 +41,80 @@ class SecureSocketChannel implements Closeable {
 
     private ByteBuffer mNetIn;
     private ByteBuffer mNetOut;
-    private static final Object mOutSync = new Object();
+    private final Object mOutSync = new Object();
 
     private ByteBuffer mAppIn;
-    private final ByteBuffer mAppOut;
 
-    SecureSocketChannel(SelectionKey key, SSLEngine sslEngine, int appOutBufferSize) {
+    private static final ByteBuffer[] NO_APP_DATA = {ByteBuffer.allocate(0)};
+
+    /**
+     * Application data waiting to be wrapped. Guarded by {@link #mOutSync}.
+     */
+    private final ArrayDeque<ByteBuffer> mAppOut = new ArrayDeque<>();
+    private long mAppOutBytes = 0;
+    private ByteBuffer[] mWrapSrcs = new ByteBuffer[8];
+
+    /**
+     * Maximum number of application bytes in a record.
+     */
+    private final int mRecordSize;
+
+    /**
+     * Cumulative number of application bytes put into and wrapped from {@link #mAppOut}. Guarded by {@link #mOutSync}.
+     */
+    private long mAppOutEnqueued = 0;
+    private long mAppOutWrapped = 0;
+
+    /**
+     * Cumulative number of encrypted bytes put into and written from {@link #mNetOut}. Guarded by {@link #mOutSync}.
+     */
+    private long mNetOutProduced = 0;
+    private long mNetOutWritten = 0;
+
+    /**
+     * Cumulative number of encrypted bytes to be written even while corked. Guarded by {@link #mOutSync}.
+     */
+    private long mNetOutReleased = 0;
+
+    /**
+     * Callbacks tied to the application bytes, moved to {@link #mCallbacks} once their data is wrapped. Guarded by {@link #mOutSync}.
+     */
+    private final SendCallbackQueue mUnwrappedCallbacks = new SendCallbackQueue();
+    private final SendCallbackQueue mCallbacks = new SendCallbackQueue();
+
+    /**
+     * Guarded by {@link #mOutSync}.
+     */
+    private boolean mIsCorked = false;
+
+    private final BufferAllocator mAllocator;
+
+    /**
+     * Executor of the delegated tasks, or {@code null} to run them on the selector thread.
+     */
+    private final Executor mTaskExecutor;
+
+    /**
+     * {@code true} while the delegated tasks are running on {@link #mTaskExecutor}.
+     */
+    private volatile boolean mIsRunningTasks = false;
+
+    private volatile IOException mTaskFailure;
+
+    private final TlsSessionStats mStats;
+
+    private long mHandshakeStartedAt;
+    private boolean mIsHandshakeCompleted = false;
+
+    SecureSocketChannel(SelectionKey key, SSLEngine sslEngine, int recordSize, BufferAllocator allocator, Executor taskExecutor,
+                        TlsSessionStats stats) {
         mKey = key;
         mChannel = (SocketChannel) key.channel();
         mSslEngine = sslEngine;
+        mAllocator = allocator;
+        mTaskExecutor = taskExecutor;
+        mStats = stats;
+        mRecordSize = recordSize;
 
         SSLSession sslSession = sslEngine.getSession();
 
@@ -49,41 +122,99 @@ class SecureSocketChannel implements Closeable {
         mNetOut = ByteBuffer.allocateDirect(packetBufferSize);
         mNetIn = ByteBuffer.allocateDirect(packetBufferSize);
 
-        mAppOut = ByteBuffer.allocateDirect(appOutBufferSize);
         mAppIn = ByteBuffer.allocateDirect(sslSession.getApplicationBufferSize());
     }
 
     void init() throws IOException {
+        mHandshakeStartedAt = System.currentTimeMillis();
         mSslEngine.beginHandshake();
         evaluateCurrentStatus();
     }
 
-    void wrapAndEnqueue(ByteBuffer src) throws IOException {
+    /**
+     * Take the ownership of the buffers, which are released after they are wrapped.<br>
+     * Full records are wrapped on the calling thread. The remainder is coalesced with the following data until the flush.
+     */
+    void wrapAndEnqueue(ByteBuffer[] srcs, SendCallback callback) throws IOException {
         // WsLog.v(TAG, "Wrap and Enqueue");
         synchronized (mOutSync) {
-            while (src.remaining() != 0) {
-                if (mAppOut.remaining() < src.remaining()) {
-                    byte[] tmp = new byte[mAppOut.remaining()];
-                    src.get(tmp);
-                    mAppOut.put(tmp);
+            long size = 0;
+            for (ByteBuffer src : srcs) {
+                size += src.remaining();
+            }
+            if (callback != null && !mUnwrappedCallbacks.add(mAppOutEnqueued + size, callback)) {
+                throw new IOException("Session is closed");
+            }
+            for (ByteBuffer src : srcs) {
+                if (src.hasRemaining()) {
+                    mAppOut.addLast(src);
                 } else {
-                    mAppOut.put(src);
+                    mAllocator.release(src);
                 }
+            }
+            mAppOutBytes += size;
+            mAppOutEnqueued += size;
 
-                mAppOut.flip();
-                wrap();
-                mAppOut.compact();
+            wrapAppData(mRecordSize);
+            if (mAppOutBytes != 0 && !isHoldingData()) {
+                requestFlush();
             }
         }
     }
 
+    void setCorked(boolean corked) throws IOException {
+        synchronized (mOutSync) {
+            mIsCorked = corked;
+            if (!corked && mAppOutBytes + mNetOut.position() != 0) {
+                requestFlush();
+            }
+        }
+    }
+
+    void releaseHeld() throws IOException {
+        synchronized (mOutSync) {
+            wrapAppData(1);
+            mNetOutReleased = mNetOutProduced;
+            if (mNetOut.position() != 0) {
+                requestFlush();
+            }
+        }
+    }
+
+    private boolean isHoldingData() {
+        return mIsCorked && mSslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private void requestFlush() throws IOException {
+        if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
+            SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            mKey.selector().wakeup();
+        }
+    }
+
+    /**
+     * @return Number of bytes not yet written to the SocketChannel. Encrypted data is counted including the TLS overhead.
+     */
+    long bufferedAmount() {
+        synchronized (mOutSync) {
+            return mAppOutBytes + mNetOut.position();
+        }
+    }
+
     void onReadReady() throws IOException {
         // WsLog.v(TAG, "onReadReady");
+        if (parkWhileRunningTasks()) {
+            return;
+        }
         unwrap();
     }
 
     private Session.Listener mListener;
 
+    int receiveBufferSize() {
+        return mNetIn.capacity();
+    }
+
     void setDataListener(Session.Listener listener) {
         mListener = listener;
     }
@@ -100,7 +231,7 @@ class SecureSocketChannel implements Closeable {
             return;
         }
 
-        ByteBuffer ret = ByteBuffer.allocate(mAppIn.limit());
+        ByteBuffer ret = mAllocator.allocate(mAppIn.limit());
         ret.put(mAppIn);
         mAppIn.clear();
         ret.flip();
@@ -118,6 +249,10 @@ class SecureSocketChannel implements Closeable {
 
         switch (hsStatus) {
             case NEED_TASK:
+                if (mTaskExecutor != null) {
+                    runDelegatedTasksAsync();
+                    break;
+                }
                 Runnable task;
                 while ((task = mSslEngine.getDelegatedTask()) != null) {
                     task.run();
@@ -125,17 +260,28 @@ class SecureSocketChannel implements Closeable {
                 evaluateCurrentStatus();
                 break;
             case NEED_WRAP:
+                SSLEngineResult.HandshakeStatus wrapped;
                 synchronized (mOutSync) {
-                    mAppOut.flip();
-                    wrap();
-                    mAppOut.compact();
+                    wrapped = wrap(NO_APP_DATA, 0, 1).getHandshakeStatus();
+                }
+                if (wrapped == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    // e.g. Client side of the abbreviated handshake of TLSv1.2 ends by sending Finished.
+                    evaluateStatus(wrapped);
                 }
                 break;
             case NEED_UNWRAP:
                 unwrap();
                 break;
             case FINISHED:
-                WsLog.d(TAG, "SSL handshake completed: ", mSslEngine.getSession().getProtocol());
+                if (mIsHandshakeCompleted) {
+                    // Post-handshake messages such as NewSessionTicket of TLSv1.3.
+                    return;
+                }
+                mIsHandshakeCompleted = true;
+                // Resumed session is the one created before this handshake.
+                boolean resumed = mSslEngine.getSession().getCreationTime() < mHandshakeStartedAt;
+                mStats.onHandshakeCompleted(resumed);
+                WsLog.d(TAG, resumed ? "SSL session resumed: " : "SSL handshake completed: ", mSslEngine.getSession().getProtocol());
                 if (mListener != null) {
                     mListener.onConnected();
                 }
@@ -145,22 +291,125 @@ class SecureSocketChannel implements Closeable {
         }
     }
 
-    private void wrap() throws IOException {
-        SSLEngineResult result = mSslEngine.wrap(mAppOut, mNetOut);
+    /**
+     * Park this channel while the delegated tasks are running, then resume handshake by the flush on the selector thread.
+     */
+    private void runDelegatedTasksAsync() throws IOException {
+        if (mIsRunningTasks) {
+            return;
+        }
+        mIsRunningTasks = true;
+        SelectionKeyUtil.interestOps(mKey, 0);
+
+        try {
+            mTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Runnable task;
+                        while ((task = mSslEngine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                    } catch (RuntimeException e) {
+                        mTaskFailure = new IOException(e);
+                    }
+                    mIsRunningTasks = false;
+                    try {
+                        requestFlush();
+                    } catch (IOException | CancelledKeyException e) {
+                        // Session is already closed.
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Park this channel again if it is woken up by a flush request while the delegated tasks are running.
+     *
+     * @return {@code true} if the delegated tasks are running.
+     */
+    private boolean parkWhileRunningTasks() throws IOException {
+        if (!mIsRunningTasks) {
+            return false;
+        }
+        SelectionKeyUtil.interestOps(mKey, 0);
+        if (!mIsRunningTasks) {
+            // Tasks completed before parked, then their flush request might be overwritten.
+            requestFlush();
+        }
+        return true;
+    }
+
+    /**
+     * Wrap application data into records of up to {@code recordSize} bytes, while the data fills a record.
+     *
+     * @param recordSize Minimum number of bytes to be wrapped. {@code 1} to wrap all of the data.
+     */
+    private void wrapAppData(int recordSize) throws IOException {
+        while (mAppOutBytes >= recordSize && mAppOutBytes != 0) {
+            int count = 0;
+            int budget = mRecordSize;
+            for (ByteBuffer buffer : mAppOut) {
+                if (count == mWrapSrcs.length) {
+                    mWrapSrcs = Arrays.copyOf(mWrapSrcs, count * 2);
+                }
+                mWrapSrcs[count++] = buffer;
+                budget -= buffer.remaining();
+                if (budget <= 0) {
+                    break;
+                }
+            }
+
+            // Trim the last buffer not to exceed the record size.
+            ByteBuffer last = mWrapSrcs[count - 1];
+            int limit = last.limit();
+            if (budget < 0) {
+                last.limit(limit + budget);
+            }
+            SSLEngineResult result;
+            try {
+                result = wrap(mWrapSrcs, 0, count);
+            } finally {
+                last.limit(limit);
+                Arrays.fill(mWrapSrcs, 0, count, null);
+            }
+
+            int consumed = result.bytesConsumed();
+            mAppOutBytes -= consumed;
+            mAppOutWrapped += consumed;
+            while (!mAppOut.isEmpty() && !mAppOut.peekFirst().hasRemaining()) {
+                mAllocator.release(mAppOut.pollFirst());
+            }
+            mUnwrappedCallbacks.transferTo(mCallbacks, mAppOutWrapped, mNetOutProduced);
+
+            if (result.getStatus() != SSLEngineResult.Status.OK || consumed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Result of the wrap. Its handshake status is the only place to know that the handshake is finished by the wrap.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        SSLEngineResult result = mSslEngine.wrap(srcs, offset, length, mNetOut);
         // WsLog.v(TAG, "wrap: ", result.toString());
+        mNetOutProduced += result.bytesProduced();
 
         final SSLEngineResult.Status status = result.getStatus();
         switch (status) {
             case OK:
-                if (mKey.interestOps() != (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) {
-                    SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    mKey.selector().wakeup();
+                // Handshake records are never held by cork.
+                if (!isHoldingData()) {
+                    requestFlush();
                 }
                 break;
             case BUFFER_OVERFLOW:
                 mNetOut = reallocateByOverflow(mNetOut, mSslEngine.getSession().getPacketBufferSize());
-                wrap();
-                break;
+                return wrap(srcs, offset, length);
             case CLOSED:
                 WsLog.d(TAG, "SSLEngine wrap result: CLOSED");
                 close();
@@ -168,55 +417,93 @@ class SecureSocketChannel implements Closeable {
             default:
                 break;
         }
+        return result;
     }
 
     void flush() throws IOException {
         // WsLog.d(TAG, "flush");
+        if (mTaskFailure != null) {
+            throw mTaskFailure;
+        }
+        if (parkWhileRunningTasks()) {
+            // Resumed by the tasks.
+            return;
+        }
+        long written;
         synchronized (mOutSync) {
+            boolean holding = isHoldingData();
+            long released = mNetOutReleased - mNetOutWritten;
+            if (holding && released <= 0) {
+                // Resumed by uncork.
+                SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
+                return;
+            }
+            if (!holding) {
+                wrapAppData(1);
+            }
             mNetOut.flip();
-            mChannel.write(mNetOut);
+            int end = mNetOut.limit();
+            if (holding) {
+                // Records wrapped after the release are still held.
+                mNetOut.limit((int) Math.min(end, released));
+            }
+            mNetOutWritten += mChannel.write(mNetOut);
+            mNetOut.limit(end);
             mNetOut.compact();
-            if (mNetOut.position() == 0) {
+            if (mNetOut.position() == 0 || holding && mNetOutWritten == mNetOutReleased) {
                 SelectionKeyUtil.interestOps(mKey, SelectionKey.OP_READ);
             }
+            written = mNetOutWritten;
         }
+        mCallbacks.complete(written);
 
         evaluateCurrentStatus();
     }
 
     private void unwrap() throws IOException {
-        if (mNetIn.position() == 0) {
-            final int count = mChannel.read(mNetIn);
-            if (count == -1) {
-                close();
-                throw new IOException("Detected end of stream");
-            }
+        final int count = mChannel.read(mNetIn);
+        if (count == -1) {
+            close();
+            throw new IOException("Detected end of stream");
         }
 
-        mNetIn.flip();
-        SSLEngineResult result = mSslEngine.unwrap(mNetIn, mAppIn);
-        mNetIn.compact();
-        // WsLog.d(TAG, "unwrap: ", result.toString());
-
-        final SSLEngineResult.Status status = result.getStatus();
-        switch (status) {
-            case OK:
-                onUnwrapped();
-                evaluateStatus(result.getHandshakeStatus());
-                break;
-            case BUFFER_UNDERFLOW:
-                mNetIn = reallocateByUnderflow(mNetIn, mAppIn, mSslEngine.getSession().getPacketBufferSize());
-                break;
-            case BUFFER_OVERFLOW:
-                mAppIn = reallocateByOverflow(mAppIn, mSslEngine.getSession().getApplicationBufferSize());
-                unwrap();
-                break;
-            case CLOSED:
-                WsLog.d(TAG, "SSLEngine unwrap result: CLOSED");
-                close();
-                break;
-            default:
-                break;
+        // Unwrap all of the complete records in the buffer, since no more read event might come for them.
+        while (true) {
+            mNetIn.flip();
+            SSLEngineResult result = mSslEngine.unwrap(mNetIn, mAppIn);
+            mNetIn.compact();
+            // WsLog.d(TAG, "unwrap: ", result.toString());
+
+            final SSLEngineResult.Status status = result.getStatus();
+            switch (status) {
+                case OK:
+                    onUnwrapped();
+                    SSLEngineResult.HandshakeStatus hsStatus = result.getHandshakeStatus();
+                    if (hsStatus != SSLEngineResult.HandshakeStatus.FINISHED
+                            && hsStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        evaluateStatus(hsStatus);
+                        return;
+                    }
+                    if (hsStatus == SSLEngineResult.HandshakeStatus.FINISHED) {
+                        evaluateStatus(hsStatus);
+                    }
+                    if (mNetIn.position() == 0) {
+                        return;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    mNetIn = reallocateByUnderflow(mNetIn, mSslEngine.getSession().getPacketBufferSize());
+                    return;
+                case BUFFER_OVERFLOW:
+                    mAppIn = reallocateByOverflow(mAppIn, mSslEngine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    WsLog.d(TAG, "SSLEngine unwrap result: CLOSED");
+                    close();
+                    return;
+                default:
+                    return;
+            }
         }
     }
 
@@ -228,8 +515,8 @@ class SecureSocketChannel implements Closeable {
         return newBuffer;
     }
 
-    private static ByteBuffer reallocateByUnderflow(ByteBuffer src, ByteBuffer dst, int newSize) {
-        if (newSize > dst.capacity()) {
+    private static ByteBuffer reallocateByUnderflow(ByteBuffer src, int newSize) {
+        if (newSize > src.capacity()) {
             ByteBuffer newBuffer = ByteBuffer.allocateDirect(newSize);
             src.flip();
             newBuffer.put(src);
@@ -250,5 +537,12 @@ class SecureSocketChannel implements Closeable {
         if (mChannel.isOpen()) {
             IOUtil.close(mChannel);
         }
+        synchronized (mOutSync) {
+            mAppOut.clear();
+            mAppOutBytes = 0;
+        }
+        IOException e = new IOException("Session is closed");
+        mCallbacks.failAll(e);
+        mUnwrappedCallbacks.failAll(e);
     }
 }
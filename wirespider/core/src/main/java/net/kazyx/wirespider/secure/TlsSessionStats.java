@@ -0,0 +1,53 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.secure;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of completed TLS handshakes, to observe how often the client session cache is hit.
+ */
+public final class TlsSessionStats {
+    private final AtomicLong mFullHandshakes = new AtomicLong();
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+
+    TlsSessionStats() {
+    }
+
+    void onHandshakeCompleted(boolean resumed) {
+        if (resumed) {
+            mResumedHandshakes.incrementAndGet();
+        } else {
+            mFullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of handshakes which established a new session.
+     */
+    public long fullHandshakes() {
+        return mFullHandshakes.get();
+    }
+
+    /**
+     * @return Number of abbreviated handshakes which resumed a cached session.
+     */
+    public long resumedHandshakes() {
+        return mResumedHandshakes.get();
+    }
+
+    /**
+     * Reset all of the counts to zero.
+     */
+    public void reset() {
+        mFullHandshakes.set(0);
+        mResumedHandshakes.set(0);
+    }
+}
@@ -9,7 +9,9 @@
 
 package net.kazyx.wirespider.util;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
 public final class BinaryUtil {
@@ -35,7 +37,12 @@ public final class BinaryUtil {
      * @return String expression of the bytes.
      */
     public static String toTextAll(ByteBuffer bytes) {
-        return new String(bytes.array(), UTF8);
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset(), bytes.limit(), UTF8);
+        }
+        ByteBuffer whole = bytes.duplicate();
+        whole.position(0);
+        return new String(toBytesRemaining(whole), UTF8);
     }
 
     /**
@@ -65,7 +72,7 @@ public final class BinaryUtil {
     }
 
     /**
-     * Convert whole byte buffer to long.
+     * Convert remaining bytes of the byte buffer to long.
      *
      * @param bytes Source byte buffer.
      * @return The long value
@@ -76,8 +83,8 @@ public final class BinaryUtil {
             throw new IllegalArgumentException("bit length overflow: " + bytes.remaining());
         }
         long value = 0;
-        for (byte b : bytes.array()) {
-            value = (value << 8) + (b & 0xFF);
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            value = (value << 8) + (bytes.get(i) & 0xFF);
         }
         if (value < 0) {
             throw new IllegalArgumentException("Exceeds int64 range: " + value);
@@ -86,7 +93,7 @@ public final class BinaryUtil {
     }
 
     /**
-     * Convert whole byte buffer to unsigned integer.
+     * Convert remaining bytes of the byte buffer to unsigned integer.
      *
      * @param bytes Source byte buffer.
      * @return The unsigned integer value.
@@ -132,15 +139,47 @@ public final class BinaryUtil {
     }
 
     /**
-     * Mask payload to send data from client.
+     * Mask whole payload in place.
      *
      * @param payload Source raw payload.
      * @param maskingKey Masking key
      */
     public static void maskAll(ByteBuffer payload, byte[] maskingKey) {
-        byte[] array = payload.array();
-        for (int i = 0; i < array.length; i++) {
-            array[i] = (byte) (array[i] ^ maskingKey[i & 3]); // MOD 4
+        ByteBuffer src = payload.duplicate();
+        src.clear();
+        ByteBuffer dst = payload.duplicate();
+        dst.clear();
+        mask(src, dst, maskingKey, 0);
+    }
+
+    /**
+     * Copy remaining bytes of the source into the destination with masking them in the same pass.<br>
+     * Position of both buffers are advanced by the number of copied bytes. The source is never modified.
+     *
+     * @param src Source raw payload.
+     * @param dst Destination buffer. Remaining of this buffer must not be smaller than the source.
+     * @param maskingKey Masking key.
+     * @param offset Offset of the source in the whole payload, to continue masking the payload which is split into multiple buffers.
+     */
+    public static void mask(ByteBuffer src, ByteBuffer dst, byte[] maskingKey, int offset) {
+        int length = src.remaining();
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+
+        int i = 0;
+        if (src.order() == ByteOrder.BIG_ENDIAN && dst.order() == ByteOrder.BIG_ENDIAN) {
+            // Key replicated into long, starting from the given offset.
+            long key = 0;
+            for (int j = 0; j < 8; j++) {
+                key = (key << 8) | (maskingKey[(offset + j) & 3] & 0xFF);
+            }
+            for (; i + 8 <= length; i += 8) {
+                dst.putLong(src.getLong() ^ key);
+            }
+        }
+        for (; i < length; i++) {
+            dst.put((byte) (src.get() ^ maskingKey[(offset + i) & 3])); // MOD 4
         }
     }
 }
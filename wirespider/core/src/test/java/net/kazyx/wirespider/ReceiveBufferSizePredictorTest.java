@@ -0,0 +1,58 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ReceiveBufferSizePredictorTest {
+    @Test
+    public void initialSize() {
+        ReceiveBufferSizePredictor predictor = new ReceiveBufferSizePredictor();
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.INITIAL_SIZE));
+    }
+
+    @Test
+    public void growToMaximumByFullReads() {
+        ReceiveBufferSizePredictor predictor = new ReceiveBufferSizePredictor();
+        predictor.record(predictor.nextReceiveBufferSize());
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.INITIAL_SIZE * 4));
+
+        for (int i = 0; i < 10; i++) {
+            predictor.record(predictor.nextReceiveBufferSize());
+        }
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.MAX_SIZE));
+    }
+
+    @Test
+    public void shrinkToMinimumBySmallReads() {
+        ReceiveBufferSizePredictor predictor = new ReceiveBufferSizePredictor();
+        predictor.record(10);
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.INITIAL_SIZE));
+        predictor.record(10);
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.INITIAL_SIZE / 2));
+
+        for (int i = 0; i < 20; i++) {
+            predictor.record(10);
+        }
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.MIN_SIZE));
+    }
+
+    @Test
+    public void keepSizeByModerateReads() {
+        ReceiveBufferSizePredictor predictor = new ReceiveBufferSizePredictor();
+        for (int i = 0; i < 10; i++) {
+            predictor.record(ReceiveBufferSizePredictor.INITIAL_SIZE - 1);
+        }
+        assertThat(predictor.nextReceiveBufferSize(), is(ReceiveBufferSizePredictor.INITIAL_SIZE));
+    }
+}
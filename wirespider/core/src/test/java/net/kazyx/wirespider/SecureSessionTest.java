@@ -21,6 +21,8 @@ import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -38,6 +40,10 @@ public class SecureSessionTest {
         }
 
         private void echoExternalServer(String url, final String echoMessage) throws ExecutionException, InterruptedException, TimeoutException, IOException, NoSuchAlgorithmException {
+            echoExternalServer(url, echoMessage, null);
+        }
+
+        private void echoExternalServer(String url, final String echoMessage, ExecutorService taskExecutor) throws ExecutionException, InterruptedException, TimeoutException, IOException, NoSuchAlgorithmException {
             final CustomLatch latch = new CustomLatch(1);
             WebSocketHandler handler = new WebSocketHandler() {
                 @Override
@@ -61,9 +67,12 @@ public class SecureSessionTest {
                     latch.unlockByFailure();
                 }
             };
-            SessionRequest req = new SessionRequest.Builder(URI.create(url), handler)
-                    .setConnectionTimeout(5, TimeUnit.SECONDS)
-                    .build();
+            SessionRequest.Builder builder = new SessionRequest.Builder(URI.create(url), handler)
+                    .setConnectionTimeout(5, TimeUnit.SECONDS);
+            if (taskExecutor != null) {
+                builder.setDelegatedTaskExecutor(taskExecutor);
+            }
+            SessionRequest req = builder.build();
 
             WebSocketFactory factory = new WebSocketFactory();
 
@@ -94,6 +103,24 @@ public class SecureSessionTest {
             echoExternalServer("wss://echo.websocket.org:443", TestUtil.fixedLengthRandomString(128));
         }
 
+        @Test
+        public void echoWebSocketOrgSecureDelegatedTaskExecutor() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                echoExternalServer("wss://echo.websocket.org", TestUtil.fixedLengthRandomString(128), executor);
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void reconnectionResumesSession() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
+            echoExternalServer("wss://echo.websocket.org", TestUtil.fixedLengthRandomString(128));
+            long resumed = WebSocketFactory.sslSessionStats().resumedHandshakes();
+            echoExternalServer("wss://echo.websocket.org", TestUtil.fixedLengthRandomString(128));
+            assertThat(WebSocketFactory.sslSessionStats().resumedHandshakes(), is(resumed + 1));
+        }
+
         /* Sometimes fails. Need to be fixed.
         @Test
         public void echoWebSocketOrgSecureLargeMessage() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException {
@@ -157,6 +184,16 @@ public class SecureSessionTest {
             }
         }
 
+        @Test(expected = IllegalArgumentException.class)
+        public void sessionCacheNegativeSize() {
+            WebSocketFactory.setSslSessionCache(-1, 1, TimeUnit.HOURS);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void sessionCacheNegativeTimeout() {
+            WebSocketFactory.setSslSessionCache(10, -1, TimeUnit.HOURS);
+        }
+
         @Test
         public void TLSv1_1() throws InterruptedException, ExecutionException, TimeoutException, NoSuchAlgorithmException, IOException, KeyManagementException {
             echoExternalServer("TLSv1.1");
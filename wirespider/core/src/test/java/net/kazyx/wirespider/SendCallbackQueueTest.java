@@ -0,0 +1,95 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SendCallbackQueueTest {
+    private static class RecordingCallback implements SendCallback {
+        private final String mName;
+        private final List<String> mEvents;
+
+        RecordingCallback(String name, List<String> events) {
+            mName = name;
+            mEvents = events;
+        }
+
+        @Override
+        public void onSent() {
+            mEvents.add(mName + ":sent");
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            mEvents.add(mName + ":failed");
+        }
+    }
+
+    @Test
+    public void completedInOrderByWrittenBytes() {
+        List<String> events = new ArrayList<>();
+        SendCallbackQueue queue = new SendCallbackQueue();
+        queue.add(10, new RecordingCallback("a", events));
+        queue.add(10, new RecordingCallback("b", events));
+        queue.add(30, new RecordingCallback("c", events));
+
+        queue.complete(9);
+        assertThat(events.isEmpty(), is(true));
+
+        queue.complete(29);
+        assertThat(events, is(Arrays.asList("a:sent", "b:sent")));
+
+        queue.complete(100);
+        assertThat(events, is(Arrays.asList("a:sent", "b:sent", "c:sent")));
+    }
+
+    @Test
+    public void pendingCallbacksFailOnClose() {
+        List<String> events = new ArrayList<>();
+        SendCallbackQueue queue = new SendCallbackQueue();
+        queue.add(10, new RecordingCallback("a", events));
+        queue.add(20, new RecordingCallback("b", events));
+
+        queue.complete(10);
+        queue.failAll(new IOException("closed"));
+        assertThat(events, is(Arrays.asList("a:sent", "b:failed")));
+
+        assertThat(queue.add(30, new RecordingCallback("c", events)), is(false));
+        queue.complete(100);
+        assertThat(events.size(), is(2));
+    }
+
+    @Test
+    public void transferredToTransformedBytes() {
+        List<String> events = new ArrayList<>();
+        SendCallbackQueue plain = new SendCallbackQueue();
+        SendCallbackQueue encrypted = new SendCallbackQueue();
+        plain.add(10, new RecordingCallback("a", events));
+        plain.add(20, new RecordingCallback("b", events));
+
+        plain.transferTo(encrypted, 15, 40);
+        encrypted.complete(39);
+        assertThat(events.isEmpty(), is(true));
+        encrypted.complete(40);
+        assertThat(events, is(Arrays.asList("a:sent")));
+
+        encrypted.failAll(new IOException("closed"));
+        plain.transferTo(encrypted, 20, 80);
+        assertThat(events, is(Arrays.asList("a:sent", "b:failed")));
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import net.kazyx.wirespider.buffer.BufferAllocator;
+import net.kazyx.wirespider.exception.WriteBufferFullException;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SocketChannelProxyTest {
+    private static class FakeSession implements Session {
+        volatile long bufferedAmount = 0;
+        volatile boolean corked = false;
+        /**
+         * Number of the buffers released by {@link #releaseHeld()} while corked.
+         */
+        volatile int released = 0;
+        final List<ByteBuffer> written = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+
+        @Override
+        public void enqueueWrite(ByteBuffer buffer) {
+            written.add(buffer);
+            bufferedAmount += buffer.remaining();
+        }
+
+        @Override
+        public void enqueueWrite(ByteBuffer[] buffers) {
+            enqueueWrite(buffers, null);
+        }
+
+        @Override
+        public void enqueueWrite(ByteBuffer[] buffers, SendCallback callback) {
+            for (ByteBuffer buffer : buffers) {
+                enqueueWrite(buffer);
+            }
+        }
+
+        @Override
+        public void setCorked(boolean corked) {
+            this.corked = corked;
+        }
+
+        @Override
+        public void releaseHeld() {
+            released = written.size();
+        }
+
+        @Override
+        public void onFlushReady() {
+        }
+
+        @Override
+        public void onReadReady() {
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public int receiveBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public long bufferedAmount() {
+            return bufferedAmount;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class WritabilityListener implements SocketChannelProxy.Listener {
+        final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+        final List<Runnable> scheduled = Collections.synchronizedList(new ArrayList<Runnable>());
+        long delayNanos;
+
+        @Override
+        public void onSocketConnected() {
+        }
+
+        @Override
+        public void onClosed() {
+        }
+
+        @Override
+        public void onDataReceived(ByteBuffer data) {
+        }
+
+        @Override
+        public int pendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            changes.add(writable);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            scheduled.add(task);
+            this.delayNanos = delayNanos;
+        }
+    }
+
+    private final FakeSession mSession = new FakeSession();
+    private final WritabilityListener mListener = new WritabilityListener();
+
+    private SocketChannelProxy connectedProxy(WriteOverflowPolicy policy) throws InterruptedException {
+        return connectedProxy(new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler())
+                .setWriteBufferWatermarks(10, 100)
+                .setWriteOverflowPolicy(policy)
+                .build());
+    }
+
+    private SocketChannelProxy connectedProxy(SessionRequest req) throws InterruptedException {
+        final SocketChannelProxy proxy = new SocketChannelProxy(req, mListener);
+        // Connect on another thread, as the selector thread is not affected by the policy.
+        Thread selector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                proxy.onConnected(mSession);
+            }
+        });
+        selector.start();
+        selector.join();
+        return proxy;
+    }
+
+    @Test
+    public void writabilityChangesAtWatermarks() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.BUFFER);
+        proxy.writeAsync(ByteBuffer.allocate(100));
+        assertThat(proxy.isWritable(), is(true));
+        proxy.writeAsync(ByteBuffer.allocate(1));
+        assertThat(proxy.isWritable(), is(false));
+        proxy.writeAsync(ByteBuffer.allocate(100));
+        assertThat(mSession.written.size(), is(3));
+
+        mSession.bufferedAmount = 11;
+        proxy.onFlushed();
+        assertThat(proxy.isWritable(), is(false));
+
+        mSession.bufferedAmount = 10;
+        proxy.onFlushed();
+        assertThat(proxy.isWritable(), is(true));
+        assertThat(mListener.changes, is(Arrays.asList(false, true)));
+    }
+
+    @Test
+    public void failPolicyRejectsDataFrames() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.FAIL);
+        proxy.writeAsync(ByteBuffer.allocate(101));
+        try {
+            proxy.writeAsync(ByteBuffer.allocate(1));
+            throw new AssertionError("WriteBufferFullException is not thrown");
+        } catch (WriteBufferFullException e) {
+            // Expected
+        }
+        proxy.writeAsync(ByteBuffer.allocate(1), true);
+        assertThat(mSession.written.size(), is(2));
+    }
+
+    @Test
+    public void blockPolicyWaitsUntilDrained() throws InterruptedException {
+        final SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.BLOCK);
+        proxy.writeAsync(ByteBuffer.allocate(101));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                proxy.writeAsync(ByteBuffer.allocate(1));
+                latch.countDown();
+            }
+        }).start();
+
+        assertThat(latch.await(200, TimeUnit.MILLISECONDS), is(false));
+        assertThat(mSession.written.size(), is(1));
+
+        mSession.bufferedAmount = 0;
+        proxy.onFlushed();
+        assertThat(latch.await(1000, TimeUnit.MILLISECONDS), is(true));
+        assertThat(mSession.written.size(), is(2));
+    }
+
+    @Test
+    public void blockedWriterIsReleasedByClose() throws InterruptedException {
+        final SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.BLOCK);
+        proxy.writeAsync(ByteBuffer.allocate(101));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                proxy.writeAsync(ByteBuffer.allocate(1));
+                latch.countDown();
+            }
+        }).start();
+
+        assertThat(latch.await(200, TimeUnit.MILLISECONDS), is(false));
+        proxy.close();
+        assertThat(latch.await(1000, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    @Test
+    public void corkHoldsDataUntilUncork() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.BUFFER);
+        proxy.cork();
+        assertThat(mSession.corked, is(true));
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        assertThat(mSession.corked, is(true));
+        proxy.uncork();
+        assertThat(mSession.corked, is(false));
+    }
+
+    @Test
+    public void heldDataIsReleasedAboveHighWatermark() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(WriteOverflowPolicy.BUFFER);
+        proxy.cork();
+        proxy.writeAsync(ByteBuffer.allocate(100));
+        assertThat(mSession.released, is(0));
+        proxy.writeAsync(ByteBuffer.allocate(1));
+        assertThat(mSession.released, is(2));
+        assertThat(mSession.corked, is(true));
+
+        // Written data is drained, then the following data is still held by the cork.
+        mSession.bufferedAmount = 0;
+        proxy.writeAsync(ByteBuffer.allocate(1));
+        assertThat(mSession.released, is(2));
+        assertThat(mSession.corked, is(true));
+
+        proxy.uncork();
+        assertThat(mSession.corked, is(false));
+    }
+
+    @Test
+    public void lingerHoldsDataUntilExpiration() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler())
+                .setWriteLinger(2, TimeUnit.MILLISECONDS)
+                .build());
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        assertThat(mSession.corked, is(true));
+        assertThat(mListener.scheduled.size(), is(1));
+        assertThat(mListener.delayNanos, is(TimeUnit.MILLISECONDS.toNanos(2)));
+
+        mListener.scheduled.get(0).run();
+        assertThat(mSession.corked, is(false));
+        assertThat(mSession.written.size(), is(2));
+
+        // Next window starts by the next write.
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        assertThat(mSession.corked, is(true));
+        assertThat(mListener.scheduled.size(), is(2));
+    }
+
+    @Test
+    public void dataIsReleasedWhenNotConnected() {
+        final List<ByteBuffer> released = new ArrayList<ByteBuffer>();
+        BufferAllocator allocator = new BufferAllocator() {
+            @Override
+            public ByteBuffer allocate(int size) {
+                return ByteBuffer.allocate(size);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                released.add(buffer);
+            }
+        };
+        SocketChannelProxy proxy = new SocketChannelProxy(new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler())
+                .setBufferAllocator(allocator)
+                .build(), mListener);
+
+        ByteBuffer single = ByteBuffer.allocate(10);
+        proxy.writeAsync(single);
+        assertThat(released.size(), is(1));
+        assertThat(released.get(0) == single, is(true));
+
+        ByteBuffer[] gathered = {ByteBuffer.allocate(10), ByteBuffer.allocate(10)};
+        proxy.writeAsync(gathered, false);
+        assertThat(released.size(), is(3));
+        assertThat(released.get(1) == gathered[0] && released.get(2) == gathered[1], is(true));
+    }
+
+    @Test
+    public void staleLingerTimerDoesNotEndNextWindow() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler())
+                .setWriteLinger(2, TimeUnit.MILLISECONDS)
+                .build());
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        proxy.uncork();
+        assertThat(mSession.corked, is(false));
+
+        proxy.writeAsync(ByteBuffer.allocate(10));
+        assertThat(mSession.corked, is(true));
+        assertThat(mListener.scheduled.size(), is(2));
+
+        // Timer of the window ended by uncork()
+        mListener.scheduled.get(0).run();
+        assertThat(mSession.corked, is(true));
+
+        mListener.scheduled.get(1).run();
+        assertThat(mSession.corked, is(false));
+    }
+
+    @Test
+    public void controlFramesDoNotStartLinger() throws InterruptedException {
+        SocketChannelProxy proxy = connectedProxy(new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler())
+                .setWriteLinger(2, TimeUnit.MILLISECONDS)
+                .build());
+        proxy.writeAsync(ByteBuffer.allocate(10), true);
+        assertThat(mSession.corked, is(false));
+        assertThat(mListener.scheduled.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider;
+
+import net.kazyx.wirespider.util.Base64;
+import net.kazyx.wirespider.util.HandshakeSecretUtil;
+import net.kazyx.wirespider.util.WsLog;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated TLS send throughput of concurrent connections, each one driven by its own sender thread and selector thread.<br>
+ * Throughput should scale with the number of connections up to the number of available cores.<br>
+ * Run with {@code java -Djavax.net.ssl.keyStore=<jks> -Djavax.net.ssl.keyStorePassword=<password> -cp <classpath>
+ * net.kazyx.wirespider.TlsThroughputBenchmark [max connections] [message size] [MB per connection]}.
+ */
+public class TlsThroughputBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxConnections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+        int megaBytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int numMessages = (int) ((long) megaBytes * 1024 * 1024 / messageSize);
+
+        WsLog.logLevel(WsLog.Level.ERROR);
+        Base64.setEncoder(new Base64Encoder());
+        WebSocketFactory.setSslContext(trustAllContext());
+
+        SinkServer server = new SinkServer();
+        server.start();
+        try {
+            System.out.println("Cores: " + Runtime.getRuntime().availableProcessors() + ", message: " + messageSize
+                    + " bytes, " + megaBytes + " MB per connection");
+            // Warm up JIT and TLS provider.
+            run(server.port(), maxConnections, messageSize, numMessages);
+            for (int connections = 1; connections <= maxConnections; connections *= 2) {
+                long nanos = run(server.port(), connections, messageSize, numMessages);
+                double total = (double) connections * numMessages * messageSize / 1024 / 1024 / (nanos / 1e9);
+                System.out.println(String.format(Locale.US, "%d connections: %.1f MB/s total, %.1f MB/s per connection",
+                        connections, total, total / connections));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static long run(int port, int connections, int messageSize, final int numMessages) throws Exception {
+        WebSocketFactory factory = new WebSocketFactory(connections);
+        final List<WebSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                sockets.add(factory.open(new SessionRequest.Builder(URI.create("wss://localhost:" + port), new SilentEventHandler())
+                        .setWriteOverflowPolicy(WriteOverflowPolicy.BLOCK)
+                        .build()));
+            }
+
+            final byte[] message = new byte[messageSize];
+            final CountDownLatch sent = new CountDownLatch(connections);
+            final SendCallback callback = new SendCallback() {
+                @Override
+                public void onSent() {
+                    sent.countDown();
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+
+            long start = System.nanoTime();
+            for (final WebSocket ws : sockets) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 1; i < numMessages; i++) {
+                            ws.sendBinaryMessageAsync(message);
+                        }
+                        ws.sendBinaryMessageAsync(message, callback);
+                    }
+                }).start();
+            }
+            if (!sent.await(10, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timed out");
+            }
+            return System.nanoTime() - start;
+        } finally {
+            for (WebSocket ws : sockets) {
+                ws.close();
+            }
+            factory.destroy();
+        }
+    }
+
+    private static SSLContext trustAllContext() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    /**
+     * Accepts WebSocket upgrade and discards everything received afterwards.
+     */
+    private static class SinkServer extends Thread {
+        private final SSLServerSocket mServerSocket;
+
+        SinkServer() throws IOException {
+            mServerSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0);
+            setDaemon(true);
+        }
+
+        int port() {
+            return mServerSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread drain = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            drain(socket);
+                        } catch (IOException e) {
+                            // Closed by client.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // Nothing to do.
+                            }
+                        }
+                    }
+                });
+                drain.setDaemon(true);
+                drain.start();
+            }
+        }
+
+        private static void drain(Socket socket) throws IOException {
+            InputStream is = socket.getInputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String key = null;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (line.toLowerCase(Locale.US).startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            if (key == null) {
+                return;
+            }
+
+            OutputStream os = socket.getOutputStream();
+            os.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + HandshakeSecretUtil.scrambleSecret(key) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+
+            // Client sends nothing before the upgrade response, so the reader has not buffered any frame.
+            byte[] buffer = new byte[64 * 1024];
+            while (is.read(buffer) != -1) {
+                // Discard.
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.junit.Test;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -88,6 +89,58 @@ public class UtilsTest {
             byte[] empty = {};
             assertThat(Arrays.equals(BinaryUtil.fromText(null), empty), is(true));
         }
+
+        private static byte[] maskByteByByte(byte[] source, byte[] key) {
+            byte[] masked = new byte[source.length];
+            for (int i = 0; i < source.length; i++) {
+                masked[i] = (byte) (source[i] ^ key[i & 3]);
+            }
+            return masked;
+        }
+
+        @Test
+        public void maskWithCopy() {
+            byte[] key = {(byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78};
+            for (int length = 0; length < 40; length++) {
+                byte[] source = TestUtil.fixedLengthRandomByteArray(length);
+                byte[] copy = Arrays.copyOf(source, length);
+                ByteBuffer dst = ByteBuffer.allocate(length + 3);
+                dst.position(3);
+
+                ByteBuffer src = ByteBuffer.wrap(source);
+                BinaryUtil.mask(src, dst, key, 0);
+
+                assertThat(src.remaining(), is(0));
+                assertThat(dst.remaining(), is(0));
+                assertThat(Arrays.equals(source, copy), is(true));
+                assertThat(Arrays.equals(Arrays.copyOfRange(dst.array(), 3, length + 3), maskByteByByte(source, key)), is(true));
+            }
+        }
+
+        @Test
+        public void maskSplitPayload() {
+            byte[] key = {(byte) 0x9a, (byte) 0xbc, (byte) 0xde, (byte) 0xf0};
+            byte[] source = TestUtil.fixedLengthRandomByteArray(37);
+            ByteBuffer dst = ByteBuffer.allocate(source.length);
+            BinaryUtil.mask(ByteBuffer.wrap(source, 0, 13), dst, key, 0);
+            BinaryUtil.mask(ByteBuffer.wrap(source, 13, 24), dst, key, 13);
+            assertThat(Arrays.equals(dst.array(), maskByteByByte(source, key)), is(true));
+        }
+
+        @Test
+        public void maskAllInPlace() {
+            byte[] key = {(byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04};
+            byte[] source = TestUtil.fixedLengthRandomByteArray(21);
+            byte[] expected = maskByteByByte(source, key);
+            BinaryUtil.maskAll(ByteBuffer.wrap(source), key);
+            assertThat(Arrays.equals(source, expected), is(true));
+        }
+
+        @Test(expected = BufferOverflowException.class)
+        public void maskIntoSmallBuffer() {
+            byte[] key = {(byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04};
+            BinaryUtil.mask(ByteBuffer.allocate(10), ByteBuffer.allocate(9), key, 0);
+        }
     }
 
     public static class SelectionKeyUtilTest {
@@ -33,6 +33,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -99,6 +100,80 @@ public class WebSocketClientTest {
         }
     }
 
+    @Test
+    public void receiveBufferGrowsForLargeMessages() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final byte[] data = TestUtil.fixedLengthRandomByteArray(JettyWebSocketServlet.MAX_SIZE_1MB);
+        final CountDownLatch latch = new CountDownLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10000"), new SilentEventHandler() {
+            @Override
+            public void onBinaryMessage(byte[] message) {
+                latch.countDown();
+            }
+        }).setMaxResponsePayloadSizeInBytes(data.length).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+
+        try (WebSocket ws = factory.open(req)) {
+            int initialSize = ws.receiveBufferSize();
+            assertThat(initialSize > 0, is(true));
+
+            ws.sendBinaryMessageAsync(data);
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(ws.receiveBufferSize() > initialSize, is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void connectWithMultipleSelectorThreads() throws IOException {
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10000"), new SilentEventHandler()).build();
+
+        WebSocketFactory factory = new WebSocketFactory(4);
+
+        List<WebSocket> list = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                WebSocket ws = factory.open(req);
+                assertThat(ws.isConnected(), is(true));
+                list.add(ws);
+            }
+        } finally {
+            for (WebSocket ws : list) {
+                ws.close();
+            }
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void sharedSelectorLoop() throws IOException {
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://127.0.0.1:10000"), new SilentEventHandler()).build();
+
+        SelectorLoop loop = WebSocketFactory.newSelectorLoop(2);
+        WebSocketFactory factory1 = new WebSocketFactory(loop);
+        WebSocketFactory factory2 = new WebSocketFactory(loop);
+
+        try (WebSocket ws1 = factory1.open(req)) {
+            assertThat(ws1.isConnected(), is(true));
+            factory1.destroy();
+
+            try (WebSocket ws2 = factory2.open(req)) {
+                assertThat(ws1.isConnected(), is(true));
+                assertThat(ws2.isConnected(), is(true));
+            }
+        } finally {
+            factory1.destroy();
+            factory2.destroy();
+            loop.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroSelectorThreads() throws IOException {
+        new WebSocketFactory(0);
+    }
+
     @Test
     public void nothingHappensAfterClosed() throws ExecutionException, InterruptedException, TimeoutException, IOException {
         final CustomLatch latch = new CustomLatch(2);
@@ -507,6 +582,197 @@ public class WebSocketClientTest {
         new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setMaxResponsePayloadSizeInBytes(0);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void flushBudgetNonPositive() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setFlushBudgetInBytes(0);
+    }
+
+    @Test
+    public void x100BinaryMessagesEchoWithSmallFlushBudget() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final int NUM_MESSAGES = 100;
+        final byte[] data = TestUtil.fixedLengthRandomByteArray(10000);
+        final CountDownLatch latch = new CountDownLatch(NUM_MESSAGES);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onBinaryMessage(byte[] message) {
+                if (Arrays.equals(message, data)) {
+                    latch.countDown();
+                }
+            }
+        }).setFlushBudgetInBytes(1000).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                ws.sendBinaryMessageAsync(Arrays.copyOf(data, data.length));
+            }
+
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void watermarksLowAboveHigh() throws IOException {
+        new SessionRequest.Builder(URI.create("ws://127.0.0.1"), new SilentEventHandler()).setWriteBufferWatermarks(2, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tlsRecordSizeAboveMaximum() throws IOException {
+        new SessionRequest.Builder(URI.create("wss://127.0.0.1"), new SilentEventHandler()).setTlsRecordSize(16385);
+    }
+
+    @Test
+    public void writabilityChangedByWatermarks() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final int NUM_MESSAGES = 100;
+        final byte[] data = TestUtil.fixedLengthRandomByteArray(10000);
+        final CountDownLatch latch = new CountDownLatch(NUM_MESSAGES);
+        final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onBinaryMessage(byte[] message) {
+                if (Arrays.equals(message, data)) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                changes.add(writable);
+            }
+        }).setWriteBufferWatermarks(0, 1).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            assertThat(ws.isWritable(), is(true));
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                ws.sendBinaryMessageAsync(data);
+            }
+
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(ws.bufferedAmount(), is(0L));
+            assertThat(ws.isWritable(), is(true));
+            assertThat(changes.isEmpty(), is(false));
+            assertThat(changes.get(0), is(false));
+            assertThat(changes.get(changes.size() - 1), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void sendCallbacksCompleteInOrder() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final int NUM_MESSAGES = 100;
+        final byte[] data = TestUtil.fixedLengthRandomByteArray(100000);
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(NUM_MESSAGES);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler())
+                .setMaxResponsePayloadSizeInBytes(data.length)
+                .build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+
+        try (WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                final int index = i;
+                ws.sendBinaryMessageAsync(data, new SendCallback() {
+                    @Override
+                    public void onSent() {
+                        sent.add(index);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(IOException e) {
+                        fail("Failed to send: " + e.getMessage());
+                    }
+                });
+            }
+
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                assertThat(sent.get(i), is(i));
+            }
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void sendCallbackFailsAfterClose() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler()).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+
+        try {
+            WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS);
+            ws.close();
+            ws.sendTextMessageAsync("hello", new SendCallback() {
+                @Override
+                public void onSent() {
+                    fail("Sent after close");
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    latch.countDown();
+                }
+            });
+            assertThat(latch.await(1000, TimeUnit.MILLISECONDS), is(true));
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void concurrentSendersKeepOrder() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final int NUM_THREADS = 4;
+        final int NUM_MESSAGES = 1000;
+        final Map<String, Integer> nextIndex = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS * NUM_MESSAGES);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        SessionRequest req = new SessionRequest.Builder(URI.create("ws://localhost:10000"), new SilentEventHandler() {
+            @Override
+            public void onTextMessage(String message) {
+                String[] parts = message.split(":");
+                Integer expected = nextIndex.get(parts[0]);
+                int index = Integer.parseInt(parts[1]);
+                if (expected == null ? index != 0 : index != expected) {
+                    errors.add(message);
+                }
+                nextIndex.put(parts[0], index + 1);
+                latch.countDown();
+            }
+        }).build();
+
+        WebSocketFactory factory = new WebSocketFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+
+        try (final WebSocket ws = factory.openAsync(req).get(1000, TimeUnit.MILLISECONDS)) {
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final String sender = "sender" + t;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < NUM_MESSAGES; i++) {
+                            ws.sendTextMessageAsync(sender + ":" + i);
+                        }
+                    }
+                });
+            }
+
+            assertThat(latch.await(10000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(errors.isEmpty(), is(true));
+        } finally {
+            executor.shutdownNow();
+            factory.destroy();
+        }
+    }
+
     @Test
     public void payloadLimit125() throws IOException, InterruptedException, ExecutionException, TimeoutException {
         // Maximum size of 7 bits normal payload length
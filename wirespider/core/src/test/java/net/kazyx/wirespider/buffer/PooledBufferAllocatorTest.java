@@ -0,0 +1,92 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PooledBufferAllocatorTest {
+    @Test
+    public void allocatedBufferIsReadyToWrite() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        ByteBuffer buff = allocator.allocate(1000);
+        assertThat(buff.position(), is(0));
+        assertThat(buff.limit(), is(1000));
+        assertThat(buff.capacity(), is(1024));
+        assertThat(buff.isDirect(), is(false));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(true);
+        ByteBuffer buff = allocator.allocate(4096);
+        buff.put((byte) 1);
+        allocator.release(buff);
+        assertThat(allocator.pooledCount(), is(1));
+
+        ByteBuffer reused = allocator.allocate(3000);
+        assertThat(reused, is(sameInstance(buff)));
+        assertThat(reused.position(), is(0));
+        assertThat(reused.limit(), is(3000));
+        assertThat(reused.isDirect(), is(true));
+        assertThat(allocator.pooledCount(), is(0));
+    }
+
+    @Test
+    public void largeBufferIsNotPooled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        ByteBuffer buff = allocator.allocate(PooledBufferAllocator.MAX_POOLED_SIZE + 1);
+        assertThat(buff.capacity(), is(PooledBufferAllocator.MAX_POOLED_SIZE + 1));
+        allocator.release(buff);
+        assertThat(allocator.pooledCount(), is(0));
+    }
+
+    @Test
+    public void foreignBuffersAreNotPooled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        allocator.release(null);
+        allocator.release(ByteBuffer.allocate(1000));
+        allocator.release(ByteBuffer.allocateDirect(1024));
+        allocator.release(ByteBuffer.allocate(1024).asReadOnlyBuffer());
+        ByteBuffer parent = ByteBuffer.allocate(2048);
+        parent.position(1024);
+        allocator.release(parent.slice());
+        assertThat(allocator.pooledCount(), is(0));
+    }
+
+    @Test
+    public void poolSizeIsBounded() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false, 2);
+        ByteBuffer b1 = allocator.allocate(256);
+        ByteBuffer b2 = allocator.allocate(256);
+        ByteBuffer b3 = allocator.allocate(256);
+        assertThat(b1, is(not(sameInstance(b2))));
+        allocator.release(b1);
+        allocator.release(b2);
+        allocator.release(b3);
+        assertThat(allocator.pooledCount(), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSize() {
+        new PooledBufferAllocator(false).allocate(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaxBuffers() {
+        new PooledBufferAllocator(false, -1);
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.rfc6455;
+
+import net.kazyx.wirespider.CloseStatusCode;
+import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.SendCallback;
+import net.kazyx.wirespider.SocketChannelWriter;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.exception.WriteBufferFullException;
+import net.kazyx.wirespider.extension.Extension;
+import net.kazyx.wirespider.extension.PayloadFilter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class FilterOffloadTest {
+    /**
+     * Runs the submitted tasks only when requested.
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Sets the reserved bit without changing the payload.
+     */
+    private static class MarkerExtension implements Extension, PayloadFilter {
+        int filtered = 0;
+
+        @Override
+        public String name() {
+            return "x-marker";
+        }
+
+        @Override
+        public boolean accept(String[] parameters) {
+            return true;
+        }
+
+        @Override
+        public PayloadFilter filter() {
+            return this;
+        }
+
+        @Override
+        public byte reservedBits() {
+            return 0b01000000;
+        }
+
+        @Override
+        public ByteBuffer onSendingText(ByteBuffer data) throws IOException {
+            filtered++;
+            return data;
+        }
+
+        @Override
+        public ByteBuffer onSendingBinary(ByteBuffer data) throws IOException {
+            filtered++;
+            return data;
+        }
+
+        @Override
+        public ByteBuffer onReceivingText(ByteBuffer data) throws IOException {
+            filtered++;
+            return data;
+        }
+
+        @Override
+        public ByteBuffer onReceivingBinary(ByteBuffer data) throws IOException {
+            filtered++;
+            return data;
+        }
+    }
+
+    private static class RecordingListener extends FailOnCallbackRxListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onBinaryMessage(ByteBuffer message) {
+            events.add("binary:" + message.remaining());
+        }
+
+        @Override
+        public void onTextMessage(String message) {
+            events.add("text:" + message);
+        }
+
+        @Override
+        public void onPingFrame(String message) {
+            events.add("ping:" + message);
+        }
+
+        @Override
+        public void onCloseFrame(int code, String reason) {
+            events.add("close:" + code);
+        }
+    }
+
+    private static byte[] frame(int first, byte... payload) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+        frame.put((byte) first);
+        if (payload.length <= 125) {
+            frame.put((byte) payload.length);
+        } else {
+            frame.put((byte) 126).putShort((short) payload.length);
+        }
+        frame.put(payload);
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private final MarkerExtension mExtension = new MarkerExtension();
+    private final ManualExecutor mExecutor = new ManualExecutor();
+
+    @Test
+    public void receivedMessagesAreDeliveredInOrder() {
+        RecordingListener listener = new RecordingListener();
+        Rfc6455Rx rx = new Rfc6455Rx(listener, 100000, true, PooledBufferAllocator.shared(), mExecutor, 1000);
+        rx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        // Small filtered message is handled on the selector thread.
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b11000010, new byte[10])));
+        assertThat(listener.events.size(), is(1));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b11000010, new byte[2000])));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10001001, (byte) 'a')));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000001, (byte) 'b')));
+        assertThat(listener.events.size(), is(1));
+        assertThat(mExtension.filtered, is(1));
+
+        mExecutor.runAll();
+        assertThat(listener.events, is(Arrays.asList("binary:10", "binary:2000", "ping:a", "text:b")));
+        assertThat(mExtension.filtered, is(2));
+
+        // Back to the selector thread after all of the submitted frames are handled.
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000001, (byte) 'c')));
+        assertThat(listener.events.size(), is(5));
+        assertThat(mExecutor.tasks.isEmpty(), is(true));
+    }
+
+    @Test
+    public void fragmentedMessageIsOffloadedByTotalSize() {
+        RecordingListener listener = new RecordingListener();
+        Rfc6455Rx rx = new Rfc6455Rx(listener, 100000, true, PooledBufferAllocator.shared(), mExecutor, 1000);
+        rx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b01000010, new byte[600])));
+        assertThat(mExecutor.tasks.isEmpty(), is(true));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000000, new byte[600])));
+        assertThat(listener.events.isEmpty(), is(true));
+
+        mExecutor.runAll();
+        assertThat(listener.events, is(Collections.singletonList("binary:1200")));
+    }
+
+    @Test
+    public void offloadedFilterErrorStopsFollowingFrames() {
+        final CountDownLatch invalid = new CountDownLatch(1);
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onInvalidPayloadError(IOException e) {
+                invalid.countDown();
+            }
+        }, 100000, true, PooledBufferAllocator.shared(), mExecutor, 1000);
+        rx.setExtensions(Collections.<Extension>singletonList(new MarkerExtension() {
+            @Override
+            public ByteBuffer onReceivingBinary(ByteBuffer data) {
+                throw new IllegalStateException("Not reached");
+            }
+
+            @Override
+            public ByteBuffer onReceivingText(ByteBuffer data) throws IOException {
+                throw new IOException("Broken payload");
+            }
+        }));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b11000001, new byte[2000])));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b11000010, new byte[2000])));
+        mExecutor.runAll();
+        assertThat(invalid.getCount(), is(0L));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b11000010, new byte[2000])));
+        assertThat(mExecutor.tasks.isEmpty(), is(true));
+    }
+
+    private static class RecordingWriter implements SocketChannelWriter {
+        final List<ByteBuffer> frames = new ArrayList<>();
+
+        /**
+         * Data frames are rejected as {@link net.kazyx.wirespider.WriteOverflowPolicy#FAIL} while this is {@code true}.
+         */
+        volatile boolean unwritable = false;
+
+        @Override
+        public void writeAsync(ByteBuffer data) {
+            writeAsync(data, false);
+        }
+
+        @Override
+        public void writeAsync(ByteBuffer data, boolean bypassFlowControl) {
+            checkWritable(bypassFlowControl);
+            frames.add(data);
+        }
+
+        private void checkWritable(boolean bypassFlowControl) {
+            if (unwritable && !bypassFlowControl) {
+                throw new WriteBufferFullException("Buffered amount exceeds the high watermark");
+            }
+        }
+
+        @Override
+        public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl) {
+            writeAsync(data, bypassFlowControl, null);
+        }
+
+        @Override
+        public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback) {
+            checkWritable(bypassFlowControl);
+            ByteBuffer frame = ByteBuffer.allocate((int) remaining(data));
+            for (ByteBuffer buff : data) {
+                frame.put(buff);
+            }
+            frame.flip();
+            frames.add(frame);
+            if (callback != null) {
+                callback.onSent();
+            }
+        }
+
+        private static long remaining(ByteBuffer[] data) {
+            long remaining = 0;
+            for (ByteBuffer buff : data) {
+                remaining += buff.remaining();
+            }
+            return remaining;
+        }
+
+        void flushTo(Rfc6455Rx rx) {
+            for (ByteBuffer frame : frames) {
+                rx.onDataReceived(frame);
+            }
+            frames.clear();
+        }
+    }
+
+    @Test
+    public void sentMessagesAreWrittenInOrder() {
+        RecordingWriter writer = new RecordingWriter();
+        Rfc6455Tx tx = new Rfc6455Tx(writer, false, PooledBufferAllocator.shared(), mExecutor, 1000);
+        tx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        tx.sendTextAsync("small");
+        assertThat(writer.frames.size(), is(1));
+
+        byte[] large = new byte[2000];
+        tx.sendBinaryAsync(large);
+        // Array of the application is copied before it is filtered on the executor.
+        large[0] = 1;
+        tx.sendTextAsync("following");
+        tx.sendCloseAsync(CloseStatusCode.NORMAL_CLOSURE, "");
+        assertThat(writer.frames.size(), is(1));
+        assertThat(mExtension.filtered, is(1));
+
+        mExecutor.runAll();
+        assertThat(mExtension.filtered, is(3));
+
+        final List<Byte> firstBytes = new ArrayList<>();
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                firstBytes.add(message.get(0));
+                super.onBinaryMessage(message);
+            }
+        };
+        Rfc6455Rx rx = new Rfc6455Rx(listener, 100000, true, PooledBufferAllocator.shared());
+        rx.setExtensions(Collections.<Extension>singletonList(new MarkerExtension()));
+        writer.flushTo(rx);
+        assertThat(listener.events, is(Arrays.asList("text:small", "binary:2000", "text:following",
+                "close:" + CloseStatusCode.NORMAL_CLOSURE.asNumber())));
+        assertThat(firstBytes.get(0), is((byte) 0));
+    }
+
+    @Test
+    public void offloadedFrameRejectedByFailPolicy() {
+        RecordingWriter writer = new RecordingWriter();
+        writer.unwritable = true;
+        Rfc6455Tx tx = new Rfc6455Tx(writer, false, PooledBufferAllocator.shared(), mExecutor, 1000);
+        tx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        final List<IOException> failures = new ArrayList<>();
+        tx.sendBinaryAsync(new byte[2000], new SendCallback() {
+            @Override
+            public void onSent() {
+                throw new AssertionError("Rejected frame is sent");
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                failures.add(e);
+            }
+        });
+        mExecutor.runAll();
+        assertThat(failures.size(), is(1));
+        assertThat(failures.get(0).getCause() instanceof WriteBufferFullException, is(true));
+
+        // Following frames are not held behind the rejected one.
+        writer.unwritable = false;
+        tx.sendTextAsync("small");
+        assertThat(mExecutor.tasks.isEmpty(), is(true));
+        tx.sendCloseAsync(CloseStatusCode.NORMAL_CLOSURE, "");
+        assertThat(mExecutor.tasks.isEmpty(), is(true));
+        assertThat(writer.frames.size(), is(2));
+    }
+
+    @Test
+    public void serialExecutorKeepsOrderOnThreadPool() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            SerialExecutor executor = new SerialExecutor(pool);
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch latch = new CountDownLatch(1000);
+            for (int i = 0; i < 1000; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(index);
+                        latch.countDown();
+                    }
+                });
+            }
+            assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+            for (int i = 0; i < 1000; i++) {
+                assertThat(order.get(i), is(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void serialExecutorContinuesAfterFailedTaskInline() {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.shutdown();
+        SerialExecutor executor = new SerialExecutor(pool);
+        final int[] count = {0};
+        Runnable counter = new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+            }
+        };
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("Failed task");
+                }
+            });
+            throw new AssertionError("Exception of the task is not propagated");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        executor.execute(counter);
+        executor.execute(counter);
+        assertThat(count[0], is(2));
+    }
+
+    @Test
+    public void serialExecutorRunsInlineAfterShutdown() {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.shutdown();
+        final int[] count = {0};
+        new SerialExecutor(pool).execute(new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+            }
+        });
+        assertThat(count[0], is(1));
+    }
+}
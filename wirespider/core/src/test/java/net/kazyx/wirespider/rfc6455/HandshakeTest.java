@@ -11,6 +11,7 @@ package net.kazyx.wirespider.rfc6455;
 
 import net.kazyx.wirespider.Base64Encoder;
 import net.kazyx.wirespider.Handshake;
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.SessionRequest;
 import net.kazyx.wirespider.SilentEventHandler;
 import net.kazyx.wirespider.SocketChannelWriter;
@@ -19,6 +20,9 @@ import net.kazyx.wirespider.exception.HandshakeFailureException;
 import net.kazyx.wirespider.exception.PayloadUnderflowException;
 import net.kazyx.wirespider.extension.ExtensionRequest;
 import net.kazyx.wirespider.extension.compression.DeflateRequest;
+import net.kazyx.wirespider.extension.compression.PerMessageDeflate;
+import net.kazyx.wirespider.extension.compression.PresetDictionaryDeflate;
+import net.kazyx.wirespider.extension.compression.PresetDictionaryRequest;
 import net.kazyx.wirespider.util.Base64;
 import net.kazyx.wirespider.util.HandshakeSecretUtil;
 import org.junit.Before;
@@ -52,7 +56,15 @@ public class HandshakeTest {
             }
 
             @Override
-            public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+            public void writeAsync(ByteBuffer data, boolean bypassFlowControl) {
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl) {
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback) {
             }
         }, true);
     }
@@ -274,7 +286,15 @@ public class HandshakeTest {
             }
 
             @Override
-            public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+            public void writeAsync(ByteBuffer data, boolean bypassFlowControl) {
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl) {
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback) {
             }
         }, false);
         mHandshake.tryUpgrade(DUMMY_URI, null);
@@ -313,6 +333,63 @@ public class HandshakeTest {
         mHandshake.onHandshakeResponse(TestUtil.asByteBuffer(header));
     }
 
+    private static final byte[] DICTIONARY = TestUtil.fixedLengthFixedByteArray(100);
+
+    private void sendUpgradeRequestWithPresetDictionary() {
+        List<ExtensionRequest> exReq = new ArrayList<>();
+        exReq.add(new PresetDictionaryRequest.Builder(DICTIONARY).build());
+        exReq.add(new DeflateRequest.Builder().build());
+        try {
+            mHandshake.tryUpgrade(DUMMY_URI, new SessionRequest.Builder(DUMMY_URI, new SilentEventHandler()).setExtensions(exReq).build());
+        } catch (NullPointerException e) {
+            // Ignore
+        }
+    }
+
+    @Test
+    public void presetDictionaryAccepted() throws PayloadUnderflowException, HandshakeFailureException {
+        sendUpgradeRequestWithPresetDictionary();
+        String hash = ((PresetDictionaryDeflate) new PresetDictionaryRequest.Builder(DICTIONARY).build().extension()).dictionaryHash();
+
+        String secret = getSecret(mHandshake);
+        String header = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Extensions: x-permessage-deflate-dictionary; dictionary_hash=" + hash + "\r\n"
+                + "Sec-WebSocket-Accept: " + HandshakeSecretUtil.scrambleSecret(secret) + "\r\n\r\n";
+        mHandshake.onHandshakeResponse(TestUtil.asByteBuffer(header));
+        assertThat(mHandshake.extensions().size(), is(1));
+        assertThat(mHandshake.extensions().get(0) instanceof PresetDictionaryDeflate, is(true));
+    }
+
+    @Test
+    public void presetDictionaryFallbackToDeflate() throws PayloadUnderflowException, HandshakeFailureException {
+        sendUpgradeRequestWithPresetDictionary();
+
+        String secret = getSecret(mHandshake);
+        String header = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover\r\n"
+                + "Sec-WebSocket-Accept: " + HandshakeSecretUtil.scrambleSecret(secret) + "\r\n\r\n";
+        mHandshake.onHandshakeResponse(TestUtil.asByteBuffer(header));
+        assertThat(mHandshake.extensions().size(), is(1));
+        assertThat(mHandshake.extensions().get(0).name(), is(PerMessageDeflate.NAME));
+    }
+
+    @Test(expected = HandshakeFailureException.class)
+    public void presetDictionaryHashMismatch() throws PayloadUnderflowException, HandshakeFailureException {
+        sendUpgradeRequestWithPresetDictionary();
+
+        String secret = getSecret(mHandshake);
+        String header = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Extensions: x-permessage-deflate-dictionary; dictionary_hash=0x0123456789ABCDEF\r\n"
+                + "Sec-WebSocket-Accept: " + HandshakeSecretUtil.scrambleSecret(secret) + "\r\n\r\n";
+        mHandshake.onHandshakeResponse(TestUtil.asByteBuffer(header));
+    }
+
     private static String getSecret(Rfc6455Handshake handshake) {
         try {
             Field f = Rfc6455Handshake.class.getDeclaredField("mSecret");
@@ -0,0 +1,80 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.rfc6455;
+
+import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.buffer.UnpooledBufferAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decode throughput of small frames streamed in socket-read sized chunks.<br>
+ * Run with {@code java -cp <classpath> net.kazyx.wirespider.rfc6455.RxBenchmark [payload size] [chunk size]}.
+ */
+public class RxBenchmark {
+    private static final int NUM_FRAMES = 1000000;
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) {
+        int payloadSize = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+        byte[] stream = createStream(payloadSize);
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            chunks.add(ByteBuffer.wrap(stream, offset, Math.min(chunkSize, stream.length - offset)).slice());
+        }
+
+        System.out.println("Frames: " + NUM_FRAMES + ", payload: " + payloadSize + " bytes, chunk: " + chunkSize + " bytes");
+        for (int i = 0; i < ITERATIONS; i++) {
+            long nanos = decode(chunks);
+            System.out.println(String.format("#%d: %.1f ms, %.2f M frames/sec", i, nanos / 1e6, NUM_FRAMES * 1e3 / nanos));
+        }
+    }
+
+    private static byte[] createStream(int payloadSize) {
+        int headerSize = payloadSize <= 125 ? 2 : 4;
+        ByteBuffer stream = ByteBuffer.allocate((headerSize + payloadSize) * NUM_FRAMES);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            stream.put((byte) 0x82);
+            if (headerSize == 2) {
+                stream.put((byte) payloadSize);
+            } else {
+                stream.put((byte) 126);
+                stream.putShort((short) payloadSize);
+            }
+            stream.put(new byte[payloadSize]);
+        }
+        return stream.array();
+    }
+
+    private static long decode(List<ByteBuffer> chunks) {
+        final int[] count = {0};
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                count[0]++;
+            }
+        }, Integer.MAX_VALUE, true, new UnpooledBufferAllocator(false));
+
+        long start = System.nanoTime();
+        for (ByteBuffer chunk : chunks) {
+            rx.onDataReceived(chunk.duplicate());
+        }
+        long nanos = System.nanoTime() - start;
+
+        if (count[0] != NUM_FRAMES) {
+            throw new IllegalStateException("Decoded " + count[0] + " frames");
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.rfc6455;
+
+import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.TestUtil;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.util.BinaryUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RxBufferSharingTest {
+    private static byte[] binaryFrame(byte[] payload, boolean isFinal, boolean continuation) {
+        byte[] frame = new byte[4 + payload.length];
+        frame[0] = (byte) ((isFinal ? 0x80 : 0) | (continuation ? 0x00 : 0x02));
+        frame[1] = 126;
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 4, payload.length);
+        return frame;
+    }
+
+    private static ByteBuffer pooledChunk(PooledBufferAllocator allocator, byte[] data, int offset, int length) {
+        ByteBuffer chunk = allocator.allocate(length);
+        chunk.put(data, offset, length);
+        chunk.flip();
+        return chunk;
+    }
+
+    @Test
+    public void largePayloadInSingleChunkIsReadOnlySlice() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        byte[] payload = TestUtil.fixedLengthRandomByteArray(3000);
+        byte[] frame = binaryFrame(payload, true, false);
+
+        final List<ByteBuffer> received = new ArrayList<>();
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                received.add(message);
+            }
+        }, 100000, true, allocator);
+        rx.onDataReceived(pooledChunk(allocator, frame, 0, frame.length));
+
+        assertThat(received.size(), is(1));
+        assertThat(received.get(0).isReadOnly(), is(true));
+        // The chunk referred by the message must not be recycled.
+        assertThat(allocator.pooledCount(), is(0));
+
+        ByteBuffer next = allocator.allocate(frame.length);
+        next.put(new byte[frame.length]);
+        assertThat(Arrays.equals(payload, BinaryUtil.toBytesRemaining(received.get(0))), is(true));
+    }
+
+    @Test
+    public void payloadAcrossChunksIsCopiedOnceAndChunksAreRecycled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        byte[] payload = TestUtil.fixedLengthRandomByteArray(3000);
+        byte[] frame = binaryFrame(payload, true, false);
+
+        final List<ByteBuffer> received = new ArrayList<>();
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                received.add(message);
+            }
+        }, 100000, true, allocator);
+        rx.onDataReceived(pooledChunk(allocator, frame, 0, 1000));
+        rx.onDataReceived(pooledChunk(allocator, frame, 1000, 1000));
+        rx.onDataReceived(pooledChunk(allocator, frame, 2000, frame.length - 2000));
+
+        assertThat(received.size(), is(1));
+        assertThat(received.get(0).isReadOnly(), is(false));
+        assertThat(received.get(0).array().length, is(payload.length));
+        assertThat(Arrays.equals(payload, received.get(0).array()), is(true));
+        assertThat(allocator.pooledCount(), is(3));
+    }
+
+    @Test
+    public void textPayloadSliceDoesNotRetainChunk() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        final String text = TestUtil.fixedLengthFixedString(100);
+        byte[] payload = BinaryUtil.fromText(text);
+        byte[] frame = new byte[2 + payload.length];
+        frame[0] = (byte) 0x81;
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+
+        final List<String> received = new ArrayList<>();
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onTextMessage(String message) {
+                received.add(message);
+            }
+        }, 100000, true, allocator);
+        rx.onDataReceived(pooledChunk(allocator, frame, 0, frame.length));
+
+        assertThat(received.size(), is(1));
+        assertThat(received.get(0), is(text));
+        assertThat(allocator.pooledCount(), is(1));
+    }
+
+    @Test
+    public void fragmentsAreAssembledIntoSingleBuffer() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+        byte[] payload = TestUtil.fixedLengthRandomByteArray(6000);
+        byte[] first = binaryFrame(Arrays.copyOfRange(payload, 0, 3000), false, false);
+        byte[] last = binaryFrame(Arrays.copyOfRange(payload, 3000, 6000), true, true);
+
+        final List<ByteBuffer> received = new ArrayList<>();
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                received.add(message);
+            }
+        }, 100000, true, allocator);
+        rx.onDataReceived(pooledChunk(allocator, first, 0, first.length));
+        assertThat(received.size(), is(0));
+        rx.onDataReceived(pooledChunk(allocator, last, 0, last.length));
+
+        assertThat(received.size(), is(1));
+        assertThat(received.get(0).array().length, is(payload.length));
+        assertThat(Arrays.equals(payload, received.get(0).array()), is(true));
+    }
+}
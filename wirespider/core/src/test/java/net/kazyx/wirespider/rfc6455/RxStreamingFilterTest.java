@@ -0,0 +1,206 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.rfc6455;
+
+import net.kazyx.wirespider.CustomLatch;
+import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.exception.PayloadOverflowException;
+import net.kazyx.wirespider.extension.Extension;
+import net.kazyx.wirespider.extension.PayloadFilter;
+import net.kazyx.wirespider.extension.StreamingPayloadFilter;
+import net.kazyx.wirespider.util.BinaryUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RxStreamingFilterTest {
+    /**
+     * Doubles each byte of the payload, which is restored frame by frame.
+     */
+    private static class DoublingExtension implements Extension, StreamingPayloadFilter {
+        final List<Integer> fragments = new ArrayList<>();
+        private final ByteArrayOutputStream mMessage = new ByteArrayOutputStream();
+
+        @Override
+        public String name() {
+            return "x-doubling";
+        }
+
+        @Override
+        public boolean accept(String[] parameters) {
+            return true;
+        }
+
+        @Override
+        public PayloadFilter filter() {
+            return this;
+        }
+
+        @Override
+        public byte reservedBits() {
+            return 0b01000000;
+        }
+
+        @Override
+        public ByteBuffer onReceivingFragment(ByteBuffer fragment, boolean isFinal, int maxSize) throws PayloadOverflowException {
+            fragments.add(fragment.remaining());
+            while (fragment.hasRemaining()) {
+                byte b = fragment.get();
+                mMessage.write(b);
+                mMessage.write(b);
+            }
+            if (mMessage.size() > maxSize) {
+                mMessage.reset();
+                throw new PayloadOverflowException("Too large");
+            }
+            if (!isFinal) {
+                return null;
+            }
+            ByteBuffer message = ByteBuffer.wrap(mMessage.toByteArray());
+            mMessage.reset();
+            return message;
+        }
+
+        @Override
+        public ByteBuffer onSendingText(ByteBuffer data) throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public ByteBuffer onSendingBinary(ByteBuffer data) throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public ByteBuffer onReceivingText(ByteBuffer data) throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public ByteBuffer onReceivingBinary(ByteBuffer data) throws IOException {
+            throw new IOException("Not supported");
+        }
+    }
+
+    private static byte[] frame(int first, byte... payload) {
+        byte[] frame = new byte[2 + payload.length];
+        frame[0] = (byte) first;
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+
+    private final DoublingExtension mExtension = new DoublingExtension();
+
+    @Test
+    public void fragmentsAreFilteredAsTheyArrive() {
+        final List<byte[]> received = new ArrayList<>();
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                received.add(BinaryUtil.toBytesRemaining(message));
+            }
+
+            @Override
+            public void onPongFrame(String message) {
+            }
+        }, 1000, true, PooledBufferAllocator.shared());
+        rx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        // Reserved bit is set only on the first frame.
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b01000010, (byte) 1, (byte) 2)));
+        assertThat(mExtension.fragments.size(), is(1));
+        // Control frame in the middle of the fragmented message.
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10001010)));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b00000000, (byte) 3)));
+        assertThat(mExtension.fragments.size(), is(2));
+        assertThat(received.isEmpty(), is(true));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000000, (byte) 4)));
+
+        assertThat(mExtension.fragments.size(), is(3));
+        assertThat(received.size(), is(1));
+        assertThat(Arrays.equals(received.get(0), new byte[]{1, 1, 2, 2, 3, 3, 4, 4}), is(true));
+    }
+
+    @Test
+    public void uncompressedMessageIsNotFiltered() {
+        final CustomLatch latch = new CustomLatch(1);
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onBinaryMessage(ByteBuffer message) {
+                latch.countDown();
+            }
+        }, 1000, true, PooledBufferAllocator.shared());
+        rx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b00000010, (byte) 1)));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000000, (byte) 2)));
+        assertThat(latch.isUnlockedByCountDown(), is(true));
+        assertThat(mExtension.fragments.isEmpty(), is(true));
+    }
+
+    @Test
+    public void filteredPayloadOverflow() {
+        final CustomLatch latch = new CustomLatch(1);
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onPayloadOverflow() {
+                latch.countDown();
+            }
+        }, 4, true, PooledBufferAllocator.shared());
+        rx.setExtensions(Collections.<Extension>singletonList(mExtension));
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b01000010, (byte) 1, (byte) 2)));
+        assertThat(latch.getCount(), is(1L));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000000, (byte) 3)));
+        assertThat(latch.isUnlockedByCountDown(), is(true));
+    }
+
+    @Test
+    public void assembledPayloadOverflow() {
+        final CustomLatch latch = new CustomLatch(1);
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onPayloadOverflow() {
+                latch.countDown();
+            }
+        }, 4, true, PooledBufferAllocator.shared());
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b00000010, (byte) 1, (byte) 2, (byte) 3)));
+        assertThat(latch.getCount(), is(1L));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000000, (byte) 4, (byte) 5)));
+        assertThat(latch.isUnlockedByCountDown(), is(true));
+    }
+
+    @Test
+    public void dataFrameInTheMiddleOfFragmentedMessage() {
+        final CustomLatch latch = new CustomLatch(1);
+        Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+            @Override
+            public void onProtocolViolation() {
+                latch.countDown();
+            }
+        }, 1000, true, PooledBufferAllocator.shared());
+
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b00000010, (byte) 1)));
+        rx.onDataReceived(ByteBuffer.wrap(frame(0b10000010, (byte) 2)));
+        assertThat(latch.isUnlockedByCountDown(), is(true));
+    }
+}
@@ -13,6 +13,8 @@ import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.CustomLatch;
 import net.kazyx.wirespider.FailOnCallbackRxListener;
 import net.kazyx.wirespider.TestUtil;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.util.BinaryUtil;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
@@ -31,7 +33,7 @@ public class RxUnusualCasesTest {
                 public void onProtocolViolation() {
                     latch.countDown();
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -43,7 +45,7 @@ public class RxUnusualCasesTest {
                 public void onProtocolViolation() {
                     latch.countDown();
                 }
-            }, 1000, false);
+            }, 1000, false, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -162,7 +164,7 @@ public class RxUnusualCasesTest {
             Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
                 public void onBinaryMessage(ByteBuffer message) {
-                    assertThat(message.array().length, is(limit));
+                    assertThat(message.remaining(), is(limit));
                     assertThat(latch.getCount(), is(1L));
                 }
 
@@ -170,7 +172,7 @@ public class RxUnusualCasesTest {
                 public void onPayloadOverflow() {
                     latch.countDown();
                 }
-            }, limit, true);
+            }, limit, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.getCount(), is(1L));
             rx.onDataReceived(ByteBuffer.wrap(overflowData));
@@ -323,7 +325,7 @@ public class RxUnusualCasesTest {
                     // Just checks long int range in extended payload length is treated as payload overflow.
                     latch.countDown();
                 }
-            }, Integer.MAX_VALUE, true);
+            }, Integer.MAX_VALUE, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(overflowData));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -343,7 +345,7 @@ public class RxUnusualCasesTest {
                 public void onPingFrame(String message) {
                     latch.countDown();
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -380,7 +382,7 @@ public class RxUnusualCasesTest {
                         latch.unlockByFailure();
                     }
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -404,7 +406,7 @@ public class RxUnusualCasesTest {
                         latch.unlockByFailure();
                     }
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
             rx.onDataReceived(ByteBuffer.wrap(data));
             assertThat(latch.isUnlockedByCountDown(), is(true));
         }
@@ -437,13 +439,13 @@ public class RxUnusualCasesTest {
             Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
                 public void onBinaryMessage(ByteBuffer message) {
-                    if (Arrays.equals(payload, message.array())) {
+                    if (Arrays.equals(payload, BinaryUtil.toBytesRemaining(message))) {
                         latch.countDown();
                     } else {
                         latch.unlockByFailure();
                     }
                 }
-            }, 1000, false);
+            }, 1000, false, PooledBufferAllocator.shared());
 
             for (int i = 0; i < data.length - 1; i++) {
                 rx.onDataReceived(ByteBuffer.wrap(new byte[]{data[i]}));
@@ -454,6 +456,72 @@ public class RxUnusualCasesTest {
                 }
             }
         }
+
+        @Test
+        public void manyFramesInSingleBuffer() {
+            int numFrames = 100000;
+            ByteBuffer data = ByteBuffer.allocate(2 * numFrames);
+            for (int i = 0; i < numFrames; i++) {
+                data.put((byte) 0b10000010);
+                data.put((byte) 0);
+            }
+            data.flip();
+
+            final int[] count = {0};
+            Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onBinaryMessage(ByteBuffer message) {
+                    count[0]++;
+                }
+            }, 1000, true, PooledBufferAllocator.shared());
+            rx.onDataReceived(data);
+            assertThat(count[0], is(numFrames));
+        }
+
+        @Test
+        public void nothingDecodedAfterProtocolViolation() {
+            final CustomLatch latch = new CustomLatch(1);
+            Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onProtocolViolation() {
+                    latch.countDown();
+                }
+            }, 1000, true, PooledBufferAllocator.shared());
+            rx.onDataReceived(ByteBuffer.wrap(new byte[]{(byte) 0b11000010, 0}));
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+
+            // FailOnCallbackRxListener fails if this is decoded.
+            rx.onDataReceived(ByteBuffer.wrap(new byte[]{(byte) 0b10000010, 0}));
+        }
+
+        @Test
+        public void pendingBytesOfPayload() {
+            int length = 1000;
+            byte[] data = new byte[4 + length];
+            data[0] = (byte) 0b10000010;
+            data[1] = 126;
+            data[2] = (byte) (length >>> 8);
+            data[3] = (byte) length;
+
+            final CustomLatch latch = new CustomLatch(1);
+            Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onBinaryMessage(ByteBuffer message) {
+                    latch.countDown();
+                }
+            }, 1000, true, PooledBufferAllocator.shared());
+            assertThat(rx.pendingBytes(), is(0));
+
+            rx.onDataReceived(ByteBuffer.wrap(data, 0, 2));
+            assertThat(rx.pendingBytes(), is(0));
+
+            rx.onDataReceived(ByteBuffer.wrap(data, 2, 302));
+            assertThat(rx.pendingBytes(), is(700));
+
+            rx.onDataReceived(ByteBuffer.wrap(data, 304, 700));
+            assertThat(latch.isUnlockedByCountDown(), is(true));
+            assertThat(rx.pendingBytes(), is(0));
+        }
     }
 
     public static class ContinuationFrameTest {
@@ -466,13 +534,13 @@ public class RxUnusualCasesTest {
             Rfc6455Rx rx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
                 public void onBinaryMessage(ByteBuffer message) {
-                    if (Arrays.equals(payload, message.array())) {
+                    if (Arrays.equals(payload, BinaryUtil.toBytesRemaining(message))) {
                         latch.countDown();
                     } else {
                         latch.unlockByFailure();
                     }
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
 
             for (int i = 0; i < payloadSize; i++) {
                 byte[] data = new byte[2 + 1];
@@ -510,7 +578,7 @@ public class RxUnusualCasesTest {
                         latch.unlockByFailure();
                     }
                 }
-            }, 1000, true);
+            }, 1000, true, PooledBufferAllocator.shared());
 
             for (int i = 0; i < payloadSize; i++) {
                 byte[] data = new byte[2 + 1];
@@ -11,13 +11,19 @@ package net.kazyx.wirespider.rfc6455;
 
 import net.kazyx.wirespider.CloseStatusCode;
 import net.kazyx.wirespider.FailOnCallbackRxListener;
+import net.kazyx.wirespider.SendCallback;
 import net.kazyx.wirespider.SocketChannelWriter;
 import net.kazyx.wirespider.TestUtil;
+import net.kazyx.wirespider.buffer.PooledBufferAllocator;
+import net.kazyx.wirespider.util.BinaryUtil;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -47,9 +53,24 @@ public class TxTest {
             }
 
             @Override
-            public void writeAsync(ByteBuffer data, boolean calledOnSelectorThread) {
+            public void writeAsync(ByteBuffer data, boolean bypassFlowControl) {
                 mRx.onDataReceived(data);
             }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl) {
+                writeAsync(data, bypassFlowControl, null);
+            }
+
+            @Override
+            public void writeAsync(ByteBuffer[] data, boolean bypassFlowControl, SendCallback callback) {
+                for (ByteBuffer buff : data) {
+                    mRx.onDataReceived(buff);
+                }
+                if (callback != null) {
+                    callback.onSent();
+                }
+            }
         }
 
         Rfc6455Tx mTx;
@@ -57,7 +78,7 @@ public class TxTest {
 
         @Before
         public void setup() {
-            mTx = new Rfc6455Tx(new DummyWriter(), !fromServer());
+            mTx = new Rfc6455Tx(new DummyWriter(), !fromServer(), PooledBufferAllocator.shared());
         }
 
         @Test
@@ -68,7 +89,7 @@ public class TxTest {
                 public void onPingFrame(String message) {
                     assertThat(message, is(msg));
                 }
-            }, 100000, fromServer());
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
             mTx.sendPingAsync(msg);
         }
 
@@ -80,7 +101,7 @@ public class TxTest {
                 public void onPongFrame(String message) {
                     assertThat(message, is(pong));
                 }
-            }, 100000, fromServer());
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
             mTx.sendPongAsync(pong);
         }
 
@@ -93,7 +114,7 @@ public class TxTest {
                     assertThat(status, is(code.asNumber()));
                     assertThat(reason, is(code.name()));
                 }
-            }, 100000, fromServer());
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
             mTx.sendCloseAsync(code, code.name());
         }
 
@@ -127,6 +148,74 @@ public class TxTest {
             binary(100000);
         }
 
+        @Test
+        public void shortHeapByteBuffer() {
+            byteBuffer(100, false);
+        }
+
+        @Test
+        public void largeHeapByteBuffer() {
+            byteBuffer(100000, false);
+        }
+
+        @Test
+        public void shortDirectByteBuffer() {
+            byteBuffer(100, true);
+        }
+
+        @Test
+        public void largeDirectByteBuffer() {
+            byteBuffer(100000, true);
+        }
+
+        private void byteBuffer(int length, boolean direct) {
+            final byte[] msg = TestUtil.fixedLengthRandomByteArray(length);
+            final int[] count = {0};
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onBinaryMessage(ByteBuffer data) {
+                    assertThat(Arrays.equals(msg, BinaryUtil.toBytesRemaining(data)), is(true));
+                    count[0]++;
+                }
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
+
+            ByteBuffer data = direct ? ByteBuffer.allocateDirect(length + 10) : ByteBuffer.allocate(length + 10);
+            data.position(5);
+            data.put(msg);
+            data.flip();
+            data.position(5);
+            mTx.sendBinaryAsync(data);
+
+            assertThat(count[0], is(1));
+            assertThat(data.position(), is(5));
+            assertThat(data.limit(), is(length + 5));
+        }
+
+        @Test
+        public void callbackFailsAfterCloseFrame() {
+            mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
+                @Override
+                public void onCloseFrame(int code, String reason) {
+                }
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
+
+            final List<String> events = new ArrayList<>();
+            SendCallback callback = new SendCallback() {
+                @Override
+                public void onSent() {
+                    events.add("sent");
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    events.add("failed");
+                }
+            };
+            mTx.sendCloseAsync(CloseStatusCode.NORMAL_CLOSURE, "bye", callback);
+            mTx.sendTextAsync("hello", callback);
+            assertThat(events, is(Arrays.asList("sent", "failed")));
+        }
+
         private void text(int length) {
             final String msg = TestUtil.fixedLengthFixedString(length);
             mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
@@ -134,7 +223,7 @@ public class TxTest {
                 public void onTextMessage(String text) {
                     assertThat(text, is(msg));
                 }
-            }, 100000, fromServer());
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
             mTx.sendTextAsync(msg);
         }
 
@@ -143,10 +232,13 @@ public class TxTest {
             mRx = new Rfc6455Rx(new FailOnCallbackRxListener() {
                 @Override
                 public void onBinaryMessage(ByteBuffer data) {
-                    assertThat(Arrays.equals(msg, data.array()), is(true));
+                    assertThat(Arrays.equals(msg, BinaryUtil.toBytesRemaining(data)), is(true));
                 }
-            }, 100000, fromServer());
-            mTx.sendBinaryAsync(Arrays.copyOf(msg, msg.length));
+            }, 100000, fromServer(), PooledBufferAllocator.shared());
+            byte[] data = Arrays.copyOf(msg, msg.length);
+            mTx.sendBinaryAsync(data);
+            // Source data is not masked in place.
+            assertThat(Arrays.equals(msg, data), is(true));
         }
     }
 }
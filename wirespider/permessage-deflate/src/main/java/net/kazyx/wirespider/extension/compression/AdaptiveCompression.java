@@ -0,0 +1,108 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+/**
+ * Compression policy of a connection, which chooses the compression level by the message size
+ * and backs off from the size bands where messages are not reduced.<br>
+ * {@link CompressionGovernor} shared with the other connections degrades them further under load.
+ */
+final class AdaptiveCompression {
+    /**
+     * Compression must save at least 1/8 of the message to be worth running.
+     */
+    private static final int MIN_SAVING_SHIFT = 3;
+
+    /**
+     * Maximum number of messages skipped before the next sample.
+     */
+    static final int MAX_BACKOFF = 64;
+
+    private final boolean mBackoffEnabled;
+    private final int mLevel;
+    private final int mLargeMessageSize;
+    private final int mLargeMessageLevel;
+    private final CompressionGovernor mGovernor;
+
+    /**
+     * Number of messages to skip after the latest failed sample, and the rest of them for each band.
+     */
+    private final int[] mBackoff = new int[CompressionStats.BANDS];
+    private final int[] mSkipRemaining = new int[CompressionStats.BANDS];
+
+    /**
+     * @param backoffEnabled {@code true} to skip compression for the bands where messages are not reduced.
+     * @param level Compression level.
+     * @param largeMessageSize Minimum size of messages to use {@code largeMessageLevel}.
+     * @param largeMessageLevel Compression level for large messages.
+     * @param governor Governor shared with the other connections, or {@code null}.
+     */
+    AdaptiveCompression(boolean backoffEnabled, int level, int largeMessageSize, int largeMessageLevel, CompressionGovernor governor) {
+        mBackoffEnabled = backoffEnabled;
+        mLevel = level;
+        mLargeMessageSize = largeMessageSize;
+        mLargeMessageLevel = largeMessageLevel;
+        mGovernor = governor;
+    }
+
+    /**
+     * @param level Compression level for any messages.
+     * @return Policy which always compresses messages at the given level.
+     */
+    static AdaptiveCompression fixed(int level) {
+        return new AdaptiveCompression(false, level, Integer.MAX_VALUE, level, null);
+    }
+
+    /**
+     * @return Current mode of the governor, which is read once for each message.
+     */
+    CompressionGovernor.Mode mode() {
+        return mGovernor == null ? CompressionGovernor.Mode.NORMAL : mGovernor.mode();
+    }
+
+    int level(int size, CompressionGovernor.Mode mode) {
+        int level = size < mLargeMessageSize ? mLevel : mLargeMessageLevel;
+        return mGovernor == null ? level : mGovernor.level(mode, level);
+    }
+
+    boolean shouldCompress(int size, int band, CompressionGovernor.Mode mode) {
+        if (mGovernor != null && !mGovernor.shouldCompress(mode, size)) {
+            mGovernor.onSkipped(mode, size);
+            return false;
+        }
+        synchronized (this) {
+            if (mSkipRemaining[band] == 0) {
+                return true;
+            }
+            mSkipRemaining[band]--;
+            return false;
+        }
+    }
+
+    void onCompressed(int band, int originalSize, int compressedSize, long nanos) {
+        if (mGovernor != null) {
+            mGovernor.onCompressed(originalSize, nanos);
+        }
+        onSampled(band, originalSize, compressedSize);
+    }
+
+    private synchronized void onSampled(int band, int originalSize, int compressedSize) {
+        if (!mBackoffEnabled) {
+            return;
+        }
+        if (compressedSize <= originalSize - (originalSize >> MIN_SAVING_SHIFT)) {
+            mBackoff[band] = 0;
+        } else {
+            // Exponential backoff, so that a band of incompressible messages is sampled less often.
+            mBackoff[band] = Math.min(Math.max(mBackoff[band] * 2, 1), MAX_BACKOFF);
+            mSkipRemaining[band] = mBackoff[band];
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Budget of the time spent in compression, shared by all of the connections of the {@link DeflateRequest}s it is set to.<br>
+ * Compression degrades step by step while the budget is exceeded, and recovers step by step when the usage drops below half of it.
+ * <p>
+ * Usage is evaluated for each period of one second. The time is measured as elapsed time around the compressor,
+ * so that it also includes the time the compressing thread is preempted.
+ * Recovery takes the messages skipped by the current mode into account, estimated by the time per byte measured last,
+ * so that the compression is not resumed under the same load.
+ * </p>
+ */
+public final class CompressionGovernor {
+    public enum Mode {
+        /**
+         * Compress as configured.
+         */
+        NORMAL,
+        /**
+         * Compress at the reduced level.
+         */
+        REDUCED_LEVEL,
+        /**
+         * Compress at the reduced level, only the messages not smaller than the raised threshold.
+         */
+        RAISED_THRESHOLD,
+        /**
+         * Send all of the messages without compression.
+         */
+        BYPASS,
+    }
+
+    private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Level equivalent to {@link Deflater#DEFAULT_COMPRESSION} in zlib.
+     */
+    private static final int ZLIB_DEFAULT_LEVEL = 6;
+
+    private final long mBudgetNanosPerSecond;
+    private final int mReducedLevel;
+    private final int mRaisedThreshold;
+
+    private final AtomicLong mUsedNanos = new AtomicLong();
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+    /**
+     * Size of the messages skipped by the current mode, which would be compressed in the next mode up.
+     */
+    private final AtomicLong mSkippedBytes = new AtomicLong();
+    /**
+     * Compression time per byte in the latest period with any compression. Guarded by this.
+     */
+    private double mNanosPerByte = 0;
+    private volatile long mPeriodStart;
+    private volatile Mode mMode = Mode.NORMAL;
+    private volatile long mLastUsageNanosPerSecond = 0;
+
+    /**
+     * Reduce the level to {@link Deflater#BEST_SPEED}, and raise the threshold to 1024 bytes.
+     *
+     * @param budgetNanosPerSecond Time in nanoseconds allowed to spend in compression per second, summed up over the threads.
+     * @throws IllegalArgumentException If {@code budgetNanosPerSecond} is not positive.
+     */
+    public CompressionGovernor(long budgetNanosPerSecond) {
+        this(budgetNanosPerSecond, Deflater.BEST_SPEED, 1024);
+    }
+
+    /**
+     * @param budgetNanosPerSecond Time in nanoseconds allowed to spend in compression per second, summed up over the threads.
+     * @param reducedLevel Compression level in {@link Mode#REDUCED_LEVEL} and {@link Mode#RAISED_THRESHOLD},
+     * from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}. Lower levels configured for the request are kept.
+     * @param raisedThreshold Minimum size of messages to compress in {@link Mode#RAISED_THRESHOLD} in bytes.
+     * @throws IllegalArgumentException If any of the arguments is out of range.
+     */
+    public CompressionGovernor(long budgetNanosPerSecond, int reducedLevel, int raisedThreshold) {
+        if (budgetNanosPerSecond <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetNanosPerSecond);
+        }
+        if (reducedLevel < Deflater.NO_COMPRESSION || Deflater.BEST_COMPRESSION < reducedLevel) {
+            throw new IllegalArgumentException("Invalid compression level: " + reducedLevel);
+        }
+        if (raisedThreshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + raisedThreshold);
+        }
+        mBudgetNanosPerSecond = budgetNanosPerSecond;
+        mReducedLevel = reducedLevel;
+        mRaisedThreshold = raisedThreshold;
+        mPeriodStart = System.nanoTime();
+    }
+
+    public long budgetNanosPerSecond() {
+        return mBudgetNanosPerSecond;
+    }
+
+    /**
+     * @return Current mode of compression.
+     */
+    public Mode mode() {
+        return mode(System.nanoTime());
+    }
+
+    /**
+     * @return Time spent in compression per second in the latest period, in nanoseconds.
+     */
+    public long lastUsageNanosPerSecond() {
+        return mLastUsageNanosPerSecond;
+    }
+
+    Mode mode(long now) {
+        if (now - mPeriodStart >= PERIOD_NANOS) {
+            evaluate(now);
+        }
+        return mMode;
+    }
+
+    void onCompressed(int size, long nanos) {
+        mUsedNanos.addAndGet(nanos);
+        mCompressedBytes.addAndGet(size);
+    }
+
+    /**
+     * @param mode Mode which skipped the message.
+     * @param size Size of the message skipped.
+     */
+    void onSkipped(Mode mode, int size) {
+        if (mode == Mode.BYPASS && size < mRaisedThreshold) {
+            // Not compressed by the next mode either.
+            return;
+        }
+        mSkippedBytes.addAndGet(size);
+    }
+
+    /**
+     * @return {@code false} if the message should be sent without compression in the given mode.
+     */
+    boolean shouldCompress(Mode mode, int size) {
+        switch (mode) {
+            case BYPASS:
+                return false;
+            case RAISED_THRESHOLD:
+                return size >= mRaisedThreshold;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return Compression level in the given mode.
+     */
+    int level(Mode mode, int level) {
+        if (mode == Mode.NORMAL) {
+            return level;
+        }
+        int configured = level == Deflater.DEFAULT_COMPRESSION ? ZLIB_DEFAULT_LEVEL : level;
+        return Math.min(configured, mReducedLevel);
+    }
+
+    private synchronized void evaluate(long now) {
+        long elapsed = now - mPeriodStart;
+        if (elapsed < PERIOD_NANOS) {
+            // Evaluated by another thread.
+            return;
+        }
+        long used = mUsedNanos.getAndSet(0);
+        long compressedBytes = mCompressedBytes.getAndSet(0);
+        long skippedBytes = mSkippedBytes.getAndSet(0);
+        if (compressedBytes != 0) {
+            mNanosPerByte = (double) used / compressedBytes;
+        }
+        long usage = (long) ((double) used * PERIOD_NANOS / elapsed);
+        // Usage after the recovery, including the messages skipped in this period.
+        long projected = usage + (long) (skippedBytes * mNanosPerByte * PERIOD_NANOS / elapsed);
+        mLastUsageNanosPerSecond = usage;
+        Mode[] modes = Mode.values();
+        if (usage > mBudgetNanosPerSecond && mMode != Mode.BYPASS) {
+            mMode = modes[mMode.ordinal() + 1];
+        } else if (projected < mBudgetNanosPerSecond / 2 && mMode != Mode.NORMAL) {
+            mMode = modes[mMode.ordinal() - 1];
+        }
+        mPeriodStart = now;
+    }
+}
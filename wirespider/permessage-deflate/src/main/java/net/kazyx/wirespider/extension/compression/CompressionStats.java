@@ -0,0 +1,155 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Results of compression for outgoing messages, counted for each band of message size.<br>
+ * Useful to tune the compression threshold: bands of poor ratio are not worth compressing.
+ */
+public final class CompressionStats {
+    private static final int[] BAND_LOWER_BOUNDS = {0, 256, 1024, 4 * 1024, 16 * 1024, 64 * 1024};
+
+    /**
+     * Number of the message size bands.
+     */
+    public static final int BANDS = BAND_LOWER_BOUNDS.length;
+
+    /**
+     * @param size Size of the message in bytes.
+     * @return Index of the band which the message size belongs to.
+     */
+    public static int bandOf(int size) {
+        int band = BANDS - 1;
+        while (size < BAND_LOWER_BOUNDS[band]) {
+            band--;
+        }
+        return band;
+    }
+
+    /**
+     * @param band Index of the band.
+     * @return Minimum message size of the band in bytes.
+     */
+    public static int lowerBoundOf(int band) {
+        return BAND_LOWER_BOUNDS[band];
+    }
+
+    private final CompressionStats mParent;
+
+    private final AtomicLongArray mCompressedMessages = new AtomicLongArray(BANDS);
+    private final AtomicLongArray mSkippedMessages = new AtomicLongArray(BANDS);
+    private final AtomicLongArray mOriginalBytes = new AtomicLongArray(BANDS);
+    private final AtomicLongArray mCompressedBytes = new AtomicLongArray(BANDS);
+    private final AtomicLong mCompressionNanos = new AtomicLong();
+
+    /**
+     * @param parent Stats which the results are also counted into, or {@code null}.
+     */
+    CompressionStats(CompressionStats parent) {
+        mParent = parent;
+    }
+
+    void onCompressed(int band, int originalSize, int compressedSize, long nanos) {
+        mCompressedMessages.incrementAndGet(band);
+        mOriginalBytes.addAndGet(band, originalSize);
+        mCompressedBytes.addAndGet(band, compressedSize);
+        mCompressionNanos.addAndGet(nanos);
+        if (mParent != null) {
+            mParent.onCompressed(band, originalSize, compressedSize, nanos);
+        }
+    }
+
+    void onSkipped(int band) {
+        mSkippedMessages.incrementAndGet(band);
+        if (mParent != null) {
+            mParent.onSkipped(band);
+        }
+    }
+
+    /**
+     * @return Number of the messages which the compressor ran for, including the ones sent without compression as they are not reduced.
+     */
+    public long compressedMessages() {
+        return sum(mCompressedMessages);
+    }
+
+    /**
+     * @param band Index of the band.
+     * @return Number of the messages in the band which the compressor ran for.
+     */
+    public long compressedMessages(int band) {
+        return mCompressedMessages.get(band);
+    }
+
+    /**
+     * @return Number of the messages sent without running the compressor.
+     */
+    public long skippedMessages() {
+        return sum(mSkippedMessages);
+    }
+
+    /**
+     * @param band Index of the band.
+     * @return Number of the messages in the band sent without running the compressor.
+     */
+    public long skippedMessages(int band) {
+        return mSkippedMessages.get(band);
+    }
+
+    /**
+     * @return Compressed size divided by original size of the compressed messages, or {@code 1.0} if none.
+     */
+    public double ratio() {
+        return ratio(sum(mOriginalBytes), sum(mCompressedBytes));
+    }
+
+    /**
+     * @param band Index of the band.
+     * @return Compressed size divided by original size of the compressed messages in the band, or {@code 1.0} if none.
+     */
+    public double ratio(int band) {
+        return ratio(mOriginalBytes.get(band), mCompressedBytes.get(band));
+    }
+
+    /**
+     * @return Total time spent by the compressor in nanoseconds, on the threads sending messages.
+     */
+    public long compressionTimeNanos() {
+        return mCompressionNanos.get();
+    }
+
+    /**
+     * Reset all of the counts to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < BANDS; i++) {
+            mCompressedMessages.set(i, 0);
+            mSkippedMessages.set(i, 0);
+            mOriginalBytes.set(i, 0);
+            mCompressedBytes.set(i, 0);
+        }
+        mCompressionNanos.set(0);
+    }
+
+    private static double ratio(long original, long compressed) {
+        return original == 0 ? 1.0 : (double) compressed / original;
+    }
+
+    private static long sum(AtomicLongArray array) {
+        long sum = 0;
+        for (int i = 0; i < array.length(); i++) {
+            sum += array.get(i);
+        }
+        return sum;
+    }
+}
@@ -9,12 +9,13 @@
 
 package net.kazyx.wirespider.extension.compression;
 
-import net.kazyx.wirespider.extension.PayloadFilter;
+import net.kazyx.wirespider.exception.PayloadOverflowException;
+import net.kazyx.wirespider.extension.StreamingPayloadFilter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-class DeflateFilter implements PayloadFilter {
+class DeflateFilter implements StreamingPayloadFilter {
     private final PerMessageDeflate mDeflater;
 
     DeflateFilter(PerMessageDeflate deflater) {
@@ -41,13 +42,19 @@ class DeflateFilter implements PayloadFilter {
         return onReceivingMessage(data);
     }
 
+    @Override
+    public ByteBuffer onReceivingFragment(ByteBuffer fragment, boolean isFinal, int maxSize) throws PayloadOverflowException, IOException {
+        return mDeflater.decompressFragment(fragment, isFinal, maxSize);
+    }
+
     private ByteBuffer onSendingMessage(ByteBuffer data) throws IOException {
         int pos = data.position();
         int limit = data.limit();
         int remaining = data.remaining();
         try {
             ByteBuffer compressed = mDeflater.compress(data);
-            if (compressed.remaining() <= remaining) {
+            // Receiver's context does not follow the message sent without compression.
+            if (compressed.remaining() <= remaining || mDeflater.isCompressionContextTakenOver()) {
                 return compressed;
             }
         } catch (IOException e) {
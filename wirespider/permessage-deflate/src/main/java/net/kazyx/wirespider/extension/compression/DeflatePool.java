@@ -0,0 +1,181 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pool of compressors and decompressors shared by the connections without context takeover.<br>
+ * They are checked out for each message, so that the number of instances follows the number of concurrent messages
+ * instead of the number of connections.
+ * <p>
+ * Instances beyond the maximum idle count are released by {@link Deflater#end()} and {@link Inflater#end()} on return.
+ * </p>
+ */
+public final class DeflatePool {
+    private static final DeflatePool SHARED = new DeflatePool(Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * @return Pool used by {@link DeflateRequest} by default. Maximum idle count is twice the number of available processors.
+     */
+    public static DeflatePool shared() {
+        return SHARED;
+    }
+
+    private final ArrayDeque<Deflater> mIdleCompressors = new ArrayDeque<>();
+    private final ArrayDeque<Inflater> mIdleDecompressors = new ArrayDeque<>();
+
+    private int mMaxIdle;
+    private int mBorrowedCompressors = 0;
+    private int mBorrowedDecompressors = 0;
+    private boolean mIsDestroyed = false;
+
+    /**
+     * @param maxIdle Maximum number of idle compressors and decompressors respectively.
+     * @throws IllegalArgumentException If {@code maxIdle} is negative.
+     */
+    public DeflatePool(int maxIdle) {
+        setMaxIdle(maxIdle);
+    }
+
+    /**
+     * Idle instances beyond the new maximum are released immediately.
+     *
+     * @param maxIdle Maximum number of idle compressors and decompressors respectively.
+     * @throws IllegalArgumentException If {@code maxIdle} is negative.
+     */
+    public void setMaxIdle(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Negative max idle: " + maxIdle);
+        }
+        synchronized (this) {
+            mMaxIdle = maxIdle;
+        }
+        trim();
+    }
+
+    /**
+     * Release all of the idle instances, and instances returned afterwards.
+     */
+    public void destroy() {
+        synchronized (this) {
+            mIsDestroyed = true;
+        }
+        trim();
+    }
+
+    private void trim() {
+        while (true) {
+            Deflater compressor;
+            Inflater decompressor;
+            synchronized (this) {
+                int max = mIsDestroyed ? 0 : mMaxIdle;
+                compressor = mIdleCompressors.size() > max ? mIdleCompressors.pollLast() : null;
+                decompressor = mIdleDecompressors.size() > max ? mIdleDecompressors.pollLast() : null;
+            }
+            if (compressor == null && decompressor == null) {
+                return;
+            }
+            if (compressor != null) {
+                compressor.end();
+            }
+            if (decompressor != null) {
+                decompressor.end();
+            }
+        }
+    }
+
+    Deflater borrowCompressor(int level, int strategy) {
+        Deflater compressor;
+        synchronized (this) {
+            mBorrowedCompressors++;
+            compressor = mIdleCompressors.pollFirst();
+        }
+        if (compressor == null) {
+            compressor = new Deflater(level, true);
+        } else {
+            compressor.setLevel(level);
+        }
+        compressor.setStrategy(strategy);
+        return compressor;
+    }
+
+    void returnCompressor(Deflater compressor) {
+        compressor.reset();
+        synchronized (this) {
+            mBorrowedCompressors--;
+            if (!mIsDestroyed && mIdleCompressors.size() < mMaxIdle) {
+                // Most recently used one is reused first.
+                mIdleCompressors.offerFirst(compressor);
+                return;
+            }
+        }
+        compressor.end();
+    }
+
+    Inflater borrowDecompressor() {
+        Inflater decompressor;
+        synchronized (this) {
+            mBorrowedDecompressors++;
+            decompressor = mIdleDecompressors.pollFirst();
+        }
+        return decompressor == null ? new Inflater(true) : decompressor;
+    }
+
+    void returnDecompressor(Inflater decompressor) {
+        decompressor.reset();
+        synchronized (this) {
+            mBorrowedDecompressors--;
+            if (!mIsDestroyed && mIdleDecompressors.size() < mMaxIdle) {
+                mIdleDecompressors.offerFirst(decompressor);
+                return;
+            }
+        }
+        decompressor.end();
+    }
+
+    /**
+     * @return Number of the compressors kept in this pool.
+     */
+    public synchronized int idleCompressors() {
+        return mIdleCompressors.size();
+    }
+
+    /**
+     * @return Number of the decompressors kept in this pool.
+     */
+    public synchronized int idleDecompressors() {
+        return mIdleDecompressors.size();
+    }
+
+    /**
+     * @return Number of the compressors currently used for messages.
+     */
+    public synchronized int borrowedCompressors() {
+        return mBorrowedCompressors;
+    }
+
+    /**
+     * @return Number of the decompressors currently used for messages.
+     */
+    public synchronized int borrowedDecompressors() {
+        return mBorrowedDecompressors;
+    }
+
+    /**
+     * @return Estimated size of the native memory allocated by zlib for idle and borrowed instances in bytes.
+     */
+    public synchronized long estimatedNativeMemory() {
+        return (long) (mIdleCompressors.size() + mBorrowedCompressors) * PerMessageDeflate.COMPRESSOR_NATIVE_MEMORY
+                + (long) (mIdleDecompressors.size() + mBorrowedDecompressors) * PerMessageDeflate.DECOMPRESSOR_NATIVE_MEMORY;
+    }
+}
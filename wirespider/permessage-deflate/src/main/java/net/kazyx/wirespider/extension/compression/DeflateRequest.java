@@ -12,34 +12,79 @@ package net.kazyx.wirespider.extension.compression;
 import net.kazyx.wirespider.extension.Extension;
 import net.kazyx.wirespider.extension.ExtensionRequest;
 import net.kazyx.wirespider.http.HttpHeader;
+import net.kazyx.wirespider.util.ArgumentCheck;
+
+import java.util.zip.Deflater;
 
 /**
  * Suggestion to use permessage-deflate extension in opening handshake.
  */
 public class DeflateRequest implements ExtensionRequest {
-    // private final int mMaxClientWindowBits;
+    private final int mMaxClientWindowBits;
 
     private final int mMaxServerWindowBits;
 
     private int mCompressionThreshold;
 
+    private final boolean mClientContextTakeover;
+
+    private final boolean mServerContextTakeover;
+
+    private final int mCompressionLevel;
+
+    private final int mCompressionStrategy;
+
+    private final DeflatePool mPool;
+
+    private final boolean mAdaptiveCompression;
+
+    private final int mLargeMessageSize;
+
+    private final int mLargeMessageCompressionLevel;
+
+    private final CompressionGovernor mGovernor;
+
+    private final CompressionStats mStats = new CompressionStats(null);
+
     private DeflateRequest(Builder builder) {
-        // mMaxClientWindowBits = builder.mMaxClientWindowBits;
+        mMaxClientWindowBits = builder.mMaxClientWindowBits;
         mMaxServerWindowBits = builder.mMaxServerWindowBits;
         mCompressionThreshold = builder.mCompressionThreshold;
+        mClientContextTakeover = builder.mClientContextTakeover;
+        mServerContextTakeover = builder.mServerContextTakeover;
+        mCompressionLevel = builder.mCompressionLevel;
+        mCompressionStrategy = builder.mCompressionStrategy;
+        mPool = builder.mPool;
+        mAdaptiveCompression = builder.mAdaptiveCompression;
+        mLargeMessageSize = builder.mLargeMessageSize;
+        mLargeMessageCompressionLevel = builder.mLargeMessageCompressionLevel;
+        mGovernor = builder.mGovernor;
+    }
+
+    /**
+     * @return Results of compression summed up for all of the connections accepting this request.
+     * Results of each connection are available by {@link PerMessageDeflate#stats()}.
+     */
+    public CompressionStats stats() {
+        return mStats;
     }
 
     @Override
     public HttpHeader requestHeader() {
-        StringBuilder sb = new StringBuilder(PerMessageDeflate.NAME)
-                .append(";").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER)
-                .append(";").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
-        /*
-        if (mMaxClientWindowBits != 15) {
-            sb.append(";").append(PerMessageDeflate.CLIENT_MAX_WINDOW_BITS)
-                    .append("=").append(mMaxClientWindowBits);
-        }
-        */
+        StringBuilder sb = new StringBuilder(PerMessageDeflate.NAME);
+        if (!mClientContextTakeover) {
+            sb.append(";").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if (!mServerContextTakeover) {
+            sb.append(";").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (mMaxClientWindowBits != 0) {
+            // Without value, this tells that the server can limit the window size of the client.
+            sb.append(";").append(PerMessageDeflate.CLIENT_MAX_WINDOW_BITS);
+            if (mMaxClientWindowBits != 15) {
+                sb.append("=").append(mMaxClientWindowBits);
+            }
+        }
         if (mMaxServerWindowBits != 15) {
             sb.append(";").append(PerMessageDeflate.SERVER_MAX_WINDOW_BITS)
                     .append("=").append(mMaxServerWindowBits);
@@ -49,10 +94,40 @@ public class DeflateRequest implements ExtensionRequest {
 
     @Override
     public Extension extension() {
-        return new PerMessageDeflate(mCompressionThreshold);
+        AdaptiveCompression policy = new AdaptiveCompression(mAdaptiveCompression, mCompressionLevel,
+                mLargeMessageSize, mLargeMessageCompressionLevel, mGovernor);
+        return new PerMessageDeflate(mCompressionThreshold, mClientContextTakeover, mServerContextTakeover,
+                policy, mCompressionStrategy, mPool, new CompressionStats(mStats));
     }
 
     public static class Builder {
+        /**
+         * 0 means {@code client_max_window_bits} is not offered.
+         */
+        private int mMaxClientWindowBits = 0;
+
+        /**
+         * Offer {@code client_max_window_bits}, hinting the server to limit LZ77 sliding window size of the client side
+         * to representable unsigned integer with given bits.<br>
+         * Not offered by default, then the server can not limit it. Client accepts the limitation by the server once this is set, even with 15 bits.
+         * <p>
+         * Note that {@link java.util.zip.Deflater} always uses the sliding window of 15 bits.
+         * If the server limits it to less than 15 bits, messages are sent without compression, and no compressor is allocated.
+         * </p>
+         *
+         * @param bits From 8 to 15. Number of bits to express an unsigned integer, which represents maximum LZ77 sliding window size of client side.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is less than 8 or more than 15.
+         * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.2.2">RFC 7692 Section 7.1.2.2</a>
+         */
+        public Builder setMaxClientWindowBits(int bits) {
+            if (bits < 8 || 15 < bits) {
+                throw new IllegalArgumentException("Windows bits must be between 8 to 15.");
+            }
+            mMaxClientWindowBits = bits;
+            return this;
+        }
+
         private int mMaxServerWindowBits = 8;
 
         /**
@@ -89,6 +164,150 @@ public class DeflateRequest implements ExtensionRequest {
             return this;
         }
 
+        private boolean mClientContextTakeover = false;
+
+        /**
+         * Keep LZ77 sliding window of the client side across messages, so that a message is compressed referring to the previous ones.<br>
+         * Disabled by default. Server can still disallow it by {@code client_no_context_takeover} response.
+         * <p>
+         * Effective for a stream of small and similar messages, at the cost of keeping the compression context per connection.
+         * </p>
+         *
+         * @param enabled {@code true} to use context takeover for outgoing messages.
+         * @return This builder.
+         * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.1.2">RFC 7692 Section 7.1.1.2</a>
+         */
+        public Builder setClientContextTakeover(boolean enabled) {
+            mClientContextTakeover = enabled;
+            return this;
+        }
+
+        private boolean mServerContextTakeover = false;
+
+        /**
+         * Allow server to keep its LZ77 sliding window across messages.<br>
+         * Disabled by default.
+         *
+         * @param enabled {@code true} to allow context takeover for incoming messages.
+         * @return This builder.
+         * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.1.1">RFC 7692 Section 7.1.1.1</a>
+         */
+        public Builder setServerContextTakeover(boolean enabled) {
+            mServerContextTakeover = enabled;
+            return this;
+        }
+
+        private int mCompressionLevel = Deflater.BEST_COMPRESSION;
+
+        /**
+         * Best compression by default.<br>
+         * Lower level reduces CPU time for compression. Native memory of the compressor does not depend on the level.
+         *
+         * @param level From {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION},
+         * or {@link Deflater#DEFAULT_COMPRESSION}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression level.
+         */
+        public Builder setCompressionLevel(int level) {
+            checkCompressionLevel(level);
+            mCompressionLevel = level;
+            return this;
+        }
+
+        private static void checkCompressionLevel(int level) {
+            if ((level < Deflater.NO_COMPRESSION || Deflater.BEST_COMPRESSION < level) && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level: " + level);
+            }
+        }
+
+        private int mLargeMessageSize = Integer.MAX_VALUE;
+
+        private int mLargeMessageCompressionLevel = Deflater.BEST_COMPRESSION;
+
+        /**
+         * Use another compression level for large messages, typically lower one to bound CPU time per message.<br>
+         * Level set by {@link #setCompressionLevel(int)} is used for any messages by default.
+         *
+         * @param sizeInBytes Minimum size of messages to use the given level in bytes.
+         * @param level From {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION},
+         * or {@link Deflater#DEFAULT_COMPRESSION}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given size is negative or level is not a valid compression level.
+         */
+        public Builder setLargeMessageCompressionLevel(int sizeInBytes, int level) {
+            if (sizeInBytes < 0) {
+                throw new IllegalArgumentException("Message size must not be negative: " + sizeInBytes);
+            }
+            checkCompressionLevel(level);
+            mLargeMessageSize = sizeInBytes;
+            mLargeMessageCompressionLevel = level;
+            return this;
+        }
+
+        private boolean mAdaptiveCompression = false;
+
+        /**
+         * Skip compression for the bands of message size where messages are not reduced by 1/8 or more.<br>
+         * Each band of {@link CompressionStats} is sampled again after 1, 2, 4, ... up to 64 skipped messages.
+         * Disabled by default.
+         * <p>
+         * Effective for the connection mixing incompressible payloads such as images or encrypted data.
+         * </p>
+         *
+         * @param enabled {@code true} to back off from incompressible messages.
+         * @return This builder.
+         * @see DeflateRequest#stats()
+         */
+        public Builder setAdaptiveCompression(boolean enabled) {
+            mAdaptiveCompression = enabled;
+            return this;
+        }
+
+        private int mCompressionStrategy = Deflater.DEFAULT_STRATEGY;
+
+        /**
+         * @param strategy One of {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression strategy.
+         */
+        public Builder setCompressionStrategy(int strategy) {
+            if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+                throw new IllegalArgumentException("Invalid compression strategy: " + strategy);
+            }
+            mCompressionStrategy = strategy;
+            return this;
+        }
+
+        private DeflatePool mPool = DeflatePool.shared();
+
+        /**
+         * Compressors and decompressors are checked out from {@link DeflatePool#shared()} for each message by default,
+         * unless the context is taken over.
+         *
+         * @param pool Pool of compressors and decompressors.
+         * @return This builder.
+         */
+        public Builder setPool(DeflatePool pool) {
+            ArgumentCheck.rejectNull(pool);
+            mPool = pool;
+            return this;
+        }
+
+        private CompressionGovernor mGovernor;
+
+        /**
+         * Share the budget of compression time with the other requests of the same governor.<br>
+         * Nothing is set by default, then compression is never degraded by load.
+         *
+         * @param governor Governor of compression across connections.
+         * @return This builder.
+         */
+        public Builder setGovernor(CompressionGovernor governor) {
+            ArgumentCheck.rejectNull(governor);
+            mGovernor = governor;
+            return this;
+        }
+
         public DeflateRequest build() {
             return new DeflateRequest(this);
         }
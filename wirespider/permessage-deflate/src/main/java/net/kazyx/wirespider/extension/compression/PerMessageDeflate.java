@@ -9,25 +9,21 @@
 
 package net.kazyx.wirespider.extension.compression;
 
+import net.kazyx.wirespider.exception.PayloadOverflowException;
 import net.kazyx.wirespider.extension.PayloadFilter;
-import net.kazyx.wirespider.util.BinaryUtil;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 
 /**
  * permessage-deflate extension
  */
-public class PerMessageDeflate extends PerMessageCompression {
+public class PerMessageDeflate extends PerMessageCompression implements Closeable {
     /**
      * 8. permessage-deflate extension
      */
@@ -44,17 +40,106 @@ public class PerMessageDeflate extends PerMessageCompression {
 
     static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
 
-    // static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    /**
+     * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.1.2.2">RFC 7692 Section 7.1.2.2</a>
+     */
+    static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    /**
+     * Window size of {@link Deflater} and {@link Inflater}, which is not configurable.
+     */
+    private static final int WINDOW_BITS = 15;
+
+    /**
+     * Native memory allocated by zlib for a compressor, (1 << (windowBits + 2)) + (1 << (memLevel + 9)) plus the stream state.
+     */
+    static final int COMPRESSOR_NATIVE_MEMORY = (1 << (WINDOW_BITS + 2)) + (1 << (8 + 9)) + 6 * 1024;
+
+    /**
+     * Native memory allocated by zlib for a decompressor, (1 << windowBits) plus the stream state.
+     */
+    static final int DECOMPRESSOR_NATIVE_MEMORY = (1 << WINDOW_BITS) + 7 * 1024;
+
+    /**
+     * Tail of the empty stored block appended by sync flush, which is removed from the payload.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc7692#section-7.2.1">RFC 7692 Section 7.2.1</a>
+     */
+    private static final byte[] EMPTY_BLOCK_TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
 
     private int mCompressionThreshold;
 
     private final DeflateFilter mFilter;
 
+    private final boolean mClientContextTakeover;
+    private final boolean mServerContextTakeover;
+
+    private final AdaptiveCompression mPolicy;
+    private final int mCompressionStrategy;
+
+    private final CompressionStats mStats;
+
+    private final DeflatePool mPool;
+
+    private volatile boolean mIsClosed = false;
+
+    /**
+     * Results of the negotiation. Context is reset for each message by default.
+     */
+    private boolean mResetCompressor = true;
+    private boolean mResetDecompressor = true;
+    private boolean mCompressionEnabled = true;
+
     /**
      * @param threshold Minimum size of messages to enable compression in bytes.
      */
     PerMessageDeflate(int threshold) {
+        this(threshold, false, false);
+    }
+
+    /**
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param clientContextTakeover {@code true} if client requests to keep its compression context across messages.
+     * @param serverContextTakeover {@code true} if client allows server to keep its compression context across messages.
+     */
+    PerMessageDeflate(int threshold, boolean clientContextTakeover, boolean serverContextTakeover) {
+        this(threshold, clientContextTakeover, serverContextTakeover, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY, null);
+    }
+
+    /**
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param clientContextTakeover {@code true} if client requests to keep its compression context across messages.
+     * @param serverContextTakeover {@code true} if client allows server to keep its compression context across messages.
+     * @param level Compression level of {@link Deflater}.
+     * @param strategy Compression strategy of {@link Deflater}.
+     * @param pool Pool to check out compressors and decompressors without context takeover,
+     * or {@code null} to keep them in this connection.
+     */
+    PerMessageDeflate(int threshold, boolean clientContextTakeover, boolean serverContextTakeover, int level, int strategy,
+                      DeflatePool pool) {
+        this(threshold, clientContextTakeover, serverContextTakeover, AdaptiveCompression.fixed(level), strategy, pool,
+                new CompressionStats(null));
+    }
+
+    /**
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param clientContextTakeover {@code true} if client requests to keep its compression context across messages.
+     * @param serverContextTakeover {@code true} if client allows server to keep its compression context across messages.
+     * @param policy Compression policy of this connection, which chooses the compression level.
+     * @param strategy Compression strategy of {@link Deflater}.
+     * @param pool Pool to check out compressors and decompressors without context takeover,
+     * or {@code null} to keep them in this connection.
+     * @param stats Results of compression for this connection.
+     */
+    PerMessageDeflate(int threshold, boolean clientContextTakeover, boolean serverContextTakeover, AdaptiveCompression policy,
+                      int strategy, DeflatePool pool, CompressionStats stats) {
         mCompressionThreshold = threshold;
+        mClientContextTakeover = clientContextTakeover;
+        mServerContextTakeover = serverContextTakeover;
+        mPolicy = policy;
+        mCompressionStrategy = strategy;
+        mPool = pool;
+        mStats = stats;
         mFilter = new DeflateFilter(this);
     }
 
@@ -65,8 +150,90 @@ public class PerMessageDeflate extends PerMessageCompression {
 
     @Override
     public boolean accept(String[] parameters) {
-        List<String> list = Arrays.asList(parameters);
-        return list.containsAll(Arrays.asList(CLIENT_NO_CONTEXT_TAKEOVER, SERVER_NO_CONTEXT_TAKEOVER));
+        boolean clientNoContextTakeover = false;
+        boolean serverNoContextTakeover = false;
+        int clientWindowBits = WINDOW_BITS;
+        for (String parameter : parameters) {
+            String[] pair = parameter.split("=");
+            String name = pair[0].trim();
+            if (CLIENT_NO_CONTEXT_TAKEOVER.equals(name)) {
+                clientNoContextTakeover = true;
+            } else if (SERVER_NO_CONTEXT_TAKEOVER.equals(name)) {
+                serverNoContextTakeover = true;
+            } else if (CLIENT_MAX_WINDOW_BITS.equals(name)) {
+                clientWindowBits = parseWindowBits(pair);
+                if (clientWindowBits == -1) {
+                    return false;
+                }
+            }
+        }
+        if (!mServerContextTakeover && !serverNoContextTakeover) {
+            // Server must not ignore server_no_context_takeover in the request.
+            return false;
+        }
+        mResetCompressor = !mClientContextTakeover || clientNoContextTakeover;
+        mResetDecompressor = serverNoContextTakeover;
+        // Deflater can not limit its window size, then outgoing messages are never compressed.
+        mCompressionEnabled = clientWindowBits == WINDOW_BITS;
+        return true;
+    }
+
+    /**
+     * @return Window bits in the response, or {@code -1} if the value is missing or invalid.
+     */
+    private static int parseWindowBits(String[] pair) {
+        if (pair.length != 2) {
+            return -1;
+        }
+        try {
+            int bits = Integer.parseInt(pair[1].trim().replace("\"", ""));
+            return 8 <= bits && bits <= 15 ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return {@code false} if the server limits the window size of the client, then outgoing messages are sent without compression.
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Compressor and decompressor are allocated on the first message to compress or decompress respectively.<br>
+     * Instances checked out from {@link DeflatePool} are not included.
+     *
+     * @return Estimated size of the native memory currently allocated by zlib for this connection in bytes.
+     */
+    public int estimatedNativeMemory() {
+        int size = 0;
+        synchronized (mCompressorLock) {
+            if (mCompressor != null) {
+                size += COMPRESSOR_NATIVE_MEMORY;
+            }
+        }
+        synchronized (mDecompressorLock) {
+            if (mDecompressor != null) {
+                size += DECOMPRESSOR_NATIVE_MEMORY;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Results of compression for outgoing messages of this connection.
+     */
+    public CompressionStats stats() {
+        return mStats;
+    }
+
+    /**
+     * @return {@code true} if outgoing messages are compressed referring to the previous ones.
+     * Then compressed messages must be sent even if they are larger than the original.
+     */
+    boolean isCompressionContextTakenOver() {
+        return !mResetCompressor;
     }
 
     @Override
@@ -74,49 +241,339 @@ public class PerMessageDeflate extends PerMessageCompression {
         return mFilter;
     }
 
-    private final Deflater mCompressor = new Deflater(Deflater.BEST_COMPRESSION, true);
-    private static final int DEFLATE_BUFFER = 512;
+    private final Object mCompressorLock = new Object();
+    private Deflater mCompressor;
+    /**
+     * Maximum size of the array to copy the input from a direct buffer.
+     */
+    private static final int STAGING_BUFFER = 8 * 1024;
 
     private static final IOException MESSAGE_TOO_SMALL = new IOException("Avoid deflate for small message");
 
+    private static final IOException COMPRESSION_DISABLED = new IOException("Client window size is limited by server");
+
+    private static final IOException SKIPPED_BY_POLICY = new IOException("Avoid deflate by compression policy");
+
+    private static final IOException CLOSED = new IOException("Extension is already closed");
+
     @Override
     public ByteBuffer compress(ByteBuffer source) throws IOException {
-        if (source.remaining() < mCompressionThreshold) {
+        int size = source.remaining();
+        int band = CompressionStats.bandOf(size);
+        if (!mCompressionEnabled) {
+            mStats.onSkipped(band);
+            throw COMPRESSION_DISABLED;
+        }
+        if (size < mCompressionThreshold) {
+            mStats.onSkipped(band);
             throw MESSAGE_TOO_SMALL;
         }
+        CompressionGovernor.Mode mode = mPolicy.mode();
+        if (!mPolicy.shouldCompress(size, band, mode)) {
+            mStats.onSkipped(band);
+            throw SKIPPED_BY_POLICY;
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer compressed = deflate(source, mPolicy.level(size, mode));
+        long nanos = System.nanoTime() - start;
+        mStats.onCompressed(band, size, compressed.remaining(), nanos);
+        mPolicy.onCompressed(band, size, compressed.remaining(), nanos);
+        return compressed;
+    }
+
+    private ByteBuffer deflate(ByteBuffer source, int level) throws IOException {
+        if (mResetCompressor && mPool != null) {
+            Deflater compressor = mPool.borrowCompressor(level, mCompressionStrategy);
+            try {
+                prime(compressor);
+                return deflate(compressor, source);
+            } finally {
+                mPool.returnCompressor(compressor);
+            }
+        }
+
+        synchronized (mCompressorLock) {
+            if (mIsClosed) {
+                throw CLOSED;
+            }
+            if (mCompressor == null) {
+                mCompressor = new Deflater(level, true);
+                mCompressor.setStrategy(mCompressionStrategy);
+                prime(mCompressor);
+            } else {
+                if (mResetCompressor) {
+                    mCompressor.reset();
+                    prime(mCompressor);
+                }
+                mCompressor.setLevel(level);
+            }
+            return deflate(mCompressor, source);
+        }
+    }
+
+    /**
+     * Called for the compressor at the beginning of a new stream, before any input is set.
+     */
+    void prime(Deflater compressor) {
+    }
 
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(source.remaining());
+    /**
+     * Called for the decompressor at the beginning of a new stream, before any input is set.
+     */
+    void prime(Inflater decompressor) {
+    }
 
-        synchronized (mCompressor) {
-            mCompressor.reset();
+    private static ByteBuffer deflate(Deflater compressor, ByteBuffer source) {
+        OutputArray output = new OutputArray(maxDeflatedLength(source.remaining()));
+        byte[] staging = source.hasArray() ? null : new byte[Math.min(source.remaining(), STAGING_BUFFER)];
+        do {
+            setInput(compressor, source, staging);
+            // Sync flush keeps the stream open for the following messages, ending with an empty stored block.
+            int flush = source.hasRemaining() ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            while (true) {
+                output.length += compressor.deflate(output.array, output.length, output.array.length - output.length, flush);
+                if (output.length < output.array.length && compressor.needsInput()) {
+                    break;
+                }
+                output.ensureSpace();
+            }
+        } while (source.hasRemaining());
 
-            DeflaterOutputStream dos = new DeflaterOutputStream(buffer, mCompressor, DEFLATE_BUFFER);
-            OutputStream os = new BufferedOutputStream(dos);
-            os.write(BinaryUtil.toBytesRemaining(source));
-            os.flush();
-            dos.finish();
+        int length = output.length;
+        if (endsWithEmptyBlockTail(output.array, length)) {
+            length -= EMPTY_BLOCK_TAIL.length;
+        }
+        return ByteBuffer.wrap(output.array, 0, length);
+    }
 
-            return ByteBuffer.wrap(buffer.toByteArray());
+    /**
+     * Pass the remaining bytes of the source directly if it is backed by an array, otherwise a part of them copied into the staging array.
+     */
+    private static void setInput(Deflater compressor, ByteBuffer source, byte[] staging) {
+        if (staging == null) {
+            compressor.setInput(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            source.position(source.limit());
+        } else {
+            int length = Math.min(source.remaining(), staging.length);
+            source.get(staging, 0, length);
+            compressor.setInput(staging, 0, length);
         }
     }
 
-    private final Inflater mDecompressor = new Inflater(true);
-    private static final int INFLATE_BUFFER = 512;
+    /**
+     * Upper bound of raw deflate output as deflateBound() of zlib, plus an empty stored block of sync flush.
+     */
+    private static int maxDeflatedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 7 + 5;
+    }
+
+    private final Object mDecompressorLock = new Object();
+    private Inflater mDecompressor;
+    /**
+     * Initial output size of inflate, relative to the input size.
+     */
+    private static final int INFLATE_RATIO_HINT = 4;
+    private static final int MIN_INFLATE_BUFFER = 512;
 
     @Override
     public ByteBuffer decompress(ByteBuffer source) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(source.remaining());
+        if (mResetDecompressor && mPool != null) {
+            Inflater decompressor = mPool.borrowDecompressor();
+            try {
+                prime(decompressor);
+                return inflate(decompressor, source);
+            } finally {
+                mPool.returnDecompressor(decompressor);
+            }
+        }
+
+        synchronized (mDecompressorLock) {
+            if (mIsClosed) {
+                throw CLOSED;
+            }
+            return inflate(dedicatedDecompressor(), source);
+        }
+    }
 
-        synchronized (mDecompressor) {
+    private Inflater dedicatedDecompressor() {
+        if (mDecompressor == null) {
+            mDecompressor = new Inflater(true);
+            prime(mDecompressor);
+        } else if (mResetDecompressor || mDecompressor.finished()) {
+            // Stream might be finished by the final block even if the server keeps the context.
             mDecompressor.reset();
+            prime(mDecompressor);
+        }
+        return mDecompressor;
+    }
 
-            InflaterOutputStream ios = new InflaterOutputStream(buffer, mDecompressor, INFLATE_BUFFER);
-            OutputStream os = new BufferedOutputStream(ios);
-            os.write(source.array(), 0, source.remaining());
-            os.flush();
-            ios.finish();
+    private static ByteBuffer inflate(Inflater decompressor, ByteBuffer source) throws IOException {
+        OutputArray output = new OutputArray(initialInflateSize(source.remaining()));
+        try {
+            inflate(decompressor, source, output);
+            inflate(decompressor, EMPTY_BLOCK_TAIL, 0, EMPTY_BLOCK_TAIL.length, output);
+        } catch (PayloadOverflowException e) {
+            throw new IOException(e);
+        }
+        return ByteBuffer.wrap(output.array, 0, output.length);
+    }
 
-            return ByteBuffer.wrap(buffer.toByteArray());
+    /**
+     * Decompressor and output of the message being received frame by frame.
+     */
+    private Inflater mStreamDecompressor;
+    private OutputArray mStreamOutput;
+
+    /**
+     * Decompress a frame of the message as it arrives, so that the compressed message is never assembled.
+     *
+     * @param fragment Compressed payload of the frame.
+     * @param isFinal {@code true} if this is the last frame of the message.
+     * @param maxSize Maximum size of the decompressed message in bytes.
+     * @return Decompressed message if {@code isFinal} is {@code true}, otherwise {@code null}.
+     * @throws PayloadOverflowException Decompressed message exceeds {@code maxSize}.
+     * @throws IOException Failed to decompress data.
+     */
+    ByteBuffer decompressFragment(ByteBuffer fragment, boolean isFinal, int maxSize) throws PayloadOverflowException, IOException {
+        synchronized (mDecompressorLock) {
+            if (mIsClosed) {
+                throw CLOSED;
+            }
+            if (mStreamOutput == null) {
+                if (mResetDecompressor && mPool != null) {
+                    mStreamDecompressor = mPool.borrowDecompressor();
+                    prime(mStreamDecompressor);
+                } else {
+                    mStreamDecompressor = dedicatedDecompressor();
+                }
+                mStreamOutput = new OutputArray(initialInflateSize(fragment.remaining()), maxSize);
+            }
+
+            boolean completed = true;
+            try {
+                inflate(mStreamDecompressor, fragment, mStreamOutput);
+                if (!isFinal) {
+                    completed = false;
+                    return null;
+                }
+                inflate(mStreamDecompressor, EMPTY_BLOCK_TAIL, 0, EMPTY_BLOCK_TAIL.length, mStreamOutput);
+                return ByteBuffer.wrap(mStreamOutput.array, 0, mStreamOutput.length);
+            } finally {
+                if (completed) {
+                    releaseStream();
+                }
+            }
+        }
+    }
+
+    private void releaseStream() {
+        if (mStreamDecompressor != null && mStreamDecompressor != mDecompressor) {
+            mPool.returnDecompressor(mStreamDecompressor);
+        }
+        mStreamDecompressor = null;
+        mStreamOutput = null;
+    }
+
+    private static int initialInflateSize(int inputSize) {
+        return Math.max(inputSize * INFLATE_RATIO_HINT, MIN_INFLATE_BUFFER);
+    }
+
+    private static void inflate(Inflater decompressor, ByteBuffer source, OutputArray output) throws PayloadOverflowException, IOException {
+        if (source.hasArray()) {
+            inflate(decompressor, source.array(), source.arrayOffset() + source.position(), source.remaining(), output);
+            source.position(source.limit());
+        } else {
+            byte[] staging = new byte[Math.min(source.remaining(), STAGING_BUFFER)];
+            while (source.hasRemaining()) {
+                int length = Math.min(source.remaining(), staging.length);
+                source.get(staging, 0, length);
+                inflate(decompressor, staging, 0, length, output);
+            }
+        }
+    }
+
+    private static void inflate(Inflater decompressor, byte[] input, int offset, int length, OutputArray output)
+            throws PayloadOverflowException, IOException {
+        decompressor.setInput(input, offset, length);
+        try {
+            while (!decompressor.needsInput() && !decompressor.finished()) {
+                if (decompressor.needsDictionary()) {
+                    throw new IOException("Preset dictionary is not supported");
+                }
+                output.ensureSpace();
+                output.length += decompressor.inflate(output.array, output.length, output.array.length - output.length);
+                if (output.length > output.limit) {
+                    // Fail before inflating the rest of the message.
+                    throw new PayloadOverflowException("Decompressed payload size exceeds " + output.limit);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Output array of deflate and inflate, which is expanded when it is filled up.
+     */
+    private static final class OutputArray {
+        static final int UNLIMITED = Integer.MAX_VALUE - 8;
+
+        byte[] array;
+        int length = 0;
+
+        /**
+         * Output exceeding this size is detected by the array of one more byte.
+         */
+        final int limit;
+
+        OutputArray(int capacity) {
+            this(capacity, UNLIMITED);
+        }
+
+        OutputArray(int capacity, int limit) {
+            this.limit = Math.min(limit, UNLIMITED - 1);
+            array = new byte[Math.min(capacity, this.limit + 1)];
+        }
+
+        void ensureSpace() {
+            if (length == array.length) {
+                array = Arrays.copyOf(array, (int) Math.min(array.length * 2L, limit + 1L));
+            }
+        }
+    }
+
+    /**
+     * Release the compressor and decompressor owned by this connection.<br>
+     * Called when the connection is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (mCompressorLock) {
+            mIsClosed = true;
+            if (mCompressor != null) {
+                mCompressor.end();
+                mCompressor = null;
+            }
+        }
+        synchronized (mDecompressorLock) {
+            releaseStream();
+            if (mDecompressor != null) {
+                mDecompressor.end();
+                mDecompressor = null;
+            }
+        }
+    }
+
+    private static boolean endsWithEmptyBlockTail(byte[] data, int length) {
+        if (length < EMPTY_BLOCK_TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < EMPTY_BLOCK_TAIL.length; i++) {
+            if (data[length - EMPTY_BLOCK_TAIL.length + i] != EMPTY_BLOCK_TAIL[i]) {
+                return false;
+            }
         }
+        return true;
     }
 }
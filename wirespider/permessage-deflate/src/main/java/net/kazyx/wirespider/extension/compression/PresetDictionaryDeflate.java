@@ -0,0 +1,101 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import net.kazyx.wirespider.util.BinaryUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Private variant of permessage-deflate extension, where each message is compressed as a new stream primed with a preset dictionary
+ * shared by the client and the server.<br>
+ * Context is never taken over, so that each message refers only to the dictionary.
+ * <p>
+ * Both sides identify the dictionary by {@value #DICTIONARY_HASH} parameter, which is the first 8 bytes of SHA-256 of the dictionary in HEX format.
+ * </p>
+ */
+public class PresetDictionaryDeflate extends PerMessageDeflate {
+    public static final String NAME = "x-permessage-deflate-dictionary";
+
+    static final String DICTIONARY_HASH = "dictionary_hash";
+
+    private static final int HASH_LENGTH = 8;
+
+    private final byte[] mDictionary;
+
+    private final String mDictionaryHash;
+
+    /**
+     * @param dictionary Preset dictionary, which is not copied.
+     * @param dictionaryHash Hash of the dictionary.
+     * @param threshold Minimum size of messages to enable compression in bytes.
+     * @param level Compression level of {@link Deflater}.
+     * @param strategy Compression strategy of {@link Deflater}.
+     * @param pool Pool to check out compressors and decompressors, or {@code null} to keep them in this connection.
+     * @param stats Results of compression for this connection.
+     */
+    PresetDictionaryDeflate(byte[] dictionary, String dictionaryHash, int threshold, int level, int strategy, DeflatePool pool,
+                            CompressionStats stats) {
+        super(threshold, false, false, AdaptiveCompression.fixed(level), strategy, pool, stats);
+        mDictionary = dictionary;
+        mDictionaryHash = dictionaryHash;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    /**
+     * Server must respond the same hash of the dictionary.
+     */
+    @Override
+    public boolean accept(String[] parameters) {
+        for (String parameter : parameters) {
+            String[] pair = parameter.split("=");
+            if (DICTIONARY_HASH.equals(pair[0].trim())) {
+                return pair.length == 2 && mDictionaryHash.equalsIgnoreCase(pair[1].trim().replace("\"", ""));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Hash of the dictionary in the handshake.
+     */
+    public String dictionaryHash() {
+        return mDictionaryHash;
+    }
+
+    @Override
+    void prime(Deflater compressor) {
+        compressor.setDictionary(mDictionary);
+    }
+
+    @Override
+    void prime(Inflater decompressor) {
+        // Raw inflate never asks for the dictionary, then it is set in advance.
+        decompressor.setDictionary(mDictionary);
+    }
+
+    static String hashOf(byte[] dictionary) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(dictionary);
+            return BinaryUtil.toHex(Arrays.copyOf(digest, HASH_LENGTH));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is supported by every Java platform.
+            throw new IllegalStateException(e);
+        }
+    }
+}
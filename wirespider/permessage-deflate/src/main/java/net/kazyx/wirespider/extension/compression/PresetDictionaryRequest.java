@@ -0,0 +1,150 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import net.kazyx.wirespider.extension.Extension;
+import net.kazyx.wirespider.extension.ExtensionRequest;
+import net.kazyx.wirespider.http.HttpHeader;
+import net.kazyx.wirespider.util.ArgumentCheck;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Suggestion to use {@link PresetDictionaryDeflate} extension in opening handshake.
+ * <p>
+ * Servers not supporting the extension just ignore it. Put {@link DeflateRequest} after this request to fall back to permessage-deflate.
+ * </p>
+ */
+public class PresetDictionaryRequest implements ExtensionRequest {
+    private final byte[] mDictionary;
+
+    private final String mDictionaryHash;
+
+    private final int mCompressionThreshold;
+
+    private final int mCompressionLevel;
+
+    private final int mCompressionStrategy;
+
+    private final DeflatePool mPool;
+
+    private final CompressionStats mStats = new CompressionStats(null);
+
+    private PresetDictionaryRequest(Builder builder) {
+        mDictionary = builder.mDictionary;
+        mDictionaryHash = PresetDictionaryDeflate.hashOf(mDictionary);
+        mCompressionThreshold = builder.mCompressionThreshold;
+        mCompressionLevel = builder.mCompressionLevel;
+        mCompressionStrategy = builder.mCompressionStrategy;
+        mPool = builder.mPool;
+    }
+
+    /**
+     * @return Results of compression summed up for all of the connections accepting this request.
+     */
+    public CompressionStats stats() {
+        return mStats;
+    }
+
+    @Override
+    public HttpHeader requestHeader() {
+        String value = PresetDictionaryDeflate.NAME + ";" + PresetDictionaryDeflate.DICTIONARY_HASH + "=" + mDictionaryHash;
+        return new HttpHeader.Builder(HttpHeader.SEC_WEBSOCKET_EXTENSIONS).appendValue(value).build();
+    }
+
+    @Override
+    public Extension extension() {
+        return new PresetDictionaryDeflate(mDictionary, mDictionaryHash, mCompressionThreshold, mCompressionLevel,
+                mCompressionStrategy, mPool, new CompressionStats(mStats));
+    }
+
+    public static class Builder {
+        private final byte[] mDictionary;
+
+        /**
+         * @param dictionary Preset dictionary shared with the server, typically the frequent strings of the messages.
+         * Only the last 32K bytes are referred by the compressor.
+         * @throws IllegalArgumentException If given dictionary is empty.
+         */
+        public Builder(byte[] dictionary) {
+            ArgumentCheck.rejectNull(dictionary);
+            if (dictionary.length == 0) {
+                throw new IllegalArgumentException("Dictionary must not be empty");
+            }
+            mDictionary = Arrays.copyOf(dictionary, dictionary.length);
+        }
+
+        /**
+         * 0 means compress any messages.
+         */
+        private int mCompressionThreshold = 0;
+
+        /**
+         * @param sizeInBytes Minimum size of messages to enable compression in bytes.
+         * @return This builder
+         */
+        public Builder setCompressionThreshold(int sizeInBytes) {
+            mCompressionThreshold = sizeInBytes;
+            return this;
+        }
+
+        private int mCompressionLevel = Deflater.BEST_COMPRESSION;
+
+        /**
+         * Best compression by default.
+         *
+         * @param level From {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION},
+         * or {@link Deflater#DEFAULT_COMPRESSION}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression level.
+         */
+        public Builder setCompressionLevel(int level) {
+            if ((level < Deflater.NO_COMPRESSION || Deflater.BEST_COMPRESSION < level) && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level: " + level);
+            }
+            mCompressionLevel = level;
+            return this;
+        }
+
+        private int mCompressionStrategy = Deflater.DEFAULT_STRATEGY;
+
+        /**
+         * @param strategy One of {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+         * @return This builder.
+         * @throws IllegalArgumentException If given value is not a valid compression strategy.
+         */
+        public Builder setCompressionStrategy(int strategy) {
+            if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+                throw new IllegalArgumentException("Invalid compression strategy: " + strategy);
+            }
+            mCompressionStrategy = strategy;
+            return this;
+        }
+
+        private DeflatePool mPool = DeflatePool.shared();
+
+        /**
+         * Compressors and decompressors are checked out from {@link DeflatePool#shared()} for each message by default.
+         *
+         * @param pool Pool of compressors and decompressors.
+         * @return This builder.
+         */
+        public Builder setPool(DeflatePool pool) {
+            ArgumentCheck.rejectNull(pool);
+            mPool = pool;
+            return this;
+        }
+
+        public PresetDictionaryRequest build() {
+            return new PresetDictionaryRequest(this);
+        }
+    }
+}
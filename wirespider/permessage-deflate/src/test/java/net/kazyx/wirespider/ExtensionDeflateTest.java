@@ -9,9 +9,14 @@
 
 package net.kazyx.wirespider;
 
+import net.kazyx.wirespider.exception.PayloadOverflowException;
 import net.kazyx.wirespider.extension.ExtensionRequest;
+import net.kazyx.wirespider.extension.StreamingPayloadFilter;
+import net.kazyx.wirespider.extension.compression.CompressionStats;
+import net.kazyx.wirespider.extension.compression.DeflatePool;
 import net.kazyx.wirespider.extension.compression.DeflateRequest;
 import net.kazyx.wirespider.extension.compression.PerMessageDeflate;
+import net.kazyx.wirespider.extension.compression.PerMessageDeflateCreator;
 import net.kazyx.wirespider.util.Base64;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -23,9 +28,11 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.instanceOf;
@@ -52,8 +59,8 @@ public class ExtensionDeflateTest {
 
             ByteBuffer decompressed = mCompression.decompress(compressed);
 
-            System.out.println("Decompressed: " + decompressed.capacity());
-            assertThat(Arrays.equals(source, decompressed.array()), is(true));
+            System.out.println("Decompressed: " + decompressed.remaining());
+            assertThat(Arrays.equals(source, remaining(decompressed)), is(true));
         }
 
         @Test
@@ -68,20 +75,457 @@ public class ExtensionDeflateTest {
 
             ByteBuffer decompressed = mCompression.decompress(compressed);
 
-            System.out.println("Decompressed: " + decompressed.capacity());
-            assertThat(Arrays.equals(source, decompressed.array()), is(true));
+            System.out.println("Decompressed: " + decompressed.remaining());
+            assertThat(Arrays.equals(source, remaining(decompressed)), is(true));
 
             compressed = mCompression.compress(ByteBuffer.wrap(source));
             System.out.println("Compressed: " + source.length + " to " + compressed.remaining());
 
             decompressed = mCompression.decompress(compressed);
 
-            System.out.println("Decompressed: " + decompressed.capacity());
-            assertThat(Arrays.equals(source, decompressed.array()), is(true));
+            System.out.println("Decompressed: " + decompressed.remaining());
+            assertThat(Arrays.equals(source, remaining(decompressed)), is(true));
+        }
+
+        @Test
+        public void directBuffers() throws IOException {
+            byte[] source = TestUtil.fixedLengthRandomByteArray(100000);
+            ByteBuffer direct = ByteBuffer.allocateDirect(source.length);
+            direct.put(source).flip();
+            ByteBuffer compressed = mCompression.compress(direct);
+            assertThat(direct.hasRemaining(), is(false));
+
+            ByteBuffer directCompressed = ByteBuffer.allocateDirect(compressed.remaining());
+            directCompressed.put(compressed).flip();
+            assertThat(Arrays.equals(source, remaining(mCompression.decompress(directCompressed))), is(true));
+        }
+
+        @Test
+        public void incompressibleDataFitsPresizedOutput() throws IOException {
+            byte[] source = TestUtil.fixedLengthRandomByteArray(100000);
+            ByteBuffer compressed = mCompression.compress(ByteBuffer.wrap(source));
+            // Not expanded from the initial size.
+            assertThat(compressed.array().length < source.length * 2, is(true));
+            assertThat(Arrays.equals(source, remaining(mCompression.decompress(compressed))), is(true));
+        }
+
+        @Test
+        public void emptyMessage() throws IOException {
+            ByteBuffer compressed = mCompression.compress(ByteBuffer.allocate(0));
+            assertThat(mCompression.decompress(compressed).remaining(), is(0));
+        }
+
+        @Test(expected = IOException.class)
+        public void corruptedData() throws IOException {
+            mCompression.decompress(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff}));
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+    }
+
+    public static class ContextTakeoverTest {
+        private static final int NUM_MESSAGES = 100;
+
+        private static byte[] jsonMessage(int index) throws IOException {
+            return ("{\"type\":\"ticker\",\"symbol\":\"BTC-USD\",\"sequence\":" + (1000000 + index)
+                    + ",\"price\":\"" + (6000 + index % 17) + ".25\",\"side\":\"" + (index % 2 == 0 ? "buy" : "sell")
+                    + "\",\"time\":\"2016-10-18T12:00:" + (10 + index % 50) + ".123Z\"}").getBytes("UTF-8");
+        }
+
+        private static PerMessageDeflate negotiated(boolean contextTakeover, String... parameters) {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, contextTakeover, contextTakeover);
+            String[] response = new String[parameters.length + 1];
+            response[0] = PerMessageDeflate.NAME;
+            System.arraycopy(parameters, 0, response, 1, parameters.length);
+            assertThat(deflate.accept(response), is(true));
+            return deflate;
+        }
+
+        private static int totalCompressedSize(PerMessageDeflate deflate) throws IOException {
+            int total = 0;
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                byte[] source = jsonMessage(i);
+                ByteBuffer compressed = deflate.compress(ByteBuffer.wrap(source));
+                total += compressed.remaining();
+                // Decompressor of the same instance follows the context of the compressor.
+                ByteBuffer decompressed = deflate.decompress(compressed);
+                assertThat(Arrays.equals(source, Arrays.copyOfRange(decompressed.array(), decompressed.position(), decompressed.limit())), is(true));
+            }
+            return total;
+        }
+
+        @Test
+        public void contextTakeoverSavesBandwidth() throws IOException {
+            int original = 0;
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                original += jsonMessage(i).length;
+            }
+            int noTakeover = totalCompressedSize(negotiated(false,
+                    "client_no_context_takeover", "server_no_context_takeover"));
+            int takeover = totalCompressedSize(negotiated(true));
+            System.out.println("Original: " + original + ", no context takeover: " + noTakeover + ", context takeover: " + takeover);
+            assertThat(takeover * 2 < noTakeover, is(true));
+        }
+
+        @Test
+        public void clientNoContextTakeoverByServer() throws IOException {
+            PerMessageDeflate deflate = negotiated(true, " " + "client_no_context_takeover");
+            byte[] source = jsonMessage(0);
+            int first = deflate.compress(ByteBuffer.wrap(source)).remaining();
+            int second = deflate.compress(ByteBuffer.wrap(source)).remaining();
+            assertThat(second, is(first));
+        }
+
+        @Test
+        public void serverNoContextTakeoverIgnored() {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, true, false);
+            assertThat(deflate.accept(new String[]{PerMessageDeflate.NAME}), is(false));
+        }
+
+        @Test
+        public void compressedDataTrimsEmptyBlockTail() throws IOException {
+            ByteBuffer compressed = negotiated(true).compress(ByteBuffer.wrap(jsonMessage(0)));
+            int last = compressed.limit() - 1;
+            boolean tail = compressed.get(last - 3) == 0 && compressed.get(last - 2) == 0
+                    && compressed.get(last - 1) == (byte) 0xff && compressed.get(last) == (byte) 0xff;
+            assertThat(tail, is(false));
+        }
+
+        @Test
+        public void requestHeaderWithContextTakeover() {
+            DeflateRequest req = new DeflateRequest.Builder()
+                    .setClientContextTakeover(true)
+                    .setServerContextTakeover(true)
+                    .build();
+            String value = req.requestHeader().values().get(0);
+            assertThat(value.contains("client_no_context_takeover"), is(false));
+            assertThat(value.contains("server_no_context_takeover"), is(false));
+        }
+    }
+
+    public static class ClientWindowBitsTest {
+        private static final byte[] SOURCE = TestUtil.fixedLengthFixedByteArray(1024);
+
+        @Test
+        public void requestHeaderOffersClientWindowBits() {
+            String value = new DeflateRequest.Builder().build().requestHeader().values().get(0);
+            assertThat(value.contains("client_max_window_bits"), is(false));
+
+            value = new DeflateRequest.Builder().setMaxClientWindowBits(15).build().requestHeader().values().get(0);
+            assertThat(value.contains("client_max_window_bits"), is(true));
+            assertThat(value.contains("client_max_window_bits="), is(false));
+
+            value = new DeflateRequest.Builder().setMaxClientWindowBits(10).build().requestHeader().values().get(0);
+            assertThat(value.contains("client_max_window_bits=10"), is(true));
+        }
+
+        @Test
+        public void fullWindowKeepsCompression() throws IOException {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0);
+            assertThat(deflate.accept(new String[]{PerMessageDeflate.NAME, "server_no_context_takeover", "client_max_window_bits=15"}), is(true));
+            assertThat(deflate.isCompressionEnabled(), is(true));
+            deflate.compress(ByteBuffer.wrap(SOURCE));
+        }
+
+        @Test
+        public void limitedWindowDisablesCompression() throws IOException {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0);
+            assertThat(deflate.accept(new String[]{PerMessageDeflate.NAME, "server_no_context_takeover", "client_max_window_bits=9"}), is(true));
+            assertThat(deflate.isCompressionEnabled(), is(false));
+            try {
+                deflate.compress(ByteBuffer.wrap(SOURCE));
+                throw new AssertionError("IOException is not thrown");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertThat(deflate.estimatedNativeMemory(), is(0));
+        }
+
+        @Test
+        public void invalidWindowBitsRejected() {
+            assertThat(PerMessageDeflateCreator.create(0).accept(new String[]{PerMessageDeflate.NAME, "server_no_context_takeover", "client_max_window_bits=16"}), is(false));
+            assertThat(PerMessageDeflateCreator.create(0).accept(new String[]{PerMessageDeflate.NAME, "server_no_context_takeover", "client_max_window_bits"}), is(false));
+        }
+
+        @Test
+        public void nativeMemoryAllocatedLazily() throws IOException {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0);
+            assertThat(deflate.estimatedNativeMemory(), is(0));
+            ByteBuffer compressed = deflate.compress(ByteBuffer.wrap(SOURCE));
+            int compressor = deflate.estimatedNativeMemory();
+            assertThat(compressor > 0, is(true));
+            deflate.decompress(compressed);
+            System.out.println("Native memory: compressor " + compressor + ", total " + deflate.estimatedNativeMemory());
+            assertThat(deflate.estimatedNativeMemory() > compressor, is(true));
+        }
+
+        @Test
+        public void levelAndStrategy() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setCompressionLevel(Deflater.BEST_SPEED)
+                    .setCompressionStrategy(Deflater.HUFFMAN_ONLY)
+                    .build().extension();
+            ByteBuffer decompressed = deflate.decompress(deflate.compress(ByteBuffer.wrap(SOURCE)));
+            assertThat(Arrays.equals(SOURCE, Arrays.copyOfRange(decompressed.array(), decompressed.position(), decompressed.limit())), is(true));
+        }
+    }
+
+    public static class PoolTest {
+        private static final byte[] SOURCE = TestUtil.fixedLengthFixedByteArray(1024);
+
+        private static PerMessageDeflate negotiated(DeflatePool pool) {
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, false, false, pool);
+            assertThat(deflate.accept(new String[]{PerMessageDeflate.NAME, "client_no_context_takeover", "server_no_context_takeover"}), is(true));
+            return deflate;
+        }
+
+        @Test
+        public void instancesAreSharedAcrossConnections() throws IOException {
+            DeflatePool pool = new DeflatePool(2);
+            PerMessageDeflate deflate1 = negotiated(pool);
+            PerMessageDeflate deflate2 = negotiated(pool);
+            for (int i = 0; i < 10; i++) {
+                deflate2.decompress(deflate1.compress(ByteBuffer.wrap(SOURCE)));
+                deflate1.decompress(deflate2.compress(ByteBuffer.wrap(SOURCE)));
+            }
+            assertThat(pool.idleCompressors(), is(1));
+            assertThat(pool.idleDecompressors(), is(1));
+            assertThat(pool.borrowedCompressors(), is(0));
+            assertThat(pool.borrowedDecompressors(), is(0));
+            assertThat(deflate1.estimatedNativeMemory(), is(0));
+            assertThat(pool.estimatedNativeMemory() > 0, is(true));
+        }
+
+        @Test
+        public void contextTakeoverDoesNotUsePool() throws IOException {
+            DeflatePool pool = new DeflatePool(2);
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, true, true, pool);
+            assertThat(deflate.accept(new String[]{PerMessageDeflate.NAME}), is(true));
+            deflate.decompress(deflate.compress(ByteBuffer.wrap(SOURCE)));
+            assertThat(pool.idleCompressors(), is(0));
+            assertThat(pool.idleDecompressors(), is(0));
+            assertThat(deflate.estimatedNativeMemory() > 0, is(true));
+
+            deflate.close();
+            assertThat(deflate.estimatedNativeMemory(), is(0));
+            try {
+                deflate.compress(ByteBuffer.wrap(SOURCE));
+                throw new AssertionError("IOException is not thrown");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+
+        @Test
+        public void shrinkAndDestroy() throws IOException {
+            DeflatePool pool = new DeflatePool(0);
+            negotiated(pool).compress(ByteBuffer.wrap(SOURCE));
+            assertThat(pool.idleCompressors(), is(0));
+
+            pool.setMaxIdle(1);
+            negotiated(pool).compress(ByteBuffer.wrap(SOURCE));
+            assertThat(pool.idleCompressors(), is(1));
+
+            pool.setMaxIdle(0);
+            assertThat(pool.idleCompressors(), is(0));
+
+            pool.setMaxIdle(1);
+            negotiated(pool).compress(ByteBuffer.wrap(SOURCE));
+            pool.destroy();
+            assertThat(pool.idleCompressors(), is(0));
+            negotiated(pool).compress(ByteBuffer.wrap(SOURCE));
+            assertThat(pool.idleCompressors(), is(0));
+            assertThat(pool.estimatedNativeMemory(), is(0L));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void negativeMaxIdle() {
+            new DeflatePool(-1);
+        }
+    }
+
+    public static class StreamingTest {
+        private static StreamingPayloadFilter filter(PerMessageDeflate deflate) {
+            return (StreamingPayloadFilter) deflate.filter();
+        }
+
+        private static ByteBuffer slice(ByteBuffer source, int from, int to) {
+            ByteBuffer slice = source.duplicate();
+            slice.position(source.position() + from);
+            slice.limit(source.position() + to);
+            return slice;
+        }
+
+        @Test
+        public void fragmentsAreDecompressedAsTheyArrive() throws Exception {
+            DeflatePool pool = new DeflatePool(1);
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, false, false, pool);
+            byte[] source = TestUtil.fixedLengthRandomString(100000).getBytes("UTF-8");
+            ByteBuffer compressed = deflate.compress(ByteBuffer.wrap(source));
+            int length = compressed.remaining();
+
+            assertThat(filter(deflate).onReceivingFragment(slice(compressed, 0, length / 3), false, source.length) == null, is(true));
+            assertThat(pool.borrowedDecompressors(), is(1));
+            assertThat(filter(deflate).onReceivingFragment(slice(compressed, length / 3, length / 2), false, source.length) == null, is(true));
+            ByteBuffer decompressed = filter(deflate).onReceivingFragment(slice(compressed, length / 2, length), true, source.length);
+            assertThat(Arrays.equals(source, remaining(decompressed)), is(true));
+            assertThat(pool.borrowedDecompressors(), is(0));
+        }
+
+        @Test
+        public void decompressedSizeIsBounded() throws Exception {
+            DeflatePool pool = new DeflatePool(1);
+            PerMessageDeflate deflate = PerMessageDeflateCreator.create(0, false, false, pool);
+            ByteBuffer compressed = deflate.compress(ByteBuffer.wrap(new byte[10 * 1024 * 1024]));
+            System.out.println("Compressed 10 MB to " + compressed.remaining());
+            try {
+                filter(deflate).onReceivingFragment(compressed, true, 1024 * 1024);
+                throw new AssertionError("PayloadOverflowException is not thrown");
+            } catch (PayloadOverflowException e) {
+                // Expected
+            }
+            assertThat(pool.borrowedDecompressors(), is(0));
+
+            // Next message is decompressed from the beginning.
+            byte[] source = TestUtil.fixedLengthFixedByteArray(1024);
+            ByteBuffer decompressed = filter(deflate).onReceivingFragment(deflate.compress(ByteBuffer.wrap(source)), true, 1024);
+            assertThat(Arrays.equals(source, remaining(decompressed)), is(true));
+        }
+    }
+
+    public static class AdaptiveCompressionTest {
+        private static ByteBuffer randomBytes(int size) {
+            byte[] bytes = new byte[size];
+            new Random(0).nextBytes(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+
+        /**
+         * @return {@code true} if the message is compressed, {@code false} if skipped.
+         */
+        private static boolean compress(PerMessageDeflate deflate, ByteBuffer message) {
+            try {
+                deflate.compress(message.duplicate());
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Test
+        public void incompressibleBandBacksOff() {
+            DeflateRequest req = new DeflateRequest.Builder().setAdaptiveCompression(true).setPool(new DeflatePool(1)).build();
+            PerMessageDeflate deflate = (PerMessageDeflate) req.extension();
+            ByteBuffer random = randomBytes(2000);
+            int band = CompressionStats.bandOf(2000);
+
+            // Sampled after 1, then 2 skipped messages.
+            assertThat(compress(deflate, random), is(true));
+            assertThat(compress(deflate, random), is(false));
+            assertThat(compress(deflate, random), is(true));
+            assertThat(compress(deflate, random), is(false));
+            assertThat(compress(deflate, random), is(false));
+            assertThat(compress(deflate, random), is(true));
+            assertThat(deflate.stats().compressedMessages(band), is(3L));
+            assertThat(deflate.stats().skippedMessages(band), is(3L));
+            assertThat(deflate.stats().ratio(band) > 1.0, is(true));
+
+            // Other bands are not affected.
+            ByteBuffer small = ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(300));
+            assertThat(compress(deflate, small), is(true));
+
+            // Compressible message in the band is sampled after 4 skipped messages, then it recovers.
+            ByteBuffer compressible = ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(2000));
+            for (int i = 0; i < 4; i++) {
+                assertThat(compress(deflate, compressible), is(false));
+            }
+            assertThat(compress(deflate, compressible), is(true));
+            assertThat(compress(deflate, compressible), is(true));
+
+            assertThat(req.stats().compressedMessages(), is(6L));
+            assertThat(req.stats().skippedMessages(), is(7L));
+            assertThat(req.stats().compressionTimeNanos() > 0, is(true));
+        }
+
+        @Test
+        public void noBackoffByDefault() {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder().build().extension();
+            ByteBuffer random = randomBytes(2000);
+            for (int i = 0; i < 10; i++) {
+                assertThat(compress(deflate, random), is(true));
+            }
+            assertThat(deflate.stats().skippedMessages(), is(0L));
+        }
+
+        @Test
+        public void thresholdIsCountedAsSkipped() {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder().setCompressionThreshold(100).build().extension();
+            assertThat(compress(deflate, ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(99))), is(false));
+            assertThat(compress(deflate, ByteBuffer.wrap(TestUtil.fixedLengthFixedByteArray(100))), is(true));
+            assertThat(deflate.stats().skippedMessages(CompressionStats.bandOf(99)), is(1L));
+            assertThat(deflate.stats().compressedMessages(), is(1L));
+            assertThat(deflate.stats().ratio() < 1.0, is(true));
+
+            deflate.stats().reset();
+            assertThat(deflate.stats().compressedMessages(), is(0L));
+            assertThat(deflate.stats().ratio(), is(1.0));
+        }
+
+        @Test
+        public void largeMessageCompressionLevel() throws IOException {
+            PerMessageDeflate deflate = (PerMessageDeflate) new DeflateRequest.Builder()
+                    .setLargeMessageCompressionLevel(1024, Deflater.NO_COMPRESSION)
+                    .build().extension();
+            assertThat(deflate.compress(ByteBuffer.wrap(new byte[1023])).remaining() < 100, is(true));
+            // Stored without compression.
+            assertThat(deflate.compress(ByteBuffer.wrap(new byte[1024])).remaining() >= 1024, is(true));
+        }
+
+        @Test
+        public void bands() {
+            assertThat(CompressionStats.bandOf(0), is(0));
+            assertThat(CompressionStats.bandOf(255), is(0));
+            assertThat(CompressionStats.bandOf(256), is(1));
+            assertThat(CompressionStats.bandOf(Integer.MAX_VALUE), is(CompressionStats.BANDS - 1));
+            for (int band = 0; band < CompressionStats.BANDS; band++) {
+                assertThat(CompressionStats.bandOf(CompressionStats.lowerBoundOf(band)), is(band));
+            }
         }
     }
 
     public static class BuilderTest {
+        @Test(expected = IllegalArgumentException.class)
+        public void maxClientWindowBitsLow() {
+            new DeflateRequest.Builder().setMaxClientWindowBits(7);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void maxClientWindowBitsHigh() {
+            new DeflateRequest.Builder().setMaxClientWindowBits(16);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void compressionLevelHigh() {
+            new DeflateRequest.Builder().setCompressionLevel(10);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void compressionStrategyInvalid() {
+            new DeflateRequest.Builder().setCompressionStrategy(3);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void largeMessageCompressionLevelInvalid() {
+            new DeflateRequest.Builder().setLargeMessageCompressionLevel(1024, 10);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void largeMessageSizeNegative() {
+            new DeflateRequest.Builder().setLargeMessageCompressionLevel(-1, Deflater.BEST_SPEED);
+        }
+
         @Test(expected = IllegalArgumentException.class)
         public void maxServerWindowBitsLow() {
             new DeflateRequest.Builder().setMaxServerWindowBits(7);
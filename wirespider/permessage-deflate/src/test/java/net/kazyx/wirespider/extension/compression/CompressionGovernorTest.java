@@ -0,0 +1,167 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import net.kazyx.wirespider.extension.compression.CompressionGovernor.Mode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CompressionGovernorTest {
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+    private static final long BUDGET = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SIZE = 1000;
+
+    /**
+     * First period starts on the construction, slightly before the test starts.
+     */
+    private static boolean isAbout(long actual, long expected) {
+        return Math.abs(actual - expected) <= expected / 100;
+    }
+
+    @Test
+    public void degradeAndRecoverStepByStep() {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET);
+        long start = System.nanoTime();
+        assertThat(governor.mode(start), is(Mode.NORMAL));
+
+        // Not evaluated until the period elapses.
+        governor.onCompressed(SIZE, BUDGET * 2);
+        assertThat(governor.mode(start + PERIOD / 2), is(Mode.NORMAL));
+        assertThat(governor.mode(start + PERIOD), is(Mode.REDUCED_LEVEL));
+        assertThat(isAbout(governor.lastUsageNanosPerSecond(), BUDGET * 2), is(true));
+
+        governor.onCompressed(SIZE, BUDGET * 2);
+        assertThat(governor.mode(start + PERIOD * 2), is(Mode.RAISED_THRESHOLD));
+        governor.onCompressed(SIZE, BUDGET * 2);
+        assertThat(governor.mode(start + PERIOD * 3), is(Mode.BYPASS));
+        governor.onCompressed(SIZE, BUDGET * 2);
+        assertThat(governor.mode(start + PERIOD * 4), is(Mode.BYPASS));
+
+        // Within the budget, but not low enough to recover.
+        governor.onCompressed(SIZE, BUDGET * 3 / 4);
+        assertThat(governor.mode(start + PERIOD * 5), is(Mode.BYPASS));
+
+        assertThat(governor.mode(start + PERIOD * 6), is(Mode.RAISED_THRESHOLD));
+        assertThat(governor.mode(start + PERIOD * 7), is(Mode.REDUCED_LEVEL));
+        assertThat(governor.mode(start + PERIOD * 8), is(Mode.NORMAL));
+        assertThat(governor.mode(start + PERIOD * 9), is(Mode.NORMAL));
+        assertThat(governor.lastUsageNanosPerSecond(), is(0L));
+    }
+
+    private static long toBypass(CompressionGovernor governor) {
+        long start = System.nanoTime();
+        for (int i = 1; i <= 3; i++) {
+            governor.onCompressed(SIZE, BUDGET * 2);
+            governor.mode(start + PERIOD * i);
+        }
+        assertThat(governor.mode(start + PERIOD * 3), is(Mode.BYPASS));
+        return start + PERIOD * 3;
+    }
+
+    @Test
+    public void sustainedOverloadHoldsBypass() {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET, Deflater.BEST_SPEED, 100);
+        long start = toBypass(governor);
+
+        // Same amount of messages as the overload, which would take twice the budget if compressed.
+        for (int i = 1; i <= 5; i++) {
+            governor.onSkipped(Mode.BYPASS, SIZE);
+            assertThat(governor.mode(start + PERIOD * i), is(Mode.BYPASS));
+            assertThat(governor.lastUsageNanosPerSecond(), is(0L));
+        }
+
+        // Load drops to 1/8 of the budget.
+        governor.onSkipped(Mode.BYPASS, SIZE / 16);
+        assertThat(governor.mode(start + PERIOD * 6), is(Mode.RAISED_THRESHOLD));
+    }
+
+    @Test
+    public void messagesBelowRaisedThresholdDoNotHoldBypass() {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET, Deflater.BEST_SPEED, SIZE + 1);
+        long start = toBypass(governor);
+
+        // Never compressed in RAISED_THRESHOLD mode either.
+        governor.onSkipped(Mode.BYPASS, SIZE);
+        assertThat(governor.mode(start + PERIOD), is(Mode.RAISED_THRESHOLD));
+
+        // Compressed in REDUCED_LEVEL mode.
+        governor.onSkipped(Mode.RAISED_THRESHOLD, SIZE);
+        assertThat(governor.mode(start + PERIOD * 2), is(Mode.RAISED_THRESHOLD));
+    }
+
+    @Test
+    public void usageIsNormalizedByElapsedTime() {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET);
+        long start = System.nanoTime();
+        governor.mode(start);
+        // Twice the budget over two seconds.
+        governor.onCompressed(SIZE, BUDGET * 2);
+        assertThat(governor.mode(start + PERIOD * 2), is(Mode.NORMAL));
+        assertThat(isAbout(governor.lastUsageNanosPerSecond(), BUDGET), is(true));
+    }
+
+    @Test
+    public void levelAndThresholdOfEachMode() {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET, Deflater.BEST_SPEED, 100);
+        assertThat(governor.level(Mode.NORMAL, Deflater.BEST_COMPRESSION), is(Deflater.BEST_COMPRESSION));
+        assertThat(governor.level(Mode.REDUCED_LEVEL, Deflater.BEST_COMPRESSION), is(Deflater.BEST_SPEED));
+        assertThat(governor.level(Mode.REDUCED_LEVEL, Deflater.DEFAULT_COMPRESSION), is(Deflater.BEST_SPEED));
+        assertThat(governor.level(Mode.RAISED_THRESHOLD, Deflater.NO_COMPRESSION), is(Deflater.NO_COMPRESSION));
+
+        assertThat(governor.shouldCompress(Mode.REDUCED_LEVEL, 99), is(true));
+        assertThat(governor.shouldCompress(Mode.RAISED_THRESHOLD, 99), is(false));
+        assertThat(governor.shouldCompress(Mode.RAISED_THRESHOLD, 100), is(true));
+        assertThat(governor.shouldCompress(Mode.BYPASS, Integer.MAX_VALUE), is(false));
+    }
+
+    @Test
+    public void bypassSharedByConnections() throws IOException {
+        CompressionGovernor governor = new CompressionGovernor(BUDGET);
+        DeflateRequest request = new DeflateRequest.Builder().setGovernor(governor).build();
+        PerMessageDeflate deflate1 = (PerMessageDeflate) request.extension();
+        PerMessageDeflate deflate2 = (PerMessageDeflate) new DeflateRequest.Builder().setGovernor(governor).build().extension();
+
+        ByteBuffer message = ByteBuffer.wrap(new byte[1000]);
+        deflate1.compress(message.duplicate());
+        deflate2.compress(message.duplicate());
+
+        // Drive into bypass mode. The period started in the future is not evaluated by the following messages.
+        toBypass(governor);
+        assertThat(governor.mode(), is(Mode.BYPASS));
+
+        for (PerMessageDeflate deflate : new PerMessageDeflate[]{deflate1, deflate2}) {
+            try {
+                deflate.compress(message.duplicate());
+                throw new AssertionError("Compressed in bypass mode");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertThat(request.stats().compressedMessages(), is(1L));
+        assertThat(request.stats().skippedMessages(), is(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBudget() {
+        new CompressionGovernor(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReducedLevel() {
+        new CompressionGovernor(BUDGET, Deflater.DEFAULT_COMPRESSION, 0);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Round trip time of compression and decompression per message,
+ * comparing {@link PerMessageDeflate} against the stream based implementation.<br>
+ * Run with {@code java -cp <classpath> net.kazyx.wirespider.extension.compression.DeflateBenchmark [MB per message size] [compression level]}.
+ */
+public class DeflateBenchmark {
+    private static final int[] MESSAGE_SIZES = {256, 4 * 1024, 64 * 1024};
+
+    private static final byte[] EMPTY_BLOCK_TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    public static void main(String[] args) throws IOException {
+        int megaBytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int level = args.length > 1 ? Integer.parseInt(args[1]) : Deflater.BEST_COMPRESSION;
+
+        for (int size : MESSAGE_SIZES) {
+            int iterations = megaBytes * 1024 * 1024 / size;
+            byte[] message = jsonLikeMessage(size);
+            ByteBuffer direct = ByteBuffer.allocateDirect(size);
+            direct.put(message).flip();
+
+            // Warm up JIT.
+            runStream(message, level, iterations / 4);
+            runDirect(ByteBuffer.wrap(message), level, iterations / 4);
+            runDirect(direct, level, iterations / 4);
+
+            System.out.println(String.format(Locale.US, "%6d bytes: stream %.1f us, heap %.1f us, direct %.1f us", size,
+                    runStream(message, level, iterations), runDirect(ByteBuffer.wrap(message), level, iterations),
+                    runDirect(direct, level, iterations)));
+        }
+    }
+
+    private static byte[] jsonLikeMessage(int size) {
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("{\"id\":").append(random.nextInt(100000)).append(",\"price\":").append(random.nextInt(10000))
+                    .append(".").append(random.nextInt(100)).append(",\"side\":\"").append(random.nextBoolean() ? "buy" : "sell").append("\"}");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    /**
+     * @return Average microseconds per message.
+     */
+    private static double runDirect(ByteBuffer message, int level, int iterations) throws IOException {
+        PerMessageDeflate deflate = new PerMessageDeflate(0, false, false, level, Deflater.DEFAULT_STRATEGY, null);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ByteBuffer compressed = deflate.compress(message.duplicate());
+            if (deflate.decompress(compressed).remaining() != message.remaining()) {
+                throw new IllegalStateException("Size mismatch");
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+
+    /**
+     * @return Average microseconds per message.
+     */
+    private static double runStream(byte[] message, int level, int iterations) throws IOException {
+        Deflater compressor = new Deflater(level, true);
+        Inflater decompressor = new Inflater(true);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            compressor.reset();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(message.length);
+            DeflaterOutputStream dos = new DeflaterOutputStream(compressed, compressor, 512, true);
+            dos.write(message);
+            dos.flush();
+            byte[] payload = compressed.toByteArray();
+
+            decompressor.reset();
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream(payload.length);
+            InflaterOutputStream ios = new InflaterOutputStream(decompressed, decompressor, 512);
+            OutputStream os = new BufferedOutputStream(ios);
+            os.write(payload, 0, payload.length - EMPTY_BLOCK_TAIL.length);
+            os.write(EMPTY_BLOCK_TAIL);
+            os.flush();
+            ios.finish();
+            if (decompressed.toByteArray().length != message.length) {
+                throw new IllegalStateException("Size mismatch");
+            }
+        }
+        compressor.end();
+        decompressor.end();
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+}
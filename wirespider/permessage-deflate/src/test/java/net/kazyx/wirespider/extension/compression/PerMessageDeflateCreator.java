@@ -9,8 +9,18 @@
 
 package net.kazyx.wirespider.extension.compression;
 
+import java.util.zip.Deflater;
+
 public class PerMessageDeflateCreator {
     public static PerMessageDeflate create(int threshold) {
         return new PerMessageDeflate(threshold);
     }
+
+    public static PerMessageDeflate create(int threshold, boolean clientContextTakeover, boolean serverContextTakeover) {
+        return new PerMessageDeflate(threshold, clientContextTakeover, serverContextTakeover);
+    }
+
+    public static PerMessageDeflate create(int threshold, boolean clientContextTakeover, boolean serverContextTakeover, DeflatePool pool) {
+        return new PerMessageDeflate(threshold, clientContextTakeover, serverContextTakeover, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY, pool);
+    }
 }
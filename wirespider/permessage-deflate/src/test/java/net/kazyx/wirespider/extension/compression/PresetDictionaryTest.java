@@ -0,0 +1,104 @@
+/*
+ * WireSpider
+ *
+ * Copyright (c) 2016 kazyx
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+
+package net.kazyx.wirespider.extension.compression;
+
+import net.kazyx.wirespider.exception.PayloadOverflowException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class PresetDictionaryTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] DICTIONARY = ("{\"type\":\"status\",\"device\":{\"id\":\"\",\"name\":\"\",\"battery\":,\"charging\":false},"
+            + "\"position\":{\"latitude\":35.,\"longitude\":139.,\"accuracy\":},\"timestamp\":1460000000}").getBytes(UTF8);
+
+    private static byte[] message(int i) {
+        return ("{\"type\":\"status\",\"device\":{\"id\":\"dev-" + i + "\",\"name\":\"camera " + i + "\",\"battery\":" + (100 - i)
+                + ",\"charging\":false},\"position\":{\"latitude\":35." + (6000 + i) + ",\"longitude\":139." + (7000 + i)
+                + ",\"accuracy\":" + (i % 30) + "},\"timestamp\":" + (1460000000 + i) + "}").getBytes(UTF8);
+    }
+
+    /**
+     * Stand-in of the server, which negotiates the same dictionary and decompresses what the client sends.
+     */
+    private static PresetDictionaryDeflate negotiate(PresetDictionaryRequest request) {
+        PresetDictionaryDeflate extension = (PresetDictionaryDeflate) request.extension();
+        String[] response = request.requestHeader().values().get(0).split(";");
+        assertThat(extension.accept(response), is(true));
+        return extension;
+    }
+
+    @Test
+    public void smallMessagesAreSmallerThanPermessageDeflate() throws IOException {
+        PresetDictionaryRequest request = new PresetDictionaryRequest.Builder(DICTIONARY).build();
+        PresetDictionaryDeflate client = negotiate(request);
+        PresetDictionaryDeflate server = negotiate(request);
+        PerMessageDeflate deflate = new PerMessageDeflate(0);
+
+        long original = 0;
+        long withDictionary = 0;
+        long withoutDictionary = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] message = message(i);
+            ByteBuffer compressed = client.compress(ByteBuffer.wrap(message));
+            original += message.length;
+            withDictionary += compressed.remaining();
+            withoutDictionary += deflate.compress(ByteBuffer.wrap(message)).remaining();
+
+            ByteBuffer decompressed = server.decompress(compressed);
+            assertThat(Arrays.equals(Arrays.copyOfRange(decompressed.array(), 0, decompressed.remaining()), message), is(true));
+        }
+        // Messages of about 180 bytes are reduced only by 1/4 without the dictionary.
+        assertThat(withDictionary * 2, lessThan(withoutDictionary));
+        assertThat(withDictionary * 4, lessThan(original));
+        assertThat(request.stats().compressedMessages(), is(50L));
+    }
+
+    @Test
+    public void fragmentedMessageWithDedicatedDecompressor() throws IOException, PayloadOverflowException {
+        PresetDictionaryDeflate client = negotiate(new PresetDictionaryRequest.Builder(DICTIONARY).build());
+        PresetDictionaryDeflate server = new PresetDictionaryDeflate(DICTIONARY, PresetDictionaryDeflate.hashOf(DICTIONARY), 0,
+                9, 0, null, new CompressionStats(null));
+
+        for (int i = 0; i < 3; i++) {
+            byte[] message = message(i);
+            ByteBuffer compressed = client.compress(ByteBuffer.wrap(message));
+            int half = compressed.remaining() / 2;
+            ByteBuffer first = ByteBuffer.wrap(compressed.array(), compressed.position(), half);
+            ByteBuffer second = ByteBuffer.wrap(compressed.array(), compressed.position() + half, compressed.remaining() - half);
+            assertThat(server.decompressFragment(first, false, 1000) == null, is(true));
+            ByteBuffer decompressed = server.decompressFragment(second, true, 1000);
+            assertThat(Arrays.equals(Arrays.copyOfRange(decompressed.array(), 0, decompressed.remaining()), message), is(true));
+        }
+    }
+
+    @Test
+    public void differentDictionaryIsRejected() {
+        PresetDictionaryDeflate extension = (PresetDictionaryDeflate) new PresetDictionaryRequest.Builder(DICTIONARY).build().extension();
+        String otherHash = PresetDictionaryDeflate.hashOf(Arrays.copyOf(DICTIONARY, DICTIONARY.length - 1));
+        assertThat(extension.accept(new String[]{PresetDictionaryDeflate.NAME, "dictionary_hash=" + otherHash}), is(false));
+        assertThat(extension.accept(new String[]{PresetDictionaryDeflate.NAME}), is(false));
+        assertThat(extension.accept(new String[]{PresetDictionaryDeflate.NAME,
+                " dictionary_hash=\"" + extension.dictionaryHash().toLowerCase() + "\""}), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyDictionary() {
+        new PresetDictionaryRequest.Builder(new byte[0]);
+    }
+}